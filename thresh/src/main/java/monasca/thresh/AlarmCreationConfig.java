@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.Serializable;
+
+/**
+ * Configuration for the AlarmCreationBolt.
+ */
+public class AlarmCreationConfig implements Serializable {
+
+  private static final long serialVersionUID = -2265093620918530415L;
+
+  /** Maximum number of Alarms waiting for metrics kept per bolt. The oldest are evicted */
+  @JsonProperty
+  public Integer maxWaitingAlarms = 100000;
+
+  /** Seconds after which an Alarm still waiting for metrics is dropped */
+  @JsonProperty
+  public Integer waitingAlarmMaxAgeSeconds = 3600;
+
+  /**
+   * Milliseconds new Alarms are collected for before they are created together in one
+   * transaction. If 0, each Alarm is created as soon as it is complete
+   */
+  @JsonProperty
+  public Integer creationBatchMillis = 0;
+
+  /** The collected Alarms are created as soon as there are this many of them */
+  @JsonProperty
+  public Integer maxCreationBatchSize = 500;
+
+  /** How often, in seconds, the waiting Alarm statistics are reported as Storm metrics */
+  @JsonProperty
+  public Integer metricsTimeBucketSeconds = 60;
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.Serializable;
+
+/**
+ * Configuration for the AlarmThresholdingBolt.
+ */
+public class AlarmThresholdingConfig implements Serializable {
+
+  private static final long serialVersionUID = 6178146320459410232L;
+
+  /**
+   * Milliseconds the Alarm state changes are kept before they are written to the database. Only
+   * the latest state of an Alarm is written. If 0, each state change is written as it happens.
+   * The state changes not yet written when a worker dies are lost, although their notifications
+   * were already sent
+   */
+  @JsonProperty
+  public Integer stateFlushIntervalMillis = 0;
+
+  /** The state changes are written as soon as this many Alarms have changed */
+  @JsonProperty
+  public Integer stateFlushBatchSize = 500;
+
+  /** Most Alarms with state changes not yet written. The bolt waits while there are more */
+  @JsonProperty
+  public Integer maxPendingStates = 10000;
+
+  /**
+   * Most Alarm events waiting to be sent to Kafka by a background thread. Events sent while the
+   * queue is full are dropped. If 0, each event is sent as it happens
+   */
+  @JsonProperty
+  public Integer eventQueueSize = 0;
+
+  /** Most Alarm events sent to Kafka at once from the queue */
+  @JsonProperty
+  public Integer eventBatchSize = 200;
+
+  /**
+   * How often, in seconds, the state writer and event forwarder statistics are reported as Storm
+   * metrics
+   */
+  @JsonProperty
+  public Integer metricsTimeBucketSeconds = 60;
+}
@@ -18,6 +18,7 @@
 package monasca.thresh;
 
 import monasca.common.configuration.KafkaConsumerConfiguration;
+import monasca.thresh.infrastructure.thresholding.deserializer.PayloadFormat;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -30,5 +31,32 @@ public class KafkaSpoutConfig implements Serializable {
   @JsonProperty
   public Integer maxWaitTime = 100;
 
+  /**
+   * Number of messages the reader threads can queue for nextTuple(). With autoCommitEnable the
+   * Kafka offsets of the queued messages may be committed before they are emitted, so if the
+   * worker dies up to this many messages per spout task are lost instead of being read again
+   */
+  @JsonProperty
+  public Integer queueSize = 1024;
+
+  /** Maximum number of messages processed by one call of nextTuple() */
+  @JsonProperty
+  public Integer maxBatchSize = 100;
+
+  /**
+   * Number of Kafka streams read by each spout task, each by its own thread. Partitions are
+   * spread over all the streams of all the tasks, so more streams lets one task read several
+   * partitions in parallel
+   */
+  @JsonProperty
+  public Integer numStreams = 1;
+
+  /**
+   * Encoding of the messages. The default, AUTO, reads both JSON and Smile so producers can
+   * switch between them one at a time
+   */
+  @JsonProperty
+  public PayloadFormat payloadFormat = PayloadFormat.AUTO;
+
   public KafkaConsumerConfiguration kafkaConsumerConfiguration;
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.Serializable;
+
+/**
+ * Configuration for how the MetricAggregationBolt evaluates its SubAlarms.
+ */
+public class MetricAggregationConfig implements Serializable {
+
+  private static final long serialVersionUID = -2717645203923617446L;
+
+  /**
+   * Number of shards the SubAlarms are split into. Each shard is evaluated on its own tick, so
+   * the evaluation is spread over the tick interval instead of being done in one burst. Reduced
+   * to the nearest number that divides the tick interval in seconds
+   */
+  @JsonProperty
+  public Integer evaluationShards = 1;
+
+  /** How often, in seconds, the tick statistics are reported as Storm metrics */
+  @JsonProperty
+  public Integer metricsTimeBucketSeconds = 60;
+
+  /**
+   * Directory for the checkpoints of the aggregation windows, one file per task. The windows are
+   * not checkpointed if it isn't set
+   */
+  @JsonProperty
+  public String checkpointDirectory;
+
+  @JsonProperty
+  public Integer checkpointIntervalSeconds = 60;
+
+  /** Most windows written by one checkpoint, the others are written by the next ones */
+  @JsonProperty
+  public Integer checkpointMaxWindows = 20000;
+
+  /** Windows with more slots, periods plus the future slots, are not checkpointed */
+  @JsonProperty
+  public Integer checkpointMaxSlots = 32;
+
+  /**
+   * If true the windows are slid and evaluated by the event time of the Metrics, a low watermark
+   * of their timestamps, instead of by the clock. A backlog is then evaluated as it is caught up
+   */
+  @JsonProperty
+  public Boolean eventTime = false;
+
+  /** How far the evaluation stays behind the watermark, so Metrics a little late still count */
+  @JsonProperty
+  public Integer watermarkLatenessSeconds = 10;
+
+  /** A task that sent no Metrics for this long doesn't hold the watermark back */
+  @JsonProperty
+  public Integer watermarkIdleSeconds = 60;
+}
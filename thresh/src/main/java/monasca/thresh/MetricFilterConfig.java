@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.Serializable;
+
+/**
+ * Configuration for the Bloom filter the MetricFilteringBolt uses to drop Metrics whose tenant id
+ * and metric name are not used by any AlarmDefinition.
+ */
+public class MetricFilterConfig implements Serializable {
+
+  private static final long serialVersionUID = 3310850262381632424L;
+
+  /** If false, every Metric is checked against the matcher */
+  @JsonProperty
+  public Boolean enabled = true;
+
+  /** Number of tenant id and metric name pairs to size the filter for. It grows past this */
+  @JsonProperty
+  public Integer expectedInsertions = 100000;
+
+  @JsonProperty
+  public Double falsePositiveProbability = 0.01;
+
+  /** How often, in seconds, the filter statistics are reported as Storm metrics */
+  @JsonProperty
+  public Integer metricsTimeBucketSeconds = 60;
+}
@@ -17,7 +17,18 @@
 
 package monasca.thresh;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public class MetricSpoutConfig extends KafkaSpoutConfig {
 
   private static final long serialVersionUID = -4285448019855024921L;
+
+  /**
+   * If true, the spout drops Metrics whose tenant id and metric name are not used by any
+   * AlarmDefinition. Only works in workers that also run a MetricFilteringBolt with the
+   * metricFilterConfig enabled, in other workers every Metric is emitted. The times of the dropped
+   * Metrics still reach the MetricFilteringBolts for their lag check and watermark
+   */
+  @JsonProperty
+  public Boolean filterUnalarmedMetrics = false;
 }
@@ -68,6 +68,20 @@ public class ThresholdingConfiguration {
   /** Configuration for the spout that receives events from the external exchange. */
   @Valid @NotNull public EventSpoutConfig eventSpoutConfig;
 
+  /** Configuration for the filter that drops Metrics no AlarmDefinition uses. */
+  @Valid @NotNull public MetricFilterConfig metricFilterConfig = new MetricFilterConfig();
+
+  /** Configuration for the creation of Alarms by the AlarmCreationBolt. */
+  @Valid @NotNull public AlarmCreationConfig alarmCreationConfig = new AlarmCreationConfig();
+
+  /** Configuration for the evaluation of SubAlarms by the MetricAggregationBolt. */
+  @Valid @NotNull public MetricAggregationConfig metricAggregationConfig =
+      new MetricAggregationConfig();
+
+  /** Configuration for the AlarmThresholdingBolt. */
+  @Valid @NotNull public AlarmThresholdingConfig alarmThresholdingConfig =
+      new AlarmThresholdingConfig();
+
   /** Configuration for publishing to the alerts exchange on the external server. */
   @NotEmpty public String alertsExchange = "alerts";
   @NotEmpty public String alertsRoutingKey = "alert";
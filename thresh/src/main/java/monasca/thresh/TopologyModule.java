@@ -17,6 +17,9 @@
 
 package monasca.thresh;
 
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubExpression;
+import monasca.thresh.infrastructure.serialization.TupleSerializers;
 import monasca.thresh.infrastructure.thresholding.AlarmCreationBolt;
 import monasca.thresh.infrastructure.thresholding.AlarmThresholdingBolt;
 import monasca.thresh.infrastructure.thresholding.EventProcessingBolt;
@@ -30,6 +33,7 @@ import monasca.common.util.Injector;
 
 import backtype.storm.Config;
 import backtype.storm.generated.StormTopology;
+import backtype.storm.topology.BoltDeclarer;
 import backtype.storm.topology.IRichSpout;
 import backtype.storm.topology.TopologyBuilder;
 import backtype.storm.tuple.Fields;
@@ -45,6 +49,7 @@ import javax.inject.Named;
 public class TopologyModule extends AbstractModule {
   private final ThresholdingConfiguration config;
   private Config stormConfig;
+  private boolean serializationsRegistered;
   private IRichSpout metricSpout;
   private IRichSpout eventSpout;
 
@@ -72,6 +77,12 @@ public class TopologyModule extends AbstractModule {
       stormConfig.put(ThresholdingConfiguration.ALERTS_EXCHANGE, config.alertsExchange);
       stormConfig.put(ThresholdingConfiguration.ALERTS_ROUTING_KEY, config.alertsRoutingKey);
     }
+    if (!serializationsRegistered) {
+      stormConfig.registerSerialization(SubAlarm.class);
+      stormConfig.registerSerialization(SubExpression.class);
+      TupleSerializers.register(stormConfig);
+      serializationsRegistered = true;
+    }
 
     return stormConfig;
   }
@@ -85,7 +96,8 @@ public class TopologyModule extends AbstractModule {
   @Provides
   @Named("event")
   IRichSpout eventSpout() {
-    return eventSpout == null ? new EventSpout(config.eventSpoutConfig, new EventDeserializer())
+    return eventSpout == null ? new EventSpout(config.eventSpoutConfig,
+        new EventDeserializer(config.eventSpoutConfig.payloadFormat))
         : eventSpout;
   }
 
@@ -94,8 +106,9 @@ public class TopologyModule extends AbstractModule {
     TopologyBuilder builder = new TopologyBuilder();
 
     // Receives metrics
-    builder.setSpout("metrics-spout", Injector.getInstance(IRichSpout.class, "metrics"),
-        config.metricSpoutThreads).setNumTasks(config.metricSpoutTasks);
+    final IRichSpout metrics = Injector.getInstance(IRichSpout.class, "metrics");
+    builder.setSpout("metrics-spout", metrics, config.metricSpoutThreads).setNumTasks(
+        config.metricSpoutTasks);
 
     // Receives events
     builder.setSpout("event-spout", Injector.getInstance(IRichSpout.class, "event"),
@@ -107,33 +120,41 @@ public class TopologyModule extends AbstractModule {
         .shuffleGrouping("event-spout").setNumTasks(config.eventBoltTasks);
 
     // Metrics / Event -> Filtering
-    builder
-        .setBolt("filtering-bolt", new MetricFilteringBolt(config.database),
-            config.filteringBoltThreads)
+    final BoltDeclarer filteringBolt = builder
+        .setBolt("filtering-bolt",
+            new MetricFilteringBolt(config.database, config.metricFilterConfig,
+                config.metricAggregationConfig), config.filteringBoltThreads)
         .fieldsGrouping("metrics-spout", new Fields(MetricSpout.FIELDS[0]))
         .allGrouping("event-bolt", EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID)
         .allGrouping("event-bolt", EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID)
         .setNumTasks(config.filteringBoltTasks);
+    if ((metrics instanceof MetricSpout) && config.metricSpoutConfig.filterUnalarmedMetrics) {
+      // Only a filtering MetricSpout reports the Metrics it dropped
+      filteringBolt.allGrouping("metrics-spout", MetricSpout.PROGRESS_STREAM);
+    }
 
     // Filtering /Event -> Alarm Creation 
     builder
-        .setBolt("alarm-creation-bolt", new AlarmCreationBolt(config.database),
-            1)
+        .setBolt("alarm-creation-bolt",
+            new AlarmCreationBolt(config.database, config.alarmCreationConfig),
+            config.alarmCreationBoltThreads)
         .fieldsGrouping("filtering-bolt",
             MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM,
-            new Fields(AlarmCreationBolt.ALARM_CREATION_FIELDS[3]))
+            new Fields(MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_FIELDS[1]))
         .allGrouping("event-bolt", EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID)
         .allGrouping("event-bolt", EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID)
-        .setNumTasks(1); // This has to be a single bolt right now because there is no
-                         // database protection for adding metrics and dimensions
+        .allGrouping("event-bolt", EventProcessingBolt.ALARM_EVENT_STREAM_ID)
+        .setNumTasks(config.alarmCreationBoltTasks);
 
     // Filtering / Event / Alarm Creation -> Aggregation 
     builder
         .setBolt("aggregation-bolt",
-            new MetricAggregationBolt(config.sporadicMetricNamespaces),
+            new MetricAggregationBolt(config.sporadicMetricNamespaces,
+                config.metricAggregationConfig),
             config.aggregationBoltThreads)
         .fieldsGrouping("filtering-bolt", new Fields(MetricFilteringBolt.FIELDS[0]))
         .allGrouping("filtering-bolt", MetricAggregationBolt.METRIC_AGGREGATION_CONTROL_STREAM)
+        .allGrouping("filtering-bolt", MetricAggregationBolt.WATERMARK_STREAM)
         .fieldsGrouping("filtering-bolt", AlarmCreationBolt.ALARM_CREATION_STREAM,
             new Fields(AlarmCreationBolt.ALARM_CREATION_FIELDS[1]))
         .allGrouping("event-bolt", EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID)
@@ -147,7 +168,8 @@ public class TopologyModule extends AbstractModule {
     // Aggregation / Event -> Thresholding
     builder
         .setBolt("thresholding-bolt",
-            new AlarmThresholdingBolt(config.database, config.kafkaProducerConfig),
+            new AlarmThresholdingBolt(config.database, config.kafkaProducerConfig,
+                config.alarmThresholdingConfig),
             config.thresholdingBoltThreads)
         .fieldsGrouping("aggregation-bolt", new Fields(MetricAggregationBolt.FIELDS[0]))
         .fieldsGrouping("event-bolt", EventProcessingBolt.ALARM_EVENT_STREAM_ID,
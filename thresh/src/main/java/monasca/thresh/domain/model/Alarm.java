@@ -44,6 +44,9 @@ public class Alarm extends AbstractEntity {
   private AlarmState state;
   private String stateChangeReason;
   private String alarmDefinitionId;
+  /** Slots of the SubAlarms in slotsExpression by SubAlarm id */
+  private final Map<String, SubAlarmSlot> slots = new HashMap<>();
+  private CompiledAlarmExpression slotsExpression;
 
   public Alarm() {
   }
@@ -114,36 +117,50 @@ public class Alarm extends AbstractEntity {
 
   /**
    * Evaluates the {@code alarm}, updating the alarm's state if necessary and returning true if the
-   * alarm's state changed, else false.
+   * alarm's state changed, else false. The expression is compiled for each call, use
+   * {@link #evaluate(AlarmDefinition)} to evaluate with the compiled expression of the
+   * AlarmDefinition.
    */
   public boolean evaluate(AlarmExpression expression) {
+    return evaluate(new CompiledAlarmExpression(expression));
+  }
+
+  /**
+   * Evaluates the {@code alarm} with the compiled expression of its AlarmDefinition, updating the
+   * alarm's state if necessary and returning true if the alarm's state changed, else false.
+   */
+  public boolean evaluate(AlarmDefinition alarmDefinition) {
+    return evaluate(alarmDefinition.getCompiledExpression());
+  }
+
+  boolean evaluate(CompiledAlarmExpression expression) {
     AlarmState initialState = state;
-    List<String> unitializedSubAlarms = new ArrayList<String>();
+    boolean undetermined = false;
     for (SubAlarm subAlarm : subAlarms.values()) {
       if (AlarmState.UNDETERMINED.equals(subAlarm.getState())) {
-        unitializedSubAlarms.add(subAlarm.getExpression().toString());
+        undetermined = true;
+        break;
       }
     }
 
     // Handle UNDETERMINED state
-    if (!unitializedSubAlarms.isEmpty()) {
+    if (undetermined) {
       if (AlarmState.UNDETERMINED.equals(initialState)) {
         return false;
       }
+      List<String> unitializedSubAlarms = new ArrayList<String>();
+      for (SubAlarm subAlarm : subAlarms.values()) {
+        if (AlarmState.UNDETERMINED.equals(subAlarm.getState())) {
+          unitializedSubAlarms.add(subAlarm.getExpression().toString());
+        }
+      }
       state = AlarmState.UNDETERMINED;
       stateChangeReason = buildStateChangeReason(state, unitializedSubAlarms);
       return true;
     }
 
-    Map<AlarmSubExpression, Boolean> subExpressionValues =
-        new HashMap<AlarmSubExpression, Boolean>();
-    for (SubAlarm subAlarm : subAlarms.values()) {
-      subExpressionValues.put(subAlarm.getExpression(),
-          AlarmState.ALARM.equals(subAlarm.getState()));
-    }
-
     // Handle ALARM state
-    if (expression.evaluate(subExpressionValues)) {
+    if (expression.evaluate(getAlarmedSlots(expression))) {
       if (AlarmState.ALARM.equals(initialState)) {
         return false;
       }
@@ -168,6 +185,61 @@ public class Alarm extends AbstractEntity {
     return true;
   }
 
+  /**
+   * Returns the bit set of the slots of expression whose SubAlarm is in ALARM state. If several
+   * SubAlarms have equal sub expressions, the last one decides, as it would in a Map of the sub
+   * expressions.
+   */
+  private long getAlarmedSlots(CompiledAlarmExpression expression) {
+    if (slotsExpression != expression) {
+      slots.clear();
+      slotsExpression = expression;
+    }
+    long alarmedSlots = 0;
+    long foundSlots = 0;
+    for (SubAlarm subAlarm : subAlarms.values()) {
+      final int slot = getSlot(expression, subAlarm);
+      if (slot < 0) {
+        // Not part of the expression
+        continue;
+      }
+      final long bit = 1L << slot;
+      foundSlots |= bit;
+      if (AlarmState.ALARM.equals(subAlarm.getState())) {
+        alarmedSlots |= bit;
+      } else {
+        alarmedSlots &= ~bit;
+      }
+    }
+    if (foundSlots != expression.getAllSlots()) {
+      for (int slot = 0; slot < expression.getSlotCount(); slot++) {
+        if ((foundSlots & (1L << slot)) == 0) {
+          throw new IllegalArgumentException(String.format(
+              "Alarm %s has no SubAlarm for the sub expression %s", getId(),
+              expression.getSubExpression(slot)));
+        }
+      }
+    }
+    return alarmedSlots;
+  }
+
+  /**
+   * The slot of the SubAlarm's sub expression is only looked up again when its sub expression has
+   * been replaced
+   */
+  private int getSlot(CompiledAlarmExpression expression, SubAlarm subAlarm) {
+    SubAlarmSlot subAlarmSlot = slots.get(subAlarm.getId());
+    if (subAlarmSlot == null) {
+      subAlarmSlot = new SubAlarmSlot();
+      slots.put(subAlarm.getId(), subAlarmSlot);
+    }
+    if (subAlarmSlot.subExpression != subAlarm.getExpression()) {
+      subAlarmSlot.subExpression = subAlarm.getExpression();
+      subAlarmSlot.slot = expression.slotOf(subAlarmSlot.subExpression);
+    }
+    return subAlarmSlot.slot;
+  }
+
   public AlarmState getState() {
     return state;
   }
@@ -201,6 +273,7 @@ public class Alarm extends AbstractEntity {
   }
 
   public void setSubAlarms(List<SubAlarm> subAlarms) {
+    slots.clear();
     this.subAlarms = new HashMap<String, SubAlarm>();
     for (SubAlarm subAlarm : subAlarms) {
       this.subAlarms.put(subAlarm.getId(), subAlarm);
@@ -225,6 +298,7 @@ public class Alarm extends AbstractEntity {
   }
 
   public boolean removeSubAlarmById(String toDeleteId) {
+    slots.remove(toDeleteId);
     return subAlarms.remove(toDeleteId) != null;
   }
 
@@ -247,4 +321,9 @@ public class Alarm extends AbstractEntity {
   public void addAlarmedMetric(MetricDefinitionAndTenantId alarmedMetric) {
     this.alarmedMetrics.add(alarmedMetric);
   }
+
+  private static class SubAlarmSlot {
+    private AlarmSubExpression subExpression;
+    private int slot = -1;
+  }
 }
@@ -37,6 +37,7 @@ public class AlarmDefinition extends AbstractEntity {
   private boolean actionsEnabled = true;
   private String severity;
   private List<SubExpression> subExpressions = new ArrayList<>();
+  private CompiledAlarmExpression compiledExpression;
 
   public AlarmDefinition() {
   }
@@ -117,6 +118,17 @@ public class AlarmDefinition extends AbstractEntity {
     return expression;
   }
 
+  /**
+   * The expression compiled to evaluate the Alarms of this AlarmDefinition. It is only compiled
+   * again when the expression changes
+   */
+  public CompiledAlarmExpression getCompiledExpression() {
+    if ((compiledExpression == null) || (compiledExpression.getAlarmExpression() != expression)) {
+      compiledExpression = new CompiledAlarmExpression(expression);
+    }
+    return compiledExpression;
+  }
+
   public String getName() {
     return name;
   }
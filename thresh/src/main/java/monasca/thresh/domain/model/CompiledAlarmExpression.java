@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.alarm.AlarmSubExpression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An AlarmExpression compiled to evaluate Alarms without building a Map of their sub expressions.
+ *
+ * Each distinct sub expression of the AlarmExpression gets a slot, and the values of the sub
+ * expressions are given as a bit set of the slots that are true. The AlarmExpression is evaluated
+ * once for every combination of values when it is compiled, so evaluating it is then looking up a
+ * bit in that truth table. Expressions with more than MAX_TABLE_SLOTS distinct sub expressions
+ * are evaluated by the AlarmExpression instead.
+ */
+public class CompiledAlarmExpression {
+  /** The truth table of this many slots has 1024 bits */
+  static final int MAX_TABLE_SLOTS = 10;
+  /** The slots are bits of a long */
+  static final int MAX_SLOTS = Long.SIZE;
+
+  private final AlarmExpression expression;
+  private final List<AlarmSubExpression> subExpressions;
+  private final long allSlots;
+  /** Bit n is the value of the expression for the sub expression values n, null if too many */
+  private final long[] truthTable;
+
+  public CompiledAlarmExpression(AlarmExpression expression) {
+    this.expression = expression;
+    subExpressions = new ArrayList<>();
+    for (final AlarmSubExpression subExpression : expression.getSubExpressions()) {
+      // Equal sub expressions have the same value, as they are the same key in the Map
+      if (!subExpressions.contains(subExpression)) {
+        subExpressions.add(subExpression);
+      }
+    }
+    if (subExpressions.size() > MAX_SLOTS) {
+      throw new IllegalArgumentException(String.format(
+          "Expression %s has more than %d distinct sub expressions", expression.getExpression(),
+          MAX_SLOTS));
+    }
+    allSlots = subExpressions.size() == MAX_SLOTS ? -1L : (1L << subExpressions.size()) - 1;
+    truthTable = subExpressions.size() > MAX_TABLE_SLOTS ? null : buildTruthTable();
+  }
+
+  private long[] buildTruthTable() {
+    final int combinations = 1 << subExpressions.size();
+    final long[] table = new long[(combinations + Long.SIZE - 1) / Long.SIZE];
+    final Map<AlarmSubExpression, Boolean> values = new HashMap<>();
+    for (int slots = 0; slots < combinations; slots++) {
+      if (evaluateExpression(slots, values)) {
+        table[slots >>> 6] |= 1L << slots;
+      }
+    }
+    return table;
+  }
+
+  private boolean evaluateExpression(long trueSlots, Map<AlarmSubExpression, Boolean> values) {
+    for (int slot = 0; slot < subExpressions.size(); slot++) {
+      values.put(subExpressions.get(slot), (trueSlots & (1L << slot)) != 0);
+    }
+    return expression.evaluate(values);
+  }
+
+  public AlarmExpression getAlarmExpression() {
+    return expression;
+  }
+
+  public int getSlotCount() {
+    return subExpressions.size();
+  }
+
+  /**
+   * Bit set with the bits of all the slots
+   */
+  public long getAllSlots() {
+    return allSlots;
+  }
+
+  public AlarmSubExpression getSubExpression(int slot) {
+    return subExpressions.get(slot);
+  }
+
+  /**
+   * Returns the slot of the sub expression equal to subExpression, or -1 if it is not part of the
+   * expression
+   */
+  public int slotOf(AlarmSubExpression subExpression) {
+    return subExpression == null ? -1 : subExpressions.indexOf(subExpression);
+  }
+
+  /**
+   * Evaluates the expression with the sub expressions of the slots set in trueSlots being true and
+   * the others false
+   */
+  public boolean evaluate(long trueSlots) {
+    if (truthTable == null) {
+      return evaluateExpression(trueSlots, new HashMap<AlarmSubExpression, Boolean>());
+    }
+    return (truthTable[(int) (trueSlots >>> 6)] & (1L << trueSlots)) != 0;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import monasca.common.util.stats.SlidingWindowStats;
+
+/**
+ * WindowStats for the CONCAT function, whose values are Strings.
+ */
+public class ConcatWindowStats implements WindowStats {
+  private final SlidingWindowStats<String> stats;
+
+  public ConcatWindowStats(SlidingWindowStats<String> stats) {
+    this.stats = stats;
+  }
+
+  @Override
+  public boolean addValue(double value, long timestamp) {
+    return stats.addValue(value, timestamp);
+  }
+
+  @Override
+  public boolean addValue(String value, long timestamp) {
+    return stats.addValue(value, timestamp);
+  }
+
+  @Override
+  public double getValue(long timestamp) {
+    return stats.getValue(timestamp);
+  }
+
+  @Override
+  public Object[] getViewValues() {
+    return stats.getViewValues();
+  }
+
+  @Override
+  public Object[] getWindowValues() {
+    return stats.getWindowValues();
+  }
+
+  @Override
+  public void slideViewTo(long timestamp) {
+    stats.slideViewTo(timestamp);
+  }
+
+  @Override
+  public String toString() {
+    return stats.toString();
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import monasca.common.model.alarm.AggregateFunction;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * WindowStats for the numeric functions, kept in primitive arrays.
+ *
+ * The slots are a ring of doubles holding the sum, minimum, maximum or count of each slot and, for
+ * AVG, a ring of counts. A separate bit mask tells which slots are empty, so evaluating the view
+ * needs no boxing and no Statistic objects.
+ *
+ * The view ends at viewEndTimestamp and is followed by the future slots. Sliding moves the window
+ * forward by whole slots once the timestamp is past the end of the view. This is the same layout
+ * SlidingWindowStats uses.
+ */
+public class DoubleWindowStats implements WindowStats {
+  private static final int BITS_PER_WORD = 64;
+
+  private final AggregateFunction function;
+  private final long slotWidth;
+  private final int numViewSlots;
+  private final int numSlots;
+  private final double[] values;
+  /** Number of values in each slot, only kept for AVG */
+  private final int[] counts;
+  /** A set bit means the slot is empty */
+  private final long[] emptySlots;
+  /** Index of the oldest slot of the view */
+  private int begin;
+  private long viewEndTimestamp;
+  /** Changed whenever the contents of the window change */
+  private long version;
+
+  public DoubleWindowStats(AggregateFunction function, long slotWidth, int numViewSlots,
+      int numFutureSlots, long viewEndTimestamp) {
+    if (function == AggregateFunction.CONCAT) {
+      throw new IllegalArgumentException("CONCAT is not a numeric function");
+    }
+    this.function = function;
+    this.slotWidth = slotWidth;
+    this.numViewSlots = numViewSlots;
+    this.numSlots = numViewSlots + numFutureSlots;
+    this.values = new double[numSlots];
+    this.counts = function == AggregateFunction.AVG ? new int[numSlots] : null;
+    this.emptySlots = new long[(numSlots + BITS_PER_WORD - 1) / BITS_PER_WORD];
+    for (int i = 0; i < numSlots; i++) {
+      setEmpty(i);
+    }
+    this.viewEndTimestamp = viewEndTimestamp;
+  }
+
+  private DoubleWindowStats(DoubleWindowStats other) {
+    this.function = other.function;
+    this.slotWidth = other.slotWidth;
+    this.numViewSlots = other.numViewSlots;
+    this.numSlots = other.numSlots;
+    this.values = other.values.clone();
+    this.counts = other.counts == null ? null : other.counts.clone();
+    this.emptySlots = other.emptySlots.clone();
+    this.begin = other.begin;
+    this.viewEndTimestamp = other.viewEndTimestamp;
+    this.version = other.version;
+  }
+
+  /**
+   * Returns a copy of the window that can be changed without changing this one
+   */
+  public DoubleWindowStats copy() {
+    return new DoubleWindowStats(this);
+  }
+
+  @Override
+  public boolean addValue(double value, long timestamp) {
+    final int index = indexOf(timestamp);
+    if (index < 0) {
+      return false;
+    }
+    version++;
+    if (isEmpty(index)) {
+      emptySlots[index / BITS_PER_WORD] &= ~(1L << (index % BITS_PER_WORD));
+      values[index] = function == AggregateFunction.COUNT ? 1 : value;
+      if (counts != null) {
+        counts[index] = 1;
+      }
+      return true;
+    }
+    switch (function) {
+      case AVG:
+        values[index] += value;
+        counts[index]++;
+        break;
+      case SUM:
+        values[index] += value;
+        break;
+      case MIN:
+        values[index] = Math.min(values[index], value);
+        break;
+      case MAX:
+        values[index] = Math.max(values[index], value);
+        break;
+      case COUNT:
+        values[index]++;
+        break;
+      default:
+        throw new IllegalStateException("Unsupported function " + function);
+    }
+    return true;
+  }
+
+  /**
+   * Numeric statistics can't aggregate Strings
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public boolean addValue(String value, long timestamp) {
+    throw new UnsupportedOperationException(function + " can only aggregate numbers");
+  }
+
+  @Override
+  public double getValue(long timestamp) {
+    final int index = indexOf(timestamp);
+    if (index < 0) {
+      throw new IllegalStateException(String.format("Timestamp %d is outside of the window %s",
+          timestamp, this));
+    }
+    return slotValue(index);
+  }
+
+  public AggregateFunction getFunction() {
+    return function;
+  }
+
+  public long getSlotWidth() {
+    return slotWidth;
+  }
+
+  public long getViewEndTimestamp() {
+    return viewEndTimestamp;
+  }
+
+  /**
+   * Returns the number of slots in the view and the future
+   */
+  public int getNumSlots() {
+    return numSlots;
+  }
+
+  /**
+   * Returns a number that changes whenever a value is added or the window slides, so a copy of
+   * the window is known to be current while the version is the same
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the number of bytes writeTo needs for a window of {@code numSlots} slots
+   */
+  public static int getSerializedSize(int numSlots) {
+    return 4 + 8 + (numSlots + BITS_PER_WORD - 1) / BITS_PER_WORD * 8 + numSlots * (8 + 4);
+  }
+
+  /**
+   * Writes the contents of the window, but not its function and size, to the {@code buffer}
+   */
+  public void writeTo(ByteBuffer buffer) {
+    buffer.putInt(begin);
+    buffer.putLong(viewEndTimestamp);
+    for (long word : emptySlots) {
+      buffer.putLong(word);
+    }
+    for (double value : values) {
+      buffer.putDouble(value);
+    }
+    for (int i = 0; i < numSlots; i++) {
+      buffer.putInt(counts == null ? 0 : counts[i]);
+    }
+  }
+
+  /**
+   * Replaces the contents of the window with those written by writeTo for a window with the same
+   * function and size
+   */
+  public void readFrom(ByteBuffer buffer) {
+    final int newBegin = buffer.getInt();
+    if (newBegin < 0 || newBegin >= numSlots) {
+      throw new IllegalArgumentException("Invalid begin " + newBegin + " for " + numSlots
+          + " slots");
+    }
+    begin = newBegin;
+    viewEndTimestamp = buffer.getLong();
+    for (int i = 0; i < emptySlots.length; i++) {
+      emptySlots[i] = buffer.getLong();
+    }
+    for (int i = 0; i < numSlots; i++) {
+      values[i] = buffer.getDouble();
+    }
+    for (int i = 0; i < numSlots; i++) {
+      final int count = buffer.getInt();
+      if (counts != null) {
+        counts[i] = count;
+      }
+    }
+    version++;
+  }
+
+  /**
+   * Returns the number of slots in the view
+   */
+  public int getNumViewSlots() {
+    return numViewSlots;
+  }
+
+  /**
+   * Returns true if no value has been added to the {@code viewSlot}th slot of the view, 0 being
+   * the oldest
+   */
+  public boolean isViewSlotEmpty(int viewSlot) {
+    return isEmpty(slotIndex(viewSlot));
+  }
+
+  /**
+   * Returns the value of the {@code viewSlot}th slot of the view, 0 being the oldest, or NaN if
+   * the slot is empty
+   */
+  public double getViewValue(int viewSlot) {
+    return slotValue(slotIndex(viewSlot));
+  }
+
+  @Override
+  public Object[] getViewValues() {
+    final Object[] result = new Object[numViewSlots];
+    for (int i = 0; i < numViewSlots; i++) {
+      result[i] = getViewValue(i);
+    }
+    return result;
+  }
+
+  @Override
+  public Object[] getWindowValues() {
+    final Object[] result = new Object[numSlots];
+    for (int i = 0; i < numSlots; i++) {
+      result[i] = slotValue(slotIndex(i));
+    }
+    return result;
+  }
+
+  @Override
+  public void slideViewTo(long timestamp) {
+    final long timeDiff = timestamp - viewEndTimestamp;
+    if (timeDiff <= 0) {
+      return;
+    }
+    final long slotsToAdvance = (timeDiff + slotWidth - 1) / slotWidth;
+    version++;
+    for (long i = 0; i < Math.min(slotsToAdvance, numSlots); i++) {
+      // The oldest view slot becomes the newest future slot
+      setEmpty(slotIndex((int) i));
+    }
+    begin = (int) ((begin + slotsToAdvance) % numSlots);
+    viewEndTimestamp += slotsToAdvance * slotWidth;
+  }
+
+  /**
+   * Returns true if no value has been added to any slot of the window
+   */
+  public boolean isEmpty() {
+    for (int i = 0; i < numSlots; i++) {
+      if (!isEmpty(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the end of the view to {@code timestamp}, forwards or backwards, if the window is empty.
+   * A window with values only slides forward
+   *
+   * @return true if the view was moved
+   */
+  public boolean moveEmptyViewTo(long timestamp) {
+    if (timestamp == viewEndTimestamp || !isEmpty()) {
+      return false;
+    }
+    viewEndTimestamp = timestamp;
+    version++;
+    return true;
+  }
+
+  /**
+   * Returns the approximate number of bytes used by the arrays of the window
+   */
+  public long getMemoryBytes() {
+    return values.length * 8L + (counts == null ? 0 : counts.length * 4L) + emptySlots.length * 8L;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("DoubleWindowStats [function=%s, viewEndTimestamp=%d, values=%s]",
+        function, viewEndTimestamp, Arrays.toString(getWindowValues()));
+  }
+
+  private int indexOf(long timestamp) {
+    final long windowStart = viewEndTimestamp - numViewSlots * slotWidth;
+    if (timestamp < windowStart || timestamp >= windowStart + numSlots * slotWidth) {
+      return -1;
+    }
+    return (int) ((begin + (timestamp - windowStart) / slotWidth) % numSlots);
+  }
+
+  private int slotIndex(int windowSlot) {
+    final int index = begin + windowSlot;
+    return index < numSlots ? index : index - numSlots;
+  }
+
+  private boolean isEmpty(int index) {
+    return (emptySlots[index / BITS_PER_WORD] & (1L << (index % BITS_PER_WORD))) != 0;
+  }
+
+  private void setEmpty(int index) {
+    emptySlots[index / BITS_PER_WORD] |= 1L << (index % BITS_PER_WORD);
+  }
+
+  private double slotValue(int index) {
+    if (isEmpty(index)) {
+      return Double.NaN;
+    }
+    return counts == null ? values[index] : values[index] / counts[index];
+  }
+}
@@ -34,38 +34,35 @@ import java.util.concurrent.ConcurrentHashMap;
  * The actual MetricDefinitionAndTenantId is not kept in the last Map in order to save heap space.
  * It is expected that possibly millions of metrics may be stored in the Matcher and so by only
  * storing the DiminsionPairs instead of the whole MetricDefinitionAndTenantId, a significant amount
- * of heap space will be saved thus reducing swapping. The MetricDefinitionAndTenantId is recreated
- * when returned but since it will be just sent on and then the reference dropped, the object will
- * be quickly and easily garbage collected. Testing shows that this algorithm is faster than keeping
- * the whole MetricDefinitionAndTenantId in the Map.
+ * of heap space will be saved thus reducing swapping.
+ *
+ * For each tenant and metric name, the DimensionSets are indexed by the key and value of their
+ * first DimensionPair. To match a metric, each of its dimensions is used to look up the candidate
+ * DimensionSets and a candidate matches if all of its DimensionPairs are found in the metric. So,
+ * the cost of a match grows with the number of candidate DimensionSets instead of with the number
+ * of subsets of the metric's dimensions.
  */
 public class MetricDefinitionAndTenantIdMatcher {
-  final Map<String, Map<String, Map<DimensionSet, Set<String>>>> byTenantId = new ConcurrentHashMap<>();
+  final Map<String, Map<String, DimensionIndex>> byTenantId = new ConcurrentHashMap<>();
   private final static DimensionSet EMPTY_DIMENSION_SET = new DimensionSet(new DimensionPair[0]);
   @SuppressWarnings("unchecked")
   private final static Set<String> EMPTY_SET = Collections.EMPTY_SET;
 
   public void add(MetricDefinitionAndTenantId metricDefinitionAndTenantId, String alarmDefinitionId) {
-    Map<String, Map<DimensionSet, Set<String>>> byMetricName =
+    Map<String, DimensionIndex> byMetricName =
         byTenantId.get(metricDefinitionAndTenantId.tenantId);
     if (byMetricName == null) {
       byMetricName = new ConcurrentHashMap<>();
       byTenantId.put(metricDefinitionAndTenantId.tenantId, byMetricName);
     }
-    Map<DimensionSet, Set<String>> byDimensionSet =
+    DimensionIndex dimensionIndex =
         byMetricName.get(metricDefinitionAndTenantId.metricDefinition.name);
-    if (byDimensionSet == null) {
-      byDimensionSet = new ConcurrentHashMap<>();
-      byMetricName.put(metricDefinitionAndTenantId.metricDefinition.name, byDimensionSet);
-    }
-    final DimensionSet dimensionSet =
-        createDimensionSet(metricDefinitionAndTenantId.metricDefinition);
-    Set<String> alarmDefIds = byDimensionSet.get(dimensionSet);
-    if (alarmDefIds == null) {
-      alarmDefIds = new HashSet<>();
-      byDimensionSet.put(dimensionSet, alarmDefIds);
+    if (dimensionIndex == null) {
+      dimensionIndex = new DimensionIndex();
+      byMetricName.put(metricDefinitionAndTenantId.metricDefinition.name, dimensionIndex);
     }
-    alarmDefIds.add(alarmDefinitionId);
+    dimensionIndex.add(createDimensionSet(metricDefinitionAndTenantId.metricDefinition),
+        alarmDefinitionId);
   }
 
   private DimensionSet createDimensionSet(MetricDefinition metricDefinition) {
@@ -74,65 +71,75 @@ public class MetricDefinitionAndTenantIdMatcher {
 
   public boolean remove(MetricDefinitionAndTenantId metricDefinitionAndTenantId,
                         final String alarmDefinitionId) {
-    final Map<String, Map<DimensionSet, Set<String>>> byMetricName =
+    final Map<String, DimensionIndex> byMetricName =
         byTenantId.get(metricDefinitionAndTenantId.tenantId);
     if (byMetricName == null) {
       return false;
     }
 
-    final Map<DimensionSet, Set<String>> byDimensionSet =
+    final DimensionIndex dimensionIndex =
         byMetricName.get(metricDefinitionAndTenantId.metricDefinition.name);
-    if (byDimensionSet == null) {
+    if (dimensionIndex == null) {
       return false;
     }
 
     final DimensionSet dimensionSet =
         createDimensionSet(metricDefinitionAndTenantId.metricDefinition);
-    final Set<String> alarmDefinitionIds = byDimensionSet.get(dimensionSet);
-    boolean result = false;
-    if (alarmDefinitionIds != null && !alarmDefinitionIds.isEmpty()) {
-      if (alarmDefinitionIds.remove(alarmDefinitionId)) {
-        result = true;
-        if (alarmDefinitionIds.isEmpty()) {
-          byDimensionSet.remove(dimensionSet);
-          if (byDimensionSet.isEmpty()) {
-            byMetricName.remove(metricDefinitionAndTenantId.metricDefinition.name);
-            if (byMetricName.isEmpty()) {
-              byTenantId.remove(metricDefinitionAndTenantId.tenantId);
-            }
-          }
-        }
+    final boolean result = dimensionIndex.remove(dimensionSet, alarmDefinitionId);
+    if (result && dimensionIndex.isEmpty()) {
+      byMetricName.remove(metricDefinitionAndTenantId.metricDefinition.name);
+      if (byMetricName.isEmpty()) {
+        byTenantId.remove(metricDefinitionAndTenantId.tenantId);
       }
     }
     return result;
   }
 
   public Set<String> match(final MetricDefinitionAndTenantId toMatch) {
-    final Map<String, Map<DimensionSet, Set<String>>> byMetricName = byTenantId.get(toMatch.tenantId);
+    final Map<String, DimensionIndex> byMetricName = byTenantId.get(toMatch.tenantId);
     if (byMetricName == null) {
       return EMPTY_SET;
     }
 
-    final Map<DimensionSet, Set<String>> byDimensionSet =
-        byMetricName.get(toMatch.metricDefinition.name);
-    if (byDimensionSet == null) {
+    final DimensionIndex dimensionIndex = byMetricName.get(toMatch.metricDefinition.name);
+    if (dimensionIndex == null) {
       return EMPTY_SET;
     }
-    final DimensionSet[] possibleDimensionSets =
-        createPossibleDimensionPairs(toMatch.metricDefinition);
-    Set<String> matches = null;
-    for (final DimensionSet dimensionSet : possibleDimensionSets) {
-      final Set<String> alarmDefinitionIds = byDimensionSet.get(dimensionSet);
-      if (alarmDefinitionIds != null) {
-        if (matches == null) {
-          matches = new HashSet<>();
-        }
-        matches.addAll(alarmDefinitionIds);
-      }
-    }
+    final Set<String> matches = dimensionIndex.match(toMatch.metricDefinition.dimensions);
     return matches == null ? EMPTY_SET : matches;
   }
 
+  /**
+   * Returns true if any AlarmDefinition of the tenant uses the metric name, whatever the dimensions
+   */
+  public boolean hasMetricName(final String tenantId, final String metricName) {
+    final Map<String, DimensionIndex> byMetricName = byTenantId.get(tenantId);
+    return (byMetricName != null) && byMetricName.containsKey(metricName);
+  }
+
+  /**
+   * Returns true if at least one AlarmDefinition id matches {@code toMatch} and all of the ones
+   * that match are in {@code known}. Unlike match, no Set is allocated so this can be used for
+   * every Metric. The only objects created are the iterators over the dimensions, which the JIT
+   * can normally remove by escape analysis. benchmarkMatchAllocation in the tests measures this
+   */
+  public boolean matchesOnly(final MetricDefinitionAndTenantId toMatch, final Set<String> known) {
+    final Map<String, DimensionIndex> byMetricName = byTenantId.get(toMatch.tenantId);
+    if (byMetricName == null) {
+      return false;
+    }
+
+    final DimensionIndex dimensionIndex = byMetricName.get(toMatch.metricDefinition.name);
+    if (dimensionIndex == null) {
+      return false;
+    }
+    return dimensionIndex.matchesOnly(toMatch.metricDefinition.dimensions, known);
+  }
+
+  /**
+   * Returns every subset of the dimensions of the {@code metricDefinition}, including the empty
+   * one.
+   */
   protected DimensionSet[] createPossibleDimensionPairs(MetricDefinition metricDefinition) {
     final int dimensionSize =
         metricDefinition.dimensions == null ? 0 : metricDefinition.dimensions.size();
@@ -186,16 +193,274 @@ public class MetricDefinitionAndTenantIdMatcher {
     byTenantId.clear();
   }
 
+  /**
+   * All of the DimensionSets for a single tenant and metric name along with the AlarmDefinition ids
+   * that use each one. The DimensionSets are also indexed by the key and value of their first
+   * DimensionPair so match only has to look at the DimensionSets that could possibly match.
+   *
+   * Adds and removes are expected to be rare and done under an external lock, while match is done
+   * for every Metric from many threads, so the candidate arrays are copy on write.
+   */
+  private static class DimensionIndex {
+    private final Map<DimensionSet, IndexedDimensionSet> byDimensionSet =
+        new ConcurrentHashMap<>();
+    /** Indexed by key and then value of the first DimensionPair */
+    private final Map<String, Map<String, IndexedDimensionSet[]>> byFirstPair =
+        new ConcurrentHashMap<>();
+    /** Indexed by key of the first DimensionPair when that DimensionPair has a null value */
+    private final Map<String, IndexedDimensionSet[]> byFirstPairNullValue =
+        new ConcurrentHashMap<>();
+
+    public void add(DimensionSet dimensionSet, String alarmDefinitionId) {
+      IndexedDimensionSet indexed = byDimensionSet.get(dimensionSet);
+      if (indexed == null) {
+        indexed = new IndexedDimensionSet(dimensionSet);
+        byDimensionSet.put(dimensionSet, indexed);
+        if (dimensionSet.pairs.length > 0) {
+          addCandidate(dimensionSet.pairs[0], indexed);
+        }
+      }
+      indexed.add(alarmDefinitionId);
+    }
+
+    public boolean remove(DimensionSet dimensionSet, String alarmDefinitionId) {
+      final IndexedDimensionSet indexed = byDimensionSet.get(dimensionSet);
+      if (indexed == null || !indexed.remove(alarmDefinitionId)) {
+        return false;
+      }
+      if (indexed.isEmpty()) {
+        byDimensionSet.remove(dimensionSet);
+        if (dimensionSet.pairs.length > 0) {
+          removeCandidate(dimensionSet.pairs[0], indexed);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the AlarmDefinition ids for all of the DimensionSets that are contained in
+     * {@code dimensions} or null if there are none
+     */
+    public Set<String> match(final Map<String, String> dimensions) {
+      Set<String> matches = null;
+      final IndexedDimensionSet noDimensions = byDimensionSet.get(EMPTY_DIMENSION_SET);
+      if (noDimensions != null) {
+        matches = new HashSet<>();
+        noDimensions.addTo(matches);
+      }
+      if (dimensions == null || dimensions.isEmpty() || byFirstPair.isEmpty()
+          && byFirstPairNullValue.isEmpty()) {
+        return matches;
+      }
+      for (final Map.Entry<String, String> entry : dimensions.entrySet()) {
+        final IndexedDimensionSet[] candidates = getCandidates(entry.getKey(), entry.getValue());
+        if (candidates == null) {
+          continue;
+        }
+        for (final IndexedDimensionSet candidate : candidates) {
+          if (candidate.isContainedIn(dimensions)) {
+            if (matches == null) {
+              matches = new HashSet<>();
+            }
+            candidate.addTo(matches);
+          }
+        }
+      }
+      return matches;
+    }
+
+    public boolean matchesOnly(final Map<String, String> dimensions, final Set<String> known) {
+      boolean found = false;
+      final IndexedDimensionSet noDimensions = byDimensionSet.get(EMPTY_DIMENSION_SET);
+      if (noDimensions != null) {
+        if (!noDimensions.isIn(known)) {
+          return false;
+        }
+        found = true;
+      }
+      if (dimensions == null || dimensions.isEmpty()) {
+        return found;
+      }
+      for (final Map.Entry<String, String> entry : dimensions.entrySet()) {
+        final IndexedDimensionSet[] candidates = getCandidates(entry.getKey(), entry.getValue());
+        if (candidates == null) {
+          continue;
+        }
+        for (final IndexedDimensionSet candidate : candidates) {
+          if (candidate.isContainedIn(dimensions)) {
+            if (!candidate.isIn(known)) {
+              return false;
+            }
+            found = true;
+          }
+        }
+      }
+      return found;
+    }
+
+    public boolean isEmpty() {
+      return byDimensionSet.isEmpty();
+    }
+
+    private IndexedDimensionSet[] getCandidates(final String key, final String value) {
+      if (value == null) {
+        return byFirstPairNullValue.get(key);
+      }
+      final Map<String, IndexedDimensionSet[]> byValue = byFirstPair.get(key);
+      if (byValue == null) {
+        return null;
+      }
+      return byValue.get(value);
+    }
+
+    private void addCandidate(final DimensionPair first, final IndexedDimensionSet indexed) {
+      final Map<String, IndexedDimensionSet[]> byValue;
+      final String value;
+      if (first.value == null) {
+        byValue = byFirstPairNullValue;
+        value = first.key;
+      } else {
+        Map<String, IndexedDimensionSet[]> existing = byFirstPair.get(first.key);
+        if (existing == null) {
+          existing = new ConcurrentHashMap<>();
+          byFirstPair.put(first.key, existing);
+        }
+        byValue = existing;
+        value = first.value;
+      }
+      final IndexedDimensionSet[] candidates = byValue.get(value);
+      if (candidates == null) {
+        byValue.put(value, new IndexedDimensionSet[] {indexed});
+      } else {
+        final IndexedDimensionSet[] newCandidates =
+            Arrays.copyOf(candidates, candidates.length + 1);
+        newCandidates[candidates.length] = indexed;
+        byValue.put(value, newCandidates);
+      }
+    }
+
+    private void removeCandidate(final DimensionPair first, final IndexedDimensionSet indexed) {
+      if (first.value == null) {
+        if (removeCandidate(byFirstPairNullValue, first.key, indexed)) {
+          byFirstPairNullValue.remove(first.key);
+        }
+        return;
+      }
+      final Map<String, IndexedDimensionSet[]> byValue = byFirstPair.get(first.key);
+      if (byValue != null && removeCandidate(byValue, first.value, indexed)) {
+        byValue.remove(first.value);
+        if (byValue.isEmpty()) {
+          byFirstPair.remove(first.key);
+        }
+      }
+    }
+
+    /**
+     * Returns true if {@code indexed} was the only candidate for {@code key} so the caller should
+     * remove the key
+     */
+    private boolean removeCandidate(final Map<String, IndexedDimensionSet[]> byKey,
+        final String key, final IndexedDimensionSet indexed) {
+      final IndexedDimensionSet[] candidates = byKey.get(key);
+      if (candidates == null) {
+        return false;
+      }
+      int index = -1;
+      for (int i = 0; i < candidates.length; i++) {
+        if (candidates[i] == indexed) {
+          index = i;
+          break;
+        }
+      }
+      if (index < 0) {
+        return false;
+      }
+      if (candidates.length == 1) {
+        return true;
+      }
+      final IndexedDimensionSet[] newCandidates = new IndexedDimensionSet[candidates.length - 1];
+      System.arraycopy(candidates, 0, newCandidates, 0, index);
+      System.arraycopy(candidates, index + 1, newCandidates, index, newCandidates.length - index);
+      byKey.put(key, newCandidates);
+      return false;
+    }
+  }
+
+  private static class IndexedDimensionSet {
+    private final DimensionPair[] pairs;
+    private final Set<String> alarmDefinitionIds = new HashSet<>();
+    /** Copy of alarmDefinitionIds so it can be read without locking or allocating an Iterator */
+    private volatile String[] alarmDefinitionIdArray = new String[0];
+
+    public IndexedDimensionSet(DimensionSet dimensionSet) {
+      this.pairs = dimensionSet.pairs;
+    }
+
+    public void add(final String alarmDefinitionId) {
+      if (alarmDefinitionIds.add(alarmDefinitionId)) {
+        alarmDefinitionIdArray = alarmDefinitionIds.toArray(new String[alarmDefinitionIds.size()]);
+      }
+    }
+
+    public boolean remove(final String alarmDefinitionId) {
+      if (!alarmDefinitionIds.remove(alarmDefinitionId)) {
+        return false;
+      }
+      alarmDefinitionIdArray = alarmDefinitionIds.toArray(new String[alarmDefinitionIds.size()]);
+      return true;
+    }
+
+    public boolean isEmpty() {
+      return alarmDefinitionIds.isEmpty();
+    }
+
+    public void addTo(final Set<String> matches) {
+      for (final String alarmDefinitionId : alarmDefinitionIdArray) {
+        matches.add(alarmDefinitionId);
+      }
+    }
+
+    public boolean isIn(final Set<String> known) {
+      for (final String alarmDefinitionId : alarmDefinitionIdArray) {
+        if (!known.contains(alarmDefinitionId)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns true if every DimensionPair is in {@code dimensions}
+     */
+    public boolean isContainedIn(final Map<String, String> dimensions) {
+      if (pairs.length > dimensions.size()) {
+        return false;
+      }
+      for (final DimensionPair pair : pairs) {
+        final String value = dimensions.get(pair.key);
+        if (pair.value == null) {
+          if (value != null || !dimensions.containsKey(pair.key)) {
+            return false;
+          }
+        } else if (!pair.value.equals(value)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
   protected static class DimensionSet {
     final DimensionPair[] pairs;
+    private final int hashCode;
 
     public DimensionSet(DimensionPair... pairs) {
       Arrays.sort(pairs);
       this.pairs = pairs;
+      this.hashCode = calculateHashCode(pairs);
     }
 
-    @Override
-    public int hashCode() {
+    private static int calculateHashCode(DimensionPair[] pairs) {
       int result = 1;
       final int prime = 31;
       for (DimensionPair pair : pairs) {
@@ -204,6 +469,11 @@ public class MetricDefinitionAndTenantIdMatcher {
       return result;
     }
 
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
     @Override
     public boolean equals(Object obj) {
       if (this == obj) {
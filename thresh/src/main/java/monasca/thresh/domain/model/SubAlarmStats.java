@@ -39,10 +39,15 @@ public class SubAlarmStats {
 
   private final int slotWidth;
   private SubAlarm subAlarm;
-  private SlidingWindowStats<?> stats;
+  private WindowStats stats;
+  /** The stats if the function is numeric, null for CONCAT */
+  private DoubleWindowStats numericStats;
   /** The number of times we can observe an empty window before transitioning to UNDETERMINED state. */
   protected int emptyWindowObservationThreshold;
   private int emptyWindowObservations;
+  /** End of the stats view, moved the same way the stats move it when the window slides */
+  private long viewEndTimestamp;
+  private boolean evaluationPending;
 
   public SubAlarmStats(SubAlarm subAlarm, long viewEndTimestamp) {
     this(subAlarm, TimeResolution.MINUTES, viewEndTimestamp);
@@ -56,24 +61,27 @@ public class SubAlarmStats {
   }
 
   @SuppressWarnings("unchecked")
-	private void initialize(SubAlarm subAlarm, TimeResolution timeResolution, long viewEndTimestamp) {
-  	if (subAlarm.getExpression().getFunction() == AggregateFunction.CONCAT) {
-  		this.stats =
-	        new SlidingWindowStats<String>((Class<? extends Statistic<String>>) subAlarm.getExpression().getFunction().toStatistic(),
-	            timeResolution, slotWidth, subAlarm.getExpression().getPeriods(), FUTURE_SLOTS,
-	            viewEndTimestamp);
-  	} else {
-	    this.stats =
-	        new SlidingWindowStats<Double>((Class<? extends Statistic<Double>>) subAlarm.getExpression().getFunction().toStatistic(),
-	            timeResolution, slotWidth, subAlarm.getExpression().getPeriods(), FUTURE_SLOTS,
-	            viewEndTimestamp);
-  	}
+  private void initialize(SubAlarm subAlarm, TimeResolution timeResolution, long viewEndTimestamp) {
+    if (subAlarm.getExpression().getFunction() == AggregateFunction.CONCAT) {
+      this.numericStats = null;
+      this.stats =
+          new ConcatWindowStats(new SlidingWindowStats<String>(
+              (Class<? extends Statistic<String>>) subAlarm.getExpression().getFunction()
+                  .toStatistic(), timeResolution, slotWidth, subAlarm.getExpression()
+                  .getPeriods(), FUTURE_SLOTS, viewEndTimestamp));
+    } else {
+      this.numericStats =
+          new DoubleWindowStats(subAlarm.getExpression().getFunction(), slotWidth, subAlarm
+              .getExpression().getPeriods(), FUTURE_SLOTS, viewEndTimestamp);
+      this.stats = numericStats;
+    }
     int period = subAlarm.getExpression().getPeriod();
     int periodMinutes = period < 60 ? 1 : period / 60; // Assumes the period is in seconds so we
                                                        // convert to minutes
     emptyWindowObservationThreshold =
         periodMinutes * subAlarm.getExpression().getPeriods() * UNDETERMINED_COEFFICIENT;
     emptyWindowObservations = 0;
+    this.viewEndTimestamp = viewEndTimestamp;
   }
 
   /**
@@ -83,13 +91,27 @@ public class SubAlarmStats {
    * @return true if the alarm's state changed, else false.
    */
   public boolean evaluateAndSlideWindow(long slideToTimestamp) {
+    try {
+      return evaluateWindow();
+    } finally {
+      slideWindow(slideToTimestamp);
+    }
+  }
+
+  /**
+   * Evaluates the {@link #subAlarm} for the current stats window without sliding it. Used when the
+   * window is shared, so every SubAlarmStats using it is evaluated before it slides.
+   *
+   * @return true if the alarm's state changed, else false.
+   */
+  public boolean evaluateWindow() {
+    evaluationPending = false;
     try {
       return evaluate();
     } catch (Exception e) {
       logger.error("Failed to evaluate {}", this, e);
+      evaluationPending = true;
       return false;
-    } finally {
-      slideWindow(slideToTimestamp);
     }
   }
 
@@ -101,15 +123,80 @@ public class SubAlarmStats {
    */
   public void slideWindow(long slideToTimestamp) {
     stats.slideViewTo(slideToTimestamp);
+    if (slideToTimestamp > viewEndTimestamp) {
+      final long slots = (slideToTimestamp - viewEndTimestamp + slotWidth - 1) / slotWidth;
+      viewEndTimestamp += slots * slotWidth;
+    }
+  }
+
+  /**
+   * Returns the first time at which slideWindow will move the window
+   */
+  public long getNextSlideTimestamp() {
+    return viewEndTimestamp + 1;
+  }
+
+  /**
+   * Returns true if a value with the {@code timestamp} would be seen by the next evaluation. Values
+   * for the future slots are not seen until the window has slid
+   */
+  public boolean isInView(long timestamp) {
+    return timestamp <= viewEndTimestamp;
+  }
+
+  /**
+   * Returns true if evaluating again could change the state even if no value is added and the
+   * window doesn't slide. That is the case while empty windows are being counted towards
+   * UNDETERMINED or when the last evaluation failed
+   */
+  public boolean isEvaluationPending() {
+    return evaluationPending;
   }
 
   /**
    * Returns the stats.
    */
-  public SlidingWindowStats<?> getStats() {
+  public WindowStats getStats() {
     return stats;
   }
 
+  /**
+   * Returns the stats if the function is numeric, else null.
+   */
+  public DoubleWindowStats getNumericStats() {
+    return numericStats;
+  }
+
+  /**
+   * Replaces the numeric stats by the {@code window}, which may be shared with other SubAlarmStats
+   * for the same metric, function, period and periods. The view then ends where the window's does
+   */
+  public void useWindow(DoubleWindowStats window) {
+    if (numericStats == null) {
+      throw new IllegalStateException("Only numeric stats can be replaced");
+    }
+    this.numericStats = window;
+    this.stats = window;
+    this.viewEndTimestamp = window.getViewEndTimestamp();
+  }
+
+  /**
+   * Moves the end of the view to {@code viewEndTimestamp} if no value has been added to the
+   * numeric window yet. Used when the time the windows are slid by is only known after the
+   * SubAlarmStats were created
+   *
+   * @return true if the view was moved
+   */
+  public boolean alignEmptyWindow(long viewEndTimestamp) {
+    if (numericStats == null) {
+      return false;
+    }
+    numericStats.moveEmptyViewTo(viewEndTimestamp);
+    final boolean moved = this.viewEndTimestamp != numericStats.getViewEndTimestamp();
+    this.viewEndTimestamp = numericStats.getViewEndTimestamp();
+    return moved;
+  }
+
   /**
    * Returns the SubAlarm.
    */
@@ -129,6 +216,9 @@ public class SubAlarmStats {
    * @throws IllegalStateException if the {@code timestamp} is outside of the {@link #stats} window
    */
   boolean evaluate() {
+    if (numericStats != null) {
+      return evaluateNumeric();
+    }
   	Object[] values = stats.getViewValues();
     boolean thresholdExceeded = false;
     boolean hasEmptyWindows = false;
@@ -178,6 +268,10 @@ public class SubAlarmStats {
     	}
     }
 
+    return evaluateEmptyWindows(thresholdExceeded, hasEmptyWindows);
+  }
+
+  private boolean evaluateEmptyWindows(boolean thresholdExceeded, boolean hasEmptyWindows) {
     if (thresholdExceeded && !hasEmptyWindows) {
       if (!shouldSendStateChange(AlarmState.ALARM)) {
         return false;
@@ -188,6 +282,9 @@ public class SubAlarmStats {
 
     // Window is empty at this point
     emptyWindowObservations++;
+    // With a value in the view the count stays at 1 however often the same view is evaluated
+    evaluationPending =
+        !thresholdExceeded && emptyWindowObservations < emptyWindowObservationThreshold;
 
     if ((emptyWindowObservations >= emptyWindowObservationThreshold)
         && shouldSendStateChange(AlarmState.UNDETERMINED) && !subAlarm.isSporadicMetric()) {
@@ -198,6 +295,34 @@ public class SubAlarmStats {
     return false;
   }
 
+  /**
+   * Same as the evaluation of the Object values but reads the doubles straight from the window
+   */
+  private boolean evaluateNumeric() {
+    boolean thresholdExceeded = false;
+    boolean hasEmptyWindows = false;
+    for (int i = 0; i < numericStats.getNumViewSlots(); i++) {
+      final double value = numericStats.getViewValue(i);
+      if (Double.isNaN(value)) {
+        hasEmptyWindows = true;
+        continue;
+      }
+      emptyWindowObservations = 0;
+
+      // Check if value is OK
+      if (!subAlarm.getExpression().getOperator()
+          .evaluate(value, subAlarm.getExpression().getThreshold())) {
+        if (!shouldSendStateChange(AlarmState.OK)) {
+          return false;
+        }
+        setSubAlarmState(AlarmState.OK);
+        return true;
+      }
+      thresholdExceeded = true;
+    }
+    return evaluateEmptyWindows(thresholdExceeded, hasEmptyWindows);
+  }
+
   private boolean shouldSendStateChange(AlarmState newState) {
     return !subAlarm.getState().equals(newState) || subAlarm.isNoState();
   }
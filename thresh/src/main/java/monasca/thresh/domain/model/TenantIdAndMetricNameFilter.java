@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter keyed on tenant id and metric name. If mightContain returns false, no
+ * AlarmDefinition for the tenant uses the metric name so the Metric can be dropped without
+ * searching the MetricDefinitionAndTenantIdMatcher.
+ *
+ * Entries can't be removed from a Bloom filter, so when an AlarmDefinition is deleted a new filter
+ * has to be built from the remaining AlarmDefinitions.
+ *
+ * The hashes are built from String.hashCode() of the tenant id and metric name. Those are cached
+ * by the Strings so checking a Metric doesn't allocate or rehash the Strings.
+ *
+ * mightContain may be called from many threads while add is running, but adds must be done
+ * under an external lock.
+ */
+public class TenantIdAndMetricNameFilter {
+  private static final int BITS_PER_WORD = 64;
+  private static final double LN2 = Math.log(2);
+
+  private final AtomicLongArray bits;
+  private final int numBits;
+  private final int numHashes;
+  private final int expectedInsertions;
+  private volatile int insertions;
+
+  /**
+   * @param expectedInsertions number of tenant id and metric name pairs the filter is sized for
+   * @param falsePositiveProbability wanted false positive probability at expectedInsertions
+   */
+  public TenantIdAndMetricNameFilter(int expectedInsertions, double falsePositiveProbability) {
+    if (expectedInsertions <= 0) {
+      throw new IllegalArgumentException("expectedInsertions must be > 0 but was "
+          + expectedInsertions);
+    }
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException("falsePositiveProbability must be > 0 and < 1 but was "
+          + falsePositiveProbability);
+    }
+    this.expectedInsertions = expectedInsertions;
+    final long optimalBits =
+        (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (LN2 * LN2));
+    final long cappedBits = Math.min(optimalBits, Integer.MAX_VALUE - BITS_PER_WORD);
+    final long words = (cappedBits + BITS_PER_WORD - 1) / BITS_PER_WORD;
+    this.bits = new AtomicLongArray((int) words);
+    this.numBits = (int) (words * BITS_PER_WORD);
+    this.numHashes =
+        Math.max(1, (int) Math.round((double) numBits / expectedInsertions * LN2));
+  }
+
+  /**
+   * Returns true if the add set at least one bit. Only those adds are counted as insertions, so
+   * adding a pair that is already in the filter doesn't make it look fuller than it is
+   */
+  public boolean add(String tenantId, String metricName) {
+    final int hash1 = hash1(tenantId, metricName);
+    final int hash2 = hash2(hash1);
+    boolean changed = false;
+    for (int i = 0; i < numHashes; i++) {
+      final int bit = bitIndex(hash1, hash2, i);
+      final int word = bit / BITS_PER_WORD;
+      final long mask = 1L << (bit % BITS_PER_WORD);
+      while (true) {
+        final long current = bits.get(word);
+        if ((current & mask) != 0) {
+          break;
+        }
+        if (bits.compareAndSet(word, current, current | mask)) {
+          changed = true;
+          break;
+        }
+      }
+    }
+    if (changed) {
+      insertions++;
+    }
+    return changed;
+  }
+
+  /**
+   * Returns false if no add was done for this tenant id and metric name. True does not mean one
+   * was done, only that one might have been
+   */
+  public boolean mightContain(String tenantId, String metricName) {
+    final int hash1 = hash1(tenantId, metricName);
+    final int hash2 = hash2(hash1);
+    for (int i = 0; i < numHashes; i++) {
+      final int bit = bitIndex(hash1, hash2, i);
+      if ((bits.get(bit / BITS_PER_WORD) & (1L << (bit % BITS_PER_WORD))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if more pairs have been added than the filter was sized for, so it should be
+   * replaced by a larger one
+   */
+  public boolean isOverCapacity() {
+    return insertions > expectedInsertions;
+  }
+
+  /**
+   * Returns the number of adds that set a bit. Adding the same pair again is not counted, nor is
+   * the rare new pair whose bits were all already set
+   */
+  public int getInsertions() {
+    return insertions;
+  }
+
+  public int getExpectedInsertions() {
+    return expectedInsertions;
+  }
+
+  /**
+   * Returns the false positive probability expected for the number of adds done so far
+   */
+  public double getExpectedFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-(double) numHashes * insertions / numBits), numHashes);
+  }
+
+  /**
+   * Returns the size in bytes of the bit array
+   */
+  public long getMemoryBytes() {
+    return (long) bits.length() * (BITS_PER_WORD / Byte.SIZE);
+  }
+
+  private int bitIndex(final int hash1, final int hash2, final int i) {
+    final int combined = hash1 + i * hash2;
+    return (combined & Integer.MAX_VALUE) % numBits;
+  }
+
+  private static int hash1(final String tenantId, final String metricName) {
+    return mix(tenantId.hashCode() * 31 + metricName.hashCode());
+  }
+
+  private static int hash2(final int hash1) {
+    // Must be odd so it can't cycle through only part of the bits
+    return mix(hash1 ^ 0x9e3779b9) | 1;
+  }
+
+  /**
+   * Finalization step of MurmurHash3 to spread the bits of String.hashCode()
+   */
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+/**
+ * Sliding window of statistics for a SubAlarm. The window is made of the slots for the periods
+ * that are evaluated, the view, followed by slots for future periods. Each slot aggregates the
+ * values whose timestamps fall in it.
+ */
+public interface WindowStats {
+  /**
+   * Adds the {@code value} to the slot for the {@code timestamp}
+   *
+   * @return false if the timestamp is outside of the window
+   */
+  boolean addValue(double value, long timestamp);
+
+  /**
+   * Adds the {@code value} to the slot for the {@code timestamp}
+   *
+   * @return false if the timestamp is outside of the window
+   */
+  boolean addValue(String value, long timestamp);
+
+  /**
+   * Returns the value of the slot for the {@code timestamp}, NaN if the slot is empty
+   *
+   * @throws IllegalStateException if the timestamp is outside of the window
+   */
+  double getValue(long timestamp);
+
+  /**
+   * Returns the values of the view slots, oldest first
+   */
+  Object[] getViewValues();
+
+  /**
+   * Returns the values of all the slots, oldest first
+   */
+  Object[] getWindowValues();
+
+  /**
+   * Slides the window by whole slots until the view ends at or after the {@code timestamp}
+   */
+  void slideViewTo(long timestamp);
+}
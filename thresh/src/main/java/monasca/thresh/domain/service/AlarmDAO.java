@@ -22,7 +22,9 @@ import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Alarm DAO.
@@ -37,15 +39,32 @@ public interface AlarmDAO {
   /** List all Alarms */
   public List<Alarm> listAll();
 
+  /**
+   * Passes all Alarms to the {@code handler} one at a time as they are read, so they don't all
+   * have to be in memory at once
+   */
+  void streamAll(AlarmHandler handler);
+
   /** Updates the alarm state. */
   void updateState(String id, AlarmState state);
 
+  /** Updates the state of many alarms, the keys are the alarm ids */
+  void updateStates(Map<String, AlarmState> states);
+
   /** Adds a new AlarmedMetric to an Alarm */
   void addAlarmedMetric(String id, MetricDefinitionAndTenantId metricDefinition);
 
   /** Create a new Alarm */
   void createAlarm(Alarm newAlarm);
 
+  /** Create new Alarms in one transaction */
+  void createAlarms(Collection<Alarm> newAlarms);
+
   /** Update SubAlarms when AlarmDefinition changes */
   int updateSubAlarmExpressions(final String alarmSubExpressionId, AlarmSubExpression alarmSubExpression);
+
+  /** Receives the Alarms read by streamAll */
+  interface AlarmHandler {
+    void handle(Alarm alarm);
+  }
 }
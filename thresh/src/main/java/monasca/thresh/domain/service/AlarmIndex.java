@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory index of the Alarms of one AlarmDefinition, so a new metric can be placed without
+ * loading every Alarm of the AlarmDefinition.
+ *
+ * Alarms and their metrics are keyed by their values of the match by dimensions, in the order of
+ * the AlarmDefinition's match by, with null for a dimension they don't have. An Alarm's key is made
+ * of the values of all of its metrics. Looking up a key only returns the Alarms or metrics whose
+ * key is compatible with it, that is has the same value or null for every dimension. These are
+ * candidates that still need to be checked against the AlarmDefinition. Not thread safe.
+ */
+public class AlarmIndex {
+  /** Above this many match by dimensions the compatible keys are scanned instead of enumerated */
+  private static final int MAX_ENUMERATED_DIMENSIONS = 6;
+
+  private final AlarmDefinition alarmDefinition;
+  private final List<String> matchBy;
+  private final Map<String, Alarm> alarms = new LinkedHashMap<>();
+  private final Map<String, List<String>> alarmKeys = new HashMap<>();
+  private final Map<List<String>, Map<String, Alarm>> alarmsByKey = new HashMap<>();
+  private final Map<MetricDefinitionAndTenantId, Integer> metricCounts = new HashMap<>();
+  private final Map<List<String>, Set<MetricDefinitionAndTenantId>> metricsByKey = new HashMap<>();
+
+  public AlarmIndex(AlarmDefinition alarmDefinition, Collection<Alarm> alarms) {
+    this.alarmDefinition = alarmDefinition;
+    this.matchBy = alarmDefinition.getMatchBy();
+    for (final Alarm alarm : alarms) {
+      add(alarm);
+    }
+  }
+
+  public AlarmDefinition getAlarmDefinition() {
+    return alarmDefinition;
+  }
+
+  public void add(Alarm alarm) {
+    remove(alarm.getId());
+    alarms.put(alarm.getId(), alarm);
+    indexAlarm(alarm);
+    for (final MetricDefinitionAndTenantId metric : alarm.getAlarmedMetrics()) {
+      addMetric(metric);
+    }
+  }
+
+  /**
+   * Adds the metric to the Alarm, which must be in this index
+   */
+  public void addAlarmedMetric(Alarm alarm, MetricDefinitionAndTenantId metric) {
+    if (alarm.getAlarmedMetrics().contains(metric)) {
+      return;
+    }
+    alarm.addAlarmedMetric(metric);
+    unindexAlarm(alarm.getId());
+    indexAlarm(alarm);
+    addMetric(metric);
+  }
+
+  public Alarm remove(String alarmId) {
+    final Alarm alarm = alarms.remove(alarmId);
+    if (alarm != null) {
+      unindexAlarm(alarmId);
+      for (final MetricDefinitionAndTenantId metric : alarm.getAlarmedMetrics()) {
+        removeMetric(metric);
+      }
+    }
+    return alarm;
+  }
+
+  public boolean contains(MetricDefinitionAndTenantId metric) {
+    return metricCounts.containsKey(metric);
+  }
+
+  public Alarm get(String alarmId) {
+    return alarms.get(alarmId);
+  }
+
+  public Collection<Alarm> getAlarms() {
+    return Collections.unmodifiableCollection(alarms.values());
+  }
+
+  /**
+   * Returns the Alarms the metric could fit in
+   */
+  public List<Alarm> findAlarms(MetricDefinition metric) {
+    final List<Alarm> result = new ArrayList<>();
+    for (final Map<String, Alarm> found : findCompatible(alarmsByKey, key(metric))) {
+      result.addAll(found.values());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the metrics of the indexed Alarms that could fit in the given Alarm
+   */
+  public List<MetricDefinitionAndTenantId> findMetrics(Alarm alarm) {
+    final List<MetricDefinitionAndTenantId> result = new ArrayList<>();
+    for (final Set<MetricDefinitionAndTenantId> found : findCompatible(metricsByKey, key(alarm))) {
+      result.addAll(found);
+    }
+    return result;
+  }
+
+  public int size() {
+    return alarms.size();
+  }
+
+  public boolean isEmpty() {
+    return alarms.isEmpty();
+  }
+
+  /**
+   * Returns the values of the match by dimensions of the metric, null for the ones it doesn't have
+   */
+  public List<String> key(MetricDefinition metric) {
+    final String[] key = new String[matchBy.size()];
+    if (metric.dimensions != null) {
+      for (int i = 0; i < key.length; i++) {
+        key[i] = metric.dimensions.get(matchBy.get(i));
+      }
+    }
+    return Arrays.asList(key);
+  }
+
+  /**
+   * Returns the values of the match by dimensions of all of the Alarm's metrics
+   */
+  public List<String> key(Alarm alarm) {
+    final String[] key = new String[matchBy.size()];
+    for (final MetricDefinitionAndTenantId metric : alarm.getAlarmedMetrics()) {
+      if (metric.metricDefinition.dimensions == null) {
+        continue;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (key[i] == null) {
+          key[i] = metric.metricDefinition.dimensions.get(matchBy.get(i));
+        }
+      }
+    }
+    return Arrays.asList(key);
+  }
+
+  private void indexAlarm(Alarm alarm) {
+    final List<String> key = key(alarm);
+    alarmKeys.put(alarm.getId(), key);
+    Map<String, Alarm> keyed = alarmsByKey.get(key);
+    if (keyed == null) {
+      keyed = new LinkedHashMap<>();
+      alarmsByKey.put(key, keyed);
+    }
+    keyed.put(alarm.getId(), alarm);
+  }
+
+  private void unindexAlarm(String alarmId) {
+    final List<String> key = alarmKeys.remove(alarmId);
+    final Map<String, Alarm> keyed = alarmsByKey.get(key);
+    if (keyed != null) {
+      keyed.remove(alarmId);
+      if (keyed.isEmpty()) {
+        alarmsByKey.remove(key);
+      }
+    }
+  }
+
+  private void addMetric(MetricDefinitionAndTenantId metric) {
+    final Integer count = metricCounts.get(metric);
+    if (count != null) {
+      metricCounts.put(metric, count + 1);
+      return;
+    }
+    metricCounts.put(metric, 1);
+    final List<String> key = key(metric.metricDefinition);
+    Set<MetricDefinitionAndTenantId> keyed = metricsByKey.get(key);
+    if (keyed == null) {
+      keyed = new LinkedHashSet<>();
+      metricsByKey.put(key, keyed);
+    }
+    keyed.add(metric);
+  }
+
+  private void removeMetric(MetricDefinitionAndTenantId metric) {
+    final Integer count = metricCounts.get(metric);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      metricCounts.put(metric, count - 1);
+      return;
+    }
+    metricCounts.remove(metric);
+    final List<String> key = key(metric.metricDefinition);
+    final Set<MetricDefinitionAndTenantId> keyed = metricsByKey.get(key);
+    if (keyed != null) {
+      keyed.remove(metric);
+      if (keyed.isEmpty()) {
+        metricsByKey.remove(key);
+      }
+    }
+  }
+
+  /**
+   * If the key has every value, the compatible keys are the ones with some of its values replaced
+   * by null and are looked up directly. Otherwise any value fits where the key has null, so all of
+   * the keys are checked.
+   */
+  private <T> List<T> findCompatible(Map<List<String>, T> index, List<String> key) {
+    final List<T> result = new LinkedList<>();
+    if (!key.contains(null) && key.size() <= MAX_ENUMERATED_DIMENSIONS) {
+      final String[] masked = new String[key.size()];
+      for (int mask = 0; mask < (1 << key.size()); mask++) {
+        for (int i = 0; i < masked.length; i++) {
+          masked[i] = (mask & (1 << i)) == 0 ? key.get(i) : null;
+        }
+        final T found = index.get(Arrays.asList(masked));
+        if (found != null) {
+          result.add(found);
+        }
+      }
+    } else {
+      for (final Map.Entry<List<String>, T> entry : index.entrySet()) {
+        if (compatible(entry.getKey(), key)) {
+          result.add(entry.getValue());
+        }
+      }
+    }
+    return result;
+  }
+
+  private static boolean compatible(List<String> key, List<String> other) {
+    for (int i = 0; i < key.size(); i++) {
+      final String value = key.get(i);
+      final String otherValue = other.get(i);
+      if (value != null && otherValue != null && !value.equals(otherValue)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Low watermark of the event time over a number of sources, such as the upstream tasks of a bolt.
+ * Each source reports the event time it has reached and the low watermark is the smallest of
+ * these, so every source has reached it.
+ *
+ * A source that hasn't reported for idleSeconds is left out, so a source without any traffic
+ * doesn't hold the others back. If every source is idle the low watermark follows the clock.
+ * There is no watermark until every expected source has reported or idleSeconds have passed since
+ * the start. The watermark never moves backwards. Not thread safe.
+ */
+public class LowWatermark {
+  public static final long NONE = Long.MIN_VALUE;
+
+  private final int expectedSources;
+  private final long idleSeconds;
+  private final long startTime;
+  private final Map<Integer, Source> sources = new HashMap<>();
+  private long watermark = NONE;
+
+  /**
+   * @param expectedSources number of sources to wait for, 0 if unknown
+   */
+  public LowWatermark(int expectedSources, long idleSeconds, long now) {
+    this.expectedSources = expectedSources;
+    this.idleSeconds = idleSeconds;
+    this.startTime = now;
+  }
+
+  /**
+   * Records that the {@code source} has reached {@code eventTime}. An earlier event time than it
+   * already reached only counts as a sign of life
+   */
+  public void update(int source, long eventTime, long now) {
+    Source reported = sources.get(source);
+    if (reported == null) {
+      reported = new Source(eventTime);
+      sources.put(source, reported);
+    }
+    reported.eventTime = Math.max(reported.eventTime, eventTime);
+    reported.lastUpdate = now;
+  }
+
+  /**
+   * Returns the low watermark at the time {@code now}, or NONE if it is not known yet
+   */
+  public long get(long now) {
+    final boolean started = now - startTime >= idleSeconds;
+    if (sources.size() < expectedSources && !started) {
+      return watermark;
+    }
+    long low = Long.MAX_VALUE;
+    for (Source source : sources.values()) {
+      if (now - source.lastUpdate < idleSeconds) {
+        low = Math.min(low, source.eventTime);
+      }
+    }
+    if (low == Long.MAX_VALUE) {
+      if (sources.isEmpty() && !started) {
+        return watermark;
+      }
+      low = now;
+    }
+    watermark = Math.max(watermark, low);
+    return watermark;
+  }
+
+  private static class Source {
+    private long eventTime;
+    private long lastUpdate;
+
+    private Source(long eventTime) {
+      this.eventTime = eventTime;
+    }
+  }
+}
@@ -17,17 +17,33 @@
 
 package monasca.thresh.domain.service;
 
+import monasca.common.model.alarm.AggregateFunction;
+import monasca.thresh.domain.model.DoubleWindowStats;
 import monasca.thresh.domain.model.SubAlarmStats;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * SubAlarmStats repository.
+ *
+ * SubAlarmStats that get values from this metric alone and have the same numeric function,
+ * period and periods share one window, so a value is aggregated once for all of them and each
+ * SubAlarmStats only applies its own operator and threshold. A shared window is released when
+ * the last SubAlarmStats using it is removed.
  */
 public class SubAlarmStatsRepository {
   private final Map<String, SubAlarmStats> subAlarmStats = new HashMap<String, SubAlarmStats>();
+  private final Map<WindowKey, SharedWindow> sharedWindows = new HashMap<>();
+  /** The SubAlarmStats using a shared window */
+  private final Set<SubAlarmStats> sharing = new HashSet<>();
+  /** The SubAlarmStats with a window of their own */
+  private final Set<SubAlarmStats> notSharing = new HashSet<>();
 
   /**
    * Creates a new SubAlarmStats instance for the {@code subAlarm} and {@code viewEndTimestamp} and
@@ -36,6 +52,7 @@ public class SubAlarmStatsRepository {
   public void add(final String subAlarmId, SubAlarmStats newSubAlarmStats) {
     if (!subAlarmStats.containsKey(subAlarmId)) {
       subAlarmStats.put(subAlarmId, newSubAlarmStats);
+      notSharing.add(newSubAlarmStats);
     }
   }
 
@@ -52,11 +69,130 @@ public class SubAlarmStatsRepository {
   }
 
   public void remove(String subAlarmId) {
-    subAlarmStats.remove(subAlarmId);
+    final SubAlarmStats removed = subAlarmStats.remove(subAlarmId);
+    if (removed != null) {
+      unshareWindow(removed);
+      notSharing.remove(removed);
+    }
+  }
+
+  /**
+   * Makes the {@code stats} use the window of the other SubAlarmStats in this repository with the
+   * same function, period and periods, or makes its window the one the others will use. Must only
+   * be used for SubAlarmStats that get values from this metric alone. Does nothing for CONCAT
+   */
+  public void shareWindow(SubAlarmStats stats) {
+    final DoubleWindowStats window = stats.getNumericStats();
+    if (window == null || isSharingWindow(stats)) {
+      return;
+    }
+    final WindowKey key = new WindowKey(window);
+    SharedWindow shared = sharedWindows.get(key);
+    if (shared == null) {
+      shared = new SharedWindow(window);
+      sharedWindows.put(key, shared);
+    } else {
+      stats.useWindow(shared.window);
+    }
+    shared.users.add(stats);
+    sharing.add(stats);
+    notSharing.remove(stats);
+  }
+
+  /**
+   * Gives the {@code stats} a window of its own with the values of the shared one, so it can get
+   * values from other metrics.
+   *
+   * @return true if the stats was sharing a window of this repository
+   */
+  public boolean unshareWindow(SubAlarmStats stats) {
+    if (!isSharingWindow(stats)) {
+      return false;
+    }
+    final WindowKey key = new WindowKey(stats.getNumericStats());
+    final SharedWindow shared = sharedWindows.get(key);
+    shared.users.remove(stats);
+    sharing.remove(stats);
+    notSharing.add(stats);
+    if (shared.users.isEmpty()) {
+      sharedWindows.remove(key);
+    } else {
+      stats.useWindow(shared.window.copy());
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the {@code stats} uses one of the shared windows of this repository. Values
+   * for it have to be added to the shared window and not to each SubAlarmStats
+   */
+  public boolean isSharingWindow(SubAlarmStats stats) {
+    return sharing.contains(stats);
+  }
+
+  /**
+   * Returns the SubAlarmStats that have a window of their own, values for them have to be added to
+   * each one
+   */
+  public Collection<SubAlarmStats> getNotSharing() {
+    return notSharing;
+  }
+
+  public Collection<SharedWindow> getSharedWindows() {
+    return sharedWindows.values();
   }
 
   @Override
   public String toString() {
     return String.format("SubAlarmStatsRepository [subAlarmStats=%s]", subAlarmStats);
   }
+
+  /**
+   * A window and the SubAlarmStats using it
+   */
+  public static class SharedWindow {
+    private final DoubleWindowStats window;
+    private final List<SubAlarmStats> users = new ArrayList<>(2);
+
+    private SharedWindow(DoubleWindowStats window) {
+      this.window = window;
+    }
+
+    public DoubleWindowStats getWindow() {
+      return window;
+    }
+
+    public List<SubAlarmStats> getUsers() {
+      return users;
+    }
+  }
+
+  private static class WindowKey {
+    private final AggregateFunction function;
+    private final long period;
+    private final int periods;
+
+    private WindowKey(DoubleWindowStats window) {
+      this.function = window.getFunction();
+      this.period = window.getSlotWidth();
+      this.periods = window.getNumViewSlots();
+    }
+
+    @Override
+    public int hashCode() {
+      return (function.hashCode() * 31 + (int) period) * 31 + periods;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof WindowKey)) {
+        return false;
+      }
+      final WindowKey other = (WindowKey) obj;
+      return function == other.function && period == other.period && periods == other.periods;
+    }
+  }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel with a resolution of one second. Items are scheduled for a time in
+ * seconds and returned by advanceTo once that time has been reached.
+ *
+ * Level 0 has a bucket for each of the next 64 seconds, level 1 a bucket for each of the next 64
+ * minutes (64 seconds really) and so on. An item is put in the lowest level whose bucket only
+ * covers its time, and when the time reaches a bucket of a higher level its items are moved down
+ * to the lower levels. Scheduling and expiring an item are constant time no matter how many items
+ * are scheduled. Items too far in the future for the highest level are kept in an overflow list.
+ *
+ * Items can't be cancelled. Callers have to recognize an item that is no longer wanted when it is
+ * returned. Not thread safe.
+ */
+public class TimingWheel<T> {
+  private static final int BITS_PER_LEVEL = 6;
+  private static final int BUCKETS_PER_LEVEL = 1 << BITS_PER_LEVEL;
+  private static final int BUCKET_MASK = BUCKETS_PER_LEVEL - 1;
+  private static final int LEVELS = 4;
+
+  private final List<List<Entry<T>>> buckets = new ArrayList<>(LEVELS * BUCKETS_PER_LEVEL);
+  private final int[] levelSizes = new int[LEVELS];
+  private final List<Entry<T>> overflow = new ArrayList<>();
+  /** Items scheduled for a time that had already been reached */
+  private final List<T> expired = new ArrayList<>();
+  private long currentTime;
+  private int size;
+
+  public TimingWheel(long startTime) {
+    this.currentTime = startTime;
+    for (int i = 0; i < LEVELS * BUCKETS_PER_LEVEL; i++) {
+      buckets.add(new ArrayList<Entry<T>>());
+    }
+  }
+
+  /**
+   * Schedules the {@code item} to be returned once the time reaches {@code time}. If the time has
+   * already been reached, the item is returned by the next advanceTo
+   */
+  public void schedule(long time, T item) {
+    size++;
+    insert(new Entry<T>(time, item));
+  }
+
+  /**
+   * Moves the time forward to {@code time} and adds every item scheduled for that time or earlier
+   * to {@code due}. Moving the time backwards only returns the items that had already expired
+   *
+   * @return the number of items added to {@code due}
+   */
+  public int advanceTo(long time, Collection<? super T> due) {
+    int count = drainExpired(due);
+    while (currentTime < time && size > 0) {
+      if (levelSizes[0] == 0) {
+        // Nothing in the lowest level, so skip to just before the next move down of a higher level
+        currentTime = Math.min(time - 1, currentTime | BUCKET_MASK);
+      }
+      currentTime++;
+      if ((currentTime & BUCKET_MASK) == 0) {
+        cascade();
+      }
+      final List<Entry<T>> bucket = buckets.get((int) (currentTime & BUCKET_MASK));
+      for (int i = 0; i < bucket.size(); i++) {
+        due.add(bucket.get(i).item);
+      }
+      count += bucket.size();
+      size -= bucket.size();
+      levelSizes[0] -= bucket.size();
+      bucket.clear();
+      count += drainExpired(due);
+    }
+    if (currentTime < time) {
+      currentTime = time;
+    }
+    return count;
+  }
+
+  public long getCurrentTime() {
+    return currentTime;
+  }
+
+  /**
+   * Returns the number of scheduled items
+   */
+  public int size() {
+    return size;
+  }
+
+  private void insert(Entry<T> entry) {
+    if (entry.time <= currentTime) {
+      expired.add(entry.item);
+      return;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      final int shift = BITS_PER_LEVEL * (level + 1);
+      if ((entry.time >>> shift) == (currentTime >>> shift)) {
+        final int index = (int) ((entry.time >>> (BITS_PER_LEVEL * level)) & BUCKET_MASK);
+        buckets.get(level * BUCKETS_PER_LEVEL + index).add(entry);
+        levelSizes[level]++;
+        return;
+      }
+    }
+    overflow.add(entry);
+  }
+
+  /**
+   * Called when the time has reached the start of a level 1 bucket. Moves the items of each higher
+   * level bucket that starts now down to the lower levels
+   */
+  private void cascade() {
+    for (int level = 1; level < LEVELS; level++) {
+      final int index = (int) ((currentTime >>> (BITS_PER_LEVEL * level)) & BUCKET_MASK);
+      final List<Entry<T>> bucket = buckets.get(level * BUCKETS_PER_LEVEL + index);
+      if (!bucket.isEmpty()) {
+        final List<Entry<T>> moving = new ArrayList<>(bucket);
+        levelSizes[level] -= bucket.size();
+        bucket.clear();
+        for (Entry<T> entry : moving) {
+          insert(entry);
+        }
+      }
+      if (index != 0) {
+        return;
+      }
+    }
+    if (!overflow.isEmpty()) {
+      final List<Entry<T>> moving = new ArrayList<>(overflow);
+      overflow.clear();
+      for (Entry<T> entry : moving) {
+        insert(entry);
+      }
+    }
+  }
+
+  private int drainExpired(Collection<? super T> due) {
+    final int count = expired.size();
+    if (count > 0) {
+      due.addAll(expired);
+      expired.clear();
+      size -= count;
+    }
+    return count;
+  }
+
+  private static class Entry<T> {
+    private final long time;
+    private final T item;
+
+    private Entry(long time, T item) {
+      this.time = time;
+      this.item = item;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Alarms that are waiting for metrics for the rest of their SubAlarms, indexed per AlarmDefinition
+ * by an AlarmIndex so the waiting Alarms a metric could fit in are found by their match by values.
+ *
+ * At most maxSize Alarms are kept, the oldest is evicted to make room for a new one, and Alarms
+ * that have been waiting longer than maxAgeSeconds are expired. Not thread safe.
+ */
+public class WaitingAlarms {
+  private final int maxSize;
+  private final long maxAgeSeconds;
+  private final Map<String, AlarmIndex> byAlarmDefinition = new HashMap<>();
+  /** Alarm id to the AlarmDefinition id and start time, oldest first */
+  private final LinkedHashMap<String, Waiting> byAge = new LinkedHashMap<>();
+  private long evicted;
+  private long expired;
+
+  public WaitingAlarms(int maxSize, long maxAgeSeconds) {
+    this.maxSize = maxSize;
+    this.maxAgeSeconds = maxAgeSeconds;
+  }
+
+  /**
+   * Adds the Alarm, evicting the oldest waiting Alarms if there are already maxSize
+   *
+   * @return number of Alarms evicted
+   */
+  public int add(AlarmDefinition alarmDefinition, Alarm alarm, long now) {
+    int count = 0;
+    while (byAge.size() >= maxSize && !byAge.isEmpty()) {
+      removeOldest();
+      count++;
+    }
+    evicted += count;
+    AlarmIndex index = byAlarmDefinition.get(alarmDefinition.getId());
+    if (index == null) {
+      index = new AlarmIndex(alarmDefinition, Collections.<Alarm>emptyList());
+      byAlarmDefinition.put(alarmDefinition.getId(), index);
+    }
+    index.add(alarm);
+    byAge.put(alarm.getId(), new Waiting(alarmDefinition.getId(), alarm.getId(), now));
+    return count;
+  }
+
+  /**
+   * Adds the metric to the waiting Alarm
+   */
+  public void addAlarmedMetric(Alarm alarm, MetricDefinitionAndTenantId metric) {
+    final AlarmIndex index = byAlarmDefinition.get(alarm.getAlarmDefinitionId());
+    if (index != null) {
+      index.addAlarmedMetric(alarm, metric);
+    }
+  }
+
+  /**
+   * Returns the waiting Alarms of the AlarmDefinition the metric could fit in
+   */
+  public List<Alarm> findAlarms(String alarmDefinitionId, MetricDefinition metric) {
+    final AlarmIndex index = byAlarmDefinition.get(alarmDefinitionId);
+    if (index == null) {
+      return Collections.emptyList();
+    }
+    return index.findAlarms(metric);
+  }
+
+  public boolean contains(String alarmDefinitionId, MetricDefinitionAndTenantId metric) {
+    final AlarmIndex index = byAlarmDefinition.get(alarmDefinitionId);
+    return (index != null) && index.contains(metric);
+  }
+
+  public boolean remove(Alarm alarm) {
+    final Waiting waiting = byAge.remove(alarm.getId());
+    if (waiting == null) {
+      return false;
+    }
+    removeFromIndex(waiting.alarmDefinitionId, alarm.getId());
+    return true;
+  }
+
+  /**
+   * Removes all of the waiting Alarms of the AlarmDefinition
+   *
+   * @return number of Alarms removed
+   */
+  public int removeAlarmDefinition(String alarmDefinitionId) {
+    final AlarmIndex index = byAlarmDefinition.remove(alarmDefinitionId);
+    if (index == null) {
+      return 0;
+    }
+    for (final Alarm alarm : index.getAlarms()) {
+      byAge.remove(alarm.getId());
+    }
+    return index.size();
+  }
+
+  /**
+   * Removes the Alarms that have been waiting longer than maxAgeSeconds
+   *
+   * @return number of Alarms expired
+   */
+  public int expire(long now) {
+    int count = 0;
+    final Iterator<Waiting> it = byAge.values().iterator();
+    while (it.hasNext()) {
+      final Waiting waiting = it.next();
+      if (now - waiting.since < maxAgeSeconds) {
+        break;
+      }
+      it.remove();
+      removeFromIndex(waiting.alarmDefinitionId, waiting.alarmId);
+      count++;
+    }
+    expired += count;
+    return count;
+  }
+
+  /**
+   * Returns the number of waiting Alarms of the AlarmDefinition or null if it has none
+   */
+  public Integer count(String alarmDefinitionId) {
+    final AlarmIndex index = byAlarmDefinition.get(alarmDefinitionId);
+    return index == null ? null : Integer.valueOf(index.size());
+  }
+
+  public int size() {
+    return byAge.size();
+  }
+
+  public long getEvicted() {
+    return evicted;
+  }
+
+  public long getExpired() {
+    return expired;
+  }
+
+  private void removeOldest() {
+    final Iterator<Waiting> it = byAge.values().iterator();
+    final Waiting oldest = it.next();
+    it.remove();
+    removeFromIndex(oldest.alarmDefinitionId, oldest.alarmId);
+  }
+
+  private void removeFromIndex(String alarmDefinitionId, String alarmId) {
+    final AlarmIndex index = byAlarmDefinition.get(alarmDefinitionId);
+    if (index != null) {
+      index.remove(alarmId);
+      if (index.isEmpty()) {
+        byAlarmDefinition.remove(alarmDefinitionId);
+      }
+    }
+  }
+
+  private static class Waiting {
+    private final String alarmDefinitionId;
+    private final String alarmId;
+    private final long since;
+
+    private Waiting(String alarmDefinitionId, String alarmId, long since) {
+      this.alarmDefinitionId = alarmDefinitionId;
+      this.alarmId = alarmId;
+      this.since = since;
+    }
+  }
+}
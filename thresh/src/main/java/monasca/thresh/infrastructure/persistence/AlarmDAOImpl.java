@@ -17,6 +17,9 @@
 
 package monasca.thresh.infrastructure.persistence;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
 import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.metric.MetricDefinition;
@@ -31,16 +34,23 @@ import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -50,11 +60,57 @@ import javax.inject.Inject;
 
 /**
  * Alarm DAO implementation.
+ *
+ * Alarms can be created by several AlarmCreationBolts at once, so the inserts are idempotent. The
+ * rows for metric definitions and dimensions are shared by Alarms of different AlarmDefinitions
+ * and may be inserted by two transactions at the same time. They are inserted in a fixed order so
+ * the transactions take their locks in the same order, and a transaction that is still chosen as
+ * a deadlock victim is retried.
+ *
+ * Many Alarms can be created in one transaction. Their rows are inserted with one multi-row
+ * insert per table rather than one insert per row.
  */
 public class AlarmDAOImpl implements AlarmDAO {
   private static final Logger logger = LoggerFactory.getLogger(AlarmDAOImpl.class);
 
   public static final int MAX_COLUMN_LENGTH = 255;
+  static final int MAX_TRANSACTION_ATTEMPTS = 3;
+  /** Rows per multi-row insert, kept well below the server's max_allowed_packet */
+  static final int MAX_ROWS_PER_INSERT = 500;
+  /** Alarms whose state is set by one update */
+  static final int MAX_ROWS_PER_UPDATE = 500;
+  /** Rows fetched at a time when loading many Alarms */
+  static final int FETCH_SIZE = 1000;
+
+  /** Queries loading all Alarms, and the Alarms of one AlarmDefinition */
+  private static final String[] LOAD_ALARMS_SQL = {
+      "select * from alarm order by id",
+      "select * from alarm where alarm_definition_id = :alarmDefinitionId order by id"};
+  private static final String[] LOAD_SUB_ALARMS_SQL = {
+      "select * from sub_alarm order by alarm_id",
+      "select sa.* from sub_alarm as sa join alarm as a on a.id = sa.alarm_id "
+          + "where a.alarm_definition_id = :alarmDefinitionId order by sa.alarm_id"};
+  /** The alarmed metrics, one row per dimension, ordered by Alarm and then by metric */
+  private static final String ALARM_METRICS_SQL =
+      "select am.alarm_id, md.name as metric_name, md.tenant_id, mdi.name, mdi.value, mdd.id "
+          + "from alarm_metric as am join metric_definition_dimensions as mdd "
+          + "on mdd.id = am.metric_definition_dimensions_id "
+          + "left join metric_definition as md on md.id = mdd.metric_definition_id "
+          + "left join metric_dimension as mdi "
+          + "on mdi.dimension_set_id = mdd.metric_dimension_set_id ";
+  private static final String[] LOAD_ALARM_METRICS_SQL = {
+      ALARM_METRICS_SQL + "order by am.alarm_id, mdd.id",
+      ALARM_METRICS_SQL + "join alarm as a on a.id = am.alarm_id "
+          + "where a.alarm_definition_id = :alarmDefinitionId order by am.alarm_id, mdd.id"};
+  private static final String METRIC_DEFINITIONS_SQL =
+      "select md.name as metric_name, md.tenant_id, md.region, mdi.name, mdi.value, mdd.id, "
+          + "mdd.metric_dimension_set_id from metric_definition_dimensions as mdd "
+          + "left join metric_definition as md on md.id = mdd.metric_definition_id "
+          + "left join metric_dimension as mdi "
+          + "on mdi.dimension_set_id = mdd.metric_dimension_set_id ";
+  /** MySQL error codes for a deadlock and a lock wait timeout */
+  private static final int ER_LOCK_DEADLOCK = 1213;
+  private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
 
   private final DBI db;
 
@@ -67,16 +123,9 @@ public class AlarmDAOImpl implements AlarmDAO {
   public List<Alarm> findForAlarmDefinitionId(String alarmDefinitionId) {
     Handle h = db.open();
     try {
-      List<Alarm> alarms =
-          h.createQuery("select * from alarm where alarm_definition_id = :id")
-              .bind("id", alarmDefinitionId).map(new BeanMapper<Alarm>(Alarm.class)).list();
-
-      for (final Alarm alarm : alarms) {
-        alarm.setSubAlarms(getSubAlarms(h, alarm.getId()));
-
-        alarm.setAlarmedMetrics(findAlarmedMetrics(h, alarm.getId()));
-      }
-      return alarms;
+      final AlarmCollector collector = new AlarmCollector();
+      loadAlarms(h, alarmDefinitionId, collector);
+      return collector.alarms;
     } finally {
       h.close();
     }
@@ -84,67 +133,253 @@ public class AlarmDAOImpl implements AlarmDAO {
 
   @Override
   public List<Alarm> listAll() {
+    final AlarmCollector collector = new AlarmCollector();
+    streamAll(collector);
+    return collector.alarms;
+  }
+
+  @Override
+  public void streamAll(AlarmHandler handler) {
     Handle h = db.open();
     try {
-      List<Alarm> alarms =
-          h.createQuery("select * from alarm").map(new BeanMapper<Alarm>(Alarm.class)).list();
+      loadAlarms(h, null, handler);
+    } finally {
+      h.close();
+    }
+  }
+
+  private static class AlarmCollector implements AlarmHandler {
+    private final List<Alarm> alarms = new ArrayList<>();
 
-      for (final Alarm alarm : alarms) {
-        alarm.setSubAlarms(getSubAlarms(h, alarm.getId()));
+    @Override
+    public void handle(Alarm alarm) {
+      alarms.add(alarm);
+    }
+  }
+
+  /**
+   * Loads all of the Alarms, or those of one AlarmDefinition if {@code alarmDefinitionId} is not
+   * null, with one query per table instead of two queries per Alarm, and passes each one to the
+   * handler as soon as it is complete.
+   *
+   * The alarms, sub alarms and alarmed metrics are read at the same time, all ordered by the Alarm
+   * id, so the rows of an Alarm are next to each other in each result set. Alarm ids are UUIDs,
+   * which the database and String.compareTo order the same way. Rows of Alarms created after the
+   * alarms were read are skipped. Only the rows of the Alarm being built are held, so apart from
+   * what the handler keeps, the memory used does not grow with the number of Alarms or metrics
+   */
+  private void loadAlarms(Handle h, String alarmDefinitionId, AlarmHandler handler) {
+    final ResultIterator<Alarm> alarms =
+        createLoadQuery(h, LOAD_ALARMS_SQL, alarmDefinitionId).map(
+            new BeanMapper<Alarm>(Alarm.class)).iterator();
+    final ResultIterator<SubAlarm> subAlarmRows =
+        createLoadQuery(h, LOAD_SUB_ALARMS_SQL, alarmDefinitionId).map(new SubAlarmMapper())
+            .iterator();
+    final ResultIterator<Map<String, Object>> alarmMetricRows =
+        createLoadQuery(h, LOAD_ALARM_METRICS_SQL, alarmDefinitionId).iterator();
+    try {
+      final PeekingIterator<SubAlarm> subAlarms = Iterators.peekingIterator(subAlarmRows);
+      final PeekingIterator<Map<String, Object>> alarmMetrics =
+          Iterators.peekingIterator(alarmMetricRows);
+      while (alarms.hasNext()) {
+        final Alarm alarm = alarms.next();
+
+        final List<SubAlarm> alarmSubAlarms = new ArrayList<>();
+        while (subAlarms.hasNext()
+            && (subAlarms.peek().getAlarmId().compareTo(alarm.getId()) <= 0)) {
+          final SubAlarm subAlarm = subAlarms.next();
+          if (subAlarm.getAlarmId().equals(alarm.getId())) {
+            alarmSubAlarms.add(subAlarm);
+          }
+        }
+        alarm.setSubAlarms(alarmSubAlarms);
+
+        final List<Map<String, Object>> metricRows = new ArrayList<>();
+        while (alarmMetrics.hasNext()
+            && (((String) alarmMetrics.peek().get("alarm_id")).compareTo(alarm.getId()) <= 0)) {
+          final Map<String, Object> row = alarmMetrics.next();
+          if (row.get("alarm_id").equals(alarm.getId())) {
+            metricRows.add(row);
+          }
+        }
+        for (final MetricDefinitionAndTenantId md : readMetricDefinitions(metricRows).values()) {
+          alarm.addAlarmedMetric(md);
+        }
 
-        alarm.setAlarmedMetrics(findAlarmedMetrics(h, alarm.getId()));
+        handler.handle(alarm);
       }
-      return alarms;
     } finally {
-      h.close();
+      alarms.close();
+      subAlarmRows.close();
+      alarmMetricRows.close();
     }
   }
 
+  /**
+   * Creates one of the LOAD queries, restricted to the AlarmDefinition if there is one. The rows
+   * are fetched FETCH_SIZE at a time, through a server side cursor for MySQL
+   */
+  private static Query<Map<String, Object>> createLoadQuery(Handle h, String[] sql,
+      String alarmDefinitionId) {
+    final Query<Map<String, Object>> query =
+        h.createQuery(alarmDefinitionId == null ? sql[0] : sql[1]).setFetchSize(FETCH_SIZE);
+    if (alarmDefinitionId != null) {
+      query.bind("alarmDefinitionId", alarmDefinitionId);
+    }
+    return query;
+  }
+
   @Override
-  public void addAlarmedMetric(String alarmId, MetricDefinitionAndTenantId metricDefinition) {
-    Handle h = db.open();
-    try {
-      h.begin();
-      createAlarmedMetric(h, metricDefinition, alarmId);
-      h.commit();
-    } catch (RuntimeException e) {
-      h.rollback();
-      throw e;
-    } finally {
-      h.close();
+  public void addAlarmedMetric(final String alarmId,
+      final MetricDefinitionAndTenantId metricDefinition) {
+    final AlarmRows rows = new AlarmRows();
+    rows.addAlarmedMetric(alarmId, metricDefinition);
+    inTransaction(new Transaction() {
+      @Override
+      public void execute(Handle h) {
+        rows.insert(h);
+      }
+    });
+  }
+
+  /**
+   * Runs the {@code transaction}, retrying it if it fails because of a deadlock or a lock wait
+   * timeout. The transaction has to be idempotent
+   */
+  private void inTransaction(Transaction transaction) {
+    for (int attempt = 1;; attempt++) {
+      final Handle h = db.open();
+      try {
+        h.begin();
+        transaction.execute(h);
+        h.commit();
+        return;
+      } catch (RuntimeException e) {
+        h.rollback();
+        if (attempt >= MAX_TRANSACTION_ATTEMPTS || !isLockConflict(e)) {
+          throw e;
+        }
+        logger.warn("Transaction failed on attempt {} because of a lock conflict, retrying",
+            attempt, e);
+      } finally {
+        h.close();
+      }
     }
   }
 
-  private void createAlarmedMetric(Handle h, MetricDefinitionAndTenantId metricDefinition,
-      String alarmId) {
-    final Sha1HashId metricDefinitionDimensionId =
-        insertMetricDefinitionDimension(h, metricDefinition);
+  static boolean isLockConflict(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException) {
+        final SQLException sqlException = (SQLException) cause;
+        if (sqlException.getErrorCode() == ER_LOCK_DEADLOCK
+            || sqlException.getErrorCode() == ER_LOCK_WAIT_TIMEOUT
+            || "40001".equals(sqlException.getSQLState())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
 
-    h.insert("insert into alarm_metric (alarm_id, metric_definition_dimensions_id) values (?, ?)",
-        alarmId, metricDefinitionDimensionId.getSha1Hash());
+  private interface Transaction {
+    void execute(Handle h);
   }
 
-  private Sha1HashId insertMetricDefinitionDimension(Handle h, MetricDefinitionAndTenantId mdtid) {
-    final Sha1HashId metricDefinitionId = insertMetricDefinition(h, mdtid);
-    final Sha1HashId metricDimensionSetId =
-        insertMetricDimensionSet(h, mdtid.metricDefinition.dimensions);
-    final byte[] definitionDimensionsIdSha1Hash =
-        DigestUtils.sha(metricDefinitionId.toHexString() + metricDimensionSetId.toHexString());
-    h.insert(
-        "insert into metric_definition_dimensions (id, metric_definition_id, metric_dimension_set_id) values (?, ?, ?)"
-            + "on duplicate key update id=id", definitionDimensionsIdSha1Hash,
-        metricDefinitionId.getSha1Hash(), metricDimensionSetId.getSha1Hash());
-    return new Sha1HashId(definitionDimensionsIdSha1Hash);
+  /**
+   * The rows inserted for a set of Alarms and alarmed metrics. The rows of the tables shared by
+   * Alarms of different AlarmDefinitions are deduplicated and kept sorted by key, so concurrent
+   * transactions lock them in the same order
+   */
+  private class AlarmRows {
+    private final List<Object[]> alarms = new ArrayList<>();
+    private final List<Object[]> subAlarms = new ArrayList<>();
+    private final Map<String, Object[]> metricDefinitions = new TreeMap<>();
+    private final Map<String, Object[]> metricDimensions = new TreeMap<>();
+    private final Map<String, Object[]> metricDefinitionDimensions = new TreeMap<>();
+    private final Map<String, Object[]> alarmMetrics = new TreeMap<>();
+
+    private void addAlarm(Alarm alarm) {
+      alarms.add(new Object[] {alarm.getId(), alarm.getAlarmDefinitionId(),
+          alarm.getState().toString()});
+      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+        subAlarms.add(new Object[] {subAlarm.getId(), subAlarm.getAlarmId(),
+            subAlarm.getAlarmSubExpressionId(), subAlarm.getExpression().getExpression()});
+      }
+      for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
+        addAlarmedMetric(alarm.getId(), md);
+      }
+    }
+
+    private void addAlarmedMetric(String alarmId, MetricDefinitionAndTenantId mdtid) {
+      final Sha1HashId metricDefinitionId = calculateMetricDefinitionSHA1(mdtid);
+      metricDefinitions.put(metricDefinitionId.toHexString(), new Object[] {
+          metricDefinitionId.getSha1Hash(), mdtid.metricDefinition.name, mdtid.tenantId});
+
+      final Sha1HashId metricDimensionSetId =
+          new Sha1HashId(calculateDimensionSHA1(mdtid.metricDefinition.dimensions));
+      for (final Map.Entry<String, String> entry : mdtid.metricDefinition.dimensions.entrySet()) {
+        metricDimensions.put(metricDimensionSetId.toHexString() + entry.getKey(), new Object[] {
+            metricDimensionSetId.getSha1Hash(), entry.getKey(), entry.getValue()});
+      }
+
+      final Sha1HashId metricDefinitionDimensionsId =
+          new Sha1HashId(DigestUtils.sha(metricDefinitionId.toHexString()
+              + metricDimensionSetId.toHexString()));
+      metricDefinitionDimensions.put(metricDefinitionDimensionsId.toHexString(), new Object[] {
+          metricDefinitionDimensionsId.getSha1Hash(), metricDefinitionId.getSha1Hash(),
+          metricDimensionSetId.getSha1Hash()});
+
+      alarmMetrics.put(alarmId + metricDefinitionDimensionsId.toHexString(), new Object[] {
+          alarmId, metricDefinitionDimensionsId.getSha1Hash()});
+    }
+
+    private void insert(Handle h) {
+      insertRows(h, "insert into alarm (id, alarm_definition_id, state, created_at, updated_at)",
+          "(?, ?, ?, NOW(), NOW())", "on duplicate key update id=id", alarms);
+      insertRows(h, "insert into sub_alarm "
+          + "(id, alarm_id, sub_expression_id, expression, created_at, updated_at)",
+          "(?, ?, ?, ?, NOW(), NOW())", "on duplicate key update id=id", subAlarms);
+      insertRows(h, "insert into metric_definition (id, name, tenant_id)", "(?, ?, ?)",
+          "on duplicate key update id=id", metricDefinitions.values());
+      insertRows(h, "insert into metric_dimension (dimension_set_id, name, value)", "(?, ?, ?)",
+          "on duplicate key update dimension_set_id=dimension_set_id", metricDimensions.values());
+      insertRows(h, "insert into metric_definition_dimensions "
+          + "(id, metric_definition_id, metric_dimension_set_id)",
+          "(?, ?, ?)", "on duplicate key update id=id", metricDefinitionDimensions.values());
+      insertRows(h, "insert into alarm_metric (alarm_id, metric_definition_dimensions_id)",
+          "(?, ?)", "on duplicate key update alarm_id=alarm_id", alarmMetrics.values());
+    }
   }
 
-  private Sha1HashId insertMetricDimensionSet(Handle h, Map<String, String> dimensions) {
-    final byte[] dimensionSetId = calculateDimensionSHA1(dimensions);
-    for (final Map.Entry<String, String> entry : dimensions.entrySet()) {
-      h.insert("insert into metric_dimension(dimension_set_id, name, value) values (?, ?, ?) "
-          + "on duplicate key update dimension_set_id=dimension_set_id", dimensionSetId,
-          entry.getKey(), entry.getValue());
+  /**
+   * Inserts the rows with multi-row inserts of at most MAX_ROWS_PER_INSERT rows each
+   */
+  private static void insertRows(Handle h, String insert, String valuesTemplate,
+      String onDuplicateKey, Collection<Object[]> rows) {
+    final Iterator<Object[]> iterator = rows.iterator();
+    while (iterator.hasNext()) {
+      final List<Object[]> chunk = new ArrayList<>(Math.min(rows.size(), MAX_ROWS_PER_INSERT));
+      while (iterator.hasNext() && (chunk.size() < MAX_ROWS_PER_INSERT)) {
+        chunk.add(iterator.next());
+      }
+      final StringBuilder sql = new StringBuilder(insert).append(" values ");
+      for (int i = 0; i < chunk.size(); i++) {
+        if (i > 0) {
+          sql.append(", ");
+        }
+        sql.append(valuesTemplate);
+      }
+      sql.append(' ').append(onDuplicateKey);
+
+      final Update update = h.createStatement(sql.toString());
+      int position = 0;
+      for (final Object[] row : chunk) {
+        for (final Object value : row) {
+          update.bind(position++, value);
+        }
+      }
+      update.execute();
     }
-    return new Sha1HashId(dimensionSetId);
   }
 
   private byte[] calculateDimensionSHA1(final Map<String, String> dimensions) {
@@ -168,42 +403,34 @@ public class AlarmDAOImpl implements AlarmDAO {
     return dimensionIdSha1Hash;
   }
 
-  private Sha1HashId insertMetricDefinition(Handle h, MetricDefinitionAndTenantId mdtid) {
+  private Sha1HashId calculateMetricDefinitionSHA1(MetricDefinitionAndTenantId mdtid) {
     final String region = ""; // TODO We currently don't have region
     final String definitionIdStringToHash =
         trunc(mdtid.metricDefinition.name, MAX_COLUMN_LENGTH)
             + trunc(mdtid.tenantId, MAX_COLUMN_LENGTH) + trunc(region, MAX_COLUMN_LENGTH);
-    final byte[] id = DigestUtils.sha(definitionIdStringToHash);
-    h.insert("insert into metric_definition(id, name, tenant_id) values (?, ?, ?) " +
-             "on duplicate key update id=id", id, mdtid.metricDefinition.name, mdtid.tenantId);
-    return new Sha1HashId(id);
+    return new Sha1HashId(DigestUtils.sha(definitionIdStringToHash));
   }
 
   @Override
-  public void createAlarm(Alarm alarm) {
-    Handle h = db.open();
-    try {
-      h.begin();
-      h.insert(
-          "insert into alarm (id, alarm_definition_id, state, created_at, updated_at) values (?, ?, ?, NOW(), NOW())",
-          alarm.getId(), alarm.getAlarmDefinitionId(), alarm.getState().toString());
+  public void createAlarm(final Alarm alarm) {
+    createAlarms(Collections.singletonList(alarm));
+  }
 
-      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
-        h.insert(
-            "insert into sub_alarm (id, alarm_id, sub_expression_id, expression, created_at, updated_at) values (?, ?, ?, ?, NOW(), NOW())",
-            subAlarm.getId(), subAlarm.getAlarmId(), subAlarm.getAlarmSubExpressionId(), subAlarm
-                .getExpression().getExpression());
-      }
-      for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
-        createAlarmedMetric(h, md, alarm.getId());
-      }
-      h.commit();
-    } catch (RuntimeException e) {
-      h.rollback();
-      throw e;
-    } finally {
-      h.close();
+  @Override
+  public void createAlarms(final Collection<Alarm> alarms) {
+    if (alarms.isEmpty()) {
+      return;
     }
+    final AlarmRows rows = new AlarmRows();
+    for (final Alarm alarm : alarms) {
+      rows.addAlarm(alarm);
+    }
+    inTransaction(new Transaction() {
+      @Override
+      public void execute(Handle h) {
+        rows.insert(h);
+      }
+    });
   }
 
   @Override
@@ -242,29 +469,34 @@ public class AlarmDAOImpl implements AlarmDAO {
 
   private Set<MetricDefinitionAndTenantId> findAlarmedMetrics(Handle h, String alarmId) {
     final List<Map<String, Object>> result =
-        h.createQuery(
-            "select md.name as metric_name, md.tenant_id, md.region, mdi.name, mdi.value, mdd.id, mdd.metric_dimension_set_id " +
-            "from metric_definition_dimensions as mdd left join metric_definition as md on md.id = mdd.metric_definition_id " +
-            "left join metric_dimension as mdi on mdi.dimension_set_id = mdd.metric_dimension_set_id where mdd.id in " +
-            "(select metric_definition_dimensions_id from alarm_metric where alarm_id=:alarm_id) order by mdd.id")
-            .bind("alarm_id", alarmId).list();
+        h.createQuery(METRIC_DEFINITIONS_SQL + "where mdd.id in "
+            + "(select metric_definition_dimensions_id from alarm_metric where alarm_id=:alarm_id) "
+            + "order by mdd.id").bind("alarm_id", alarmId).list();
     if ((result == null) || result.isEmpty()) {
       return new HashSet<>(0);
     }
+    return new HashSet<>(readMetricDefinitions(result).values());
+  }
 
-    final Set<MetricDefinitionAndTenantId> alarmedMetrics = new HashSet<>(result.size());
+  /**
+   * Reads the metric definitions from rows of the METRIC_DEFINITIONS_SQL or ALARM_METRICS_SQL
+   * query, one row per dimension, ordered by the metric_definition_dimensions id
+   */
+  private Map<Sha1HashId, MetricDefinitionAndTenantId> readMetricDefinitions(
+      Iterable<Map<String, Object>> rows) {
+    final Map<Sha1HashId, MetricDefinitionAndTenantId> metrics = new HashMap<>();
     Sha1HashId previous = null;
     MetricDefinitionAndTenantId mdtid = null;
-    for (Map<String, Object> row : result) {
+    for (Map<String, Object> row : rows) {
       final Sha1HashId next = new Sha1HashId((byte[]) row.get("id"));
       // The order by clause in the SQL guarantees this order
       if (!next.equals(previous)) {
-        if (mdtid != null) {
-          alarmedMetrics.add(mdtid);
-        }
         final String name = (String) row.get("metric_name");
         final String tenantId = (String) row.get("tenant_id");
-        mdtid = new MetricDefinitionAndTenantId(new MetricDefinition(name, new HashMap<String, String>()), tenantId);
+        mdtid =
+            new MetricDefinitionAndTenantId(new MetricDefinition(name,
+                new HashMap<String, String>()), tenantId);
+        metrics.put(next, mdtid);
         previous = next;
       }
       final String name = (String) row.get("name");
@@ -273,10 +505,7 @@ public class AlarmDAOImpl implements AlarmDAO {
         mdtid.metricDefinition.dimensions.put(name, value);
       }
     }
-    if (mdtid != null) {
-      alarmedMetrics.add(mdtid);
-    }
-    return alarmedMetrics;
+    return metrics;
   }
 
   @Override
@@ -291,6 +520,47 @@ public class AlarmDAOImpl implements AlarmDAO {
     }
   }
 
+  @Override
+  public void updateStates(Map<String, AlarmState> states) {
+    if (states.isEmpty()) {
+      return;
+    }
+    Handle h = db.open();
+
+    try {
+      final Iterator<Map.Entry<String, AlarmState>> iterator = states.entrySet().iterator();
+      while (iterator.hasNext()) {
+        final List<Map.Entry<String, AlarmState>> chunk =
+            new ArrayList<>(Math.min(states.size(), MAX_ROWS_PER_UPDATE));
+        while (iterator.hasNext() && (chunk.size() < MAX_ROWS_PER_UPDATE)) {
+          chunk.add(iterator.next());
+        }
+        final StringBuilder sql = new StringBuilder("update alarm set state = case id");
+        for (int i = 0; i < chunk.size(); i++) {
+          sql.append(" when ? then ?");
+        }
+        sql.append(" end, updated_at = NOW() where id in (");
+        for (int i = 0; i < chunk.size(); i++) {
+          sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        final Update update = h.createStatement(sql.toString());
+        int position = 0;
+        for (final Map.Entry<String, AlarmState> entry : chunk) {
+          update.bind(position++, entry.getKey());
+          update.bind(position++, entry.getValue().toString());
+        }
+        for (final Map.Entry<String, AlarmState> entry : chunk) {
+          update.bind(position++, entry.getKey());
+        }
+        update.execute();
+      }
+    } finally {
+      h.close();
+    }
+  }
+
   @Override
   public int updateSubAlarmExpressions(String alarmSubExpressionId,
       AlarmSubExpression alarmSubExpression) {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.persistence;
+
+import monasca.thresh.infrastructure.thresholding.DataSourceFactory;
+
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pool of database connections configured from a DataSourceFactory. There is one per worker, shared
+ * by the DAOs of all of its bolts.
+ *
+ * For MySQL the connections prepare statements on the server and cache them, so a statement run
+ * again on a pooled connection is not prepared again. Queries with a fetch size read their rows
+ * through a server side cursor instead of all at once. The properties of the DataSourceFactory
+ * override these defaults.
+ *
+ * The number of connections handed out and the total time spent waiting for them are kept so they
+ * can be reported with the size of the pool.
+ */
+public class ConnectionPool extends DataSource {
+  static final int DEFAULT_MIN_SIZE = 10;
+  static final int DEFAULT_MAX_SIZE = 100;
+  static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+  /** Validate a borrowed connection at most this often */
+  private static final long VALIDATION_INTERVAL_MILLIS = 30000;
+  private static final Pattern DURATION = Pattern.compile("(\\d+)\\s*([a-zA-Z]*)");
+
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+
+  public ConnectionPool(DataSourceFactory dbConfig) {
+    super(poolProperties(dbConfig));
+  }
+
+  static PoolProperties poolProperties(DataSourceFactory dbConfig) {
+    final PoolProperties properties = new PoolProperties();
+    properties.setDriverClassName(dbConfig.getDriverClass());
+    properties.setUrl(dbConfig.getUrl());
+    properties.setUsername(dbConfig.getUser());
+    properties.setPassword(dbConfig.getPassword());
+    properties.setDbProperties(connectionProperties(dbConfig));
+
+    final int minSize = parseSize(dbConfig.getMinSize(), DEFAULT_MIN_SIZE);
+    final int maxSize = Math.max(minSize, parseSize(dbConfig.getMaxSize(), DEFAULT_MAX_SIZE));
+    properties.setInitialSize(minSize);
+    properties.setMinIdle(minSize);
+    properties.setMaxIdle(maxSize);
+    properties.setMaxActive(maxSize);
+    properties.setMaxWait((int) parseDurationMillis(dbConfig.getMaxWaitForConnection(),
+        DEFAULT_MAX_WAIT_MILLIS));
+
+    if ((dbConfig.getValidationQuery() != null) && !dbConfig.getValidationQuery().isEmpty()) {
+      properties.setValidationQuery(dbConfig.getValidationQuery());
+      properties.setValidationInterval(VALIDATION_INTERVAL_MILLIS);
+      properties.setTestOnBorrow(true);
+      properties.setTestWhileIdle(true);
+    }
+    return properties;
+  }
+
+  static Properties connectionProperties(DataSourceFactory dbConfig) {
+    final Properties properties = new Properties();
+    if ((dbConfig.getUrl() != null) && dbConfig.getUrl().startsWith("jdbc:mysql:")) {
+      properties.setProperty("useServerPrepStmts", "true");
+      properties.setProperty("cachePrepStmts", "true");
+      properties.setProperty("prepStmtCacheSize", "250");
+      properties.setProperty("prepStmtCacheSqlLimit", "2048");
+      properties.setProperty("useCursorFetch", "true");
+    }
+    if (dbConfig.getProperties() != null) {
+      // The values from the configuration file are not always Strings
+      for (final Map.Entry<Object, Object> entry : dbConfig.getProperties().entrySet()) {
+        properties.setProperty(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+      }
+    }
+    return properties;
+  }
+
+  static int parseSize(String size, int defaultSize) {
+    if ((size == null) || size.trim().isEmpty()) {
+      return defaultSize;
+    }
+    return Integer.parseInt(size.trim());
+  }
+
+  /**
+   * Parses durations like "1s", "500ms" or "2 minutes". A number without a unit is milliseconds
+   */
+  static long parseDurationMillis(String duration, long defaultMillis) {
+    if ((duration == null) || duration.trim().isEmpty()) {
+      return defaultMillis;
+    }
+    final Matcher matcher = DURATION.matcher(duration.trim());
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid duration " + duration);
+    }
+    final long count = Long.parseLong(matcher.group(1));
+    switch (matcher.group(2).toLowerCase()) {
+      case "":
+      case "ms":
+      case "millisecond":
+      case "milliseconds":
+        return count;
+      case "s":
+      case "second":
+      case "seconds":
+        return TimeUnit.SECONDS.toMillis(count);
+      case "m":
+      case "minute":
+      case "minutes":
+        return TimeUnit.MINUTES.toMillis(count);
+      default:
+        throw new IllegalArgumentException("Invalid duration unit in " + duration);
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    final long startNanos = System.nanoTime();
+    try {
+      return super.getConnection();
+    } finally {
+      waitNanos.addAndGet(System.nanoTime() - startNanos);
+      connections.incrementAndGet();
+    }
+  }
+
+  /** Number of connections handed out since the pool was created */
+  public long getConnectionCount() {
+    return connections.get();
+  }
+
+  /** Total time spent getting the connections handed out since the pool was created */
+  public long getConnectionWaitNanos() {
+    return waitNanos.get();
+  }
+}
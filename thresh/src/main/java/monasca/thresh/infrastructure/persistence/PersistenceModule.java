@@ -47,8 +47,14 @@ public class PersistenceModule extends AbstractModule {
 
   @Provides
   @Singleton
-  public DBI dbi() throws Exception {
+  public ConnectionPool connectionPool() throws Exception {
     Class.forName(dbConfig.getDriverClass());
-    return new DBI(dbConfig.getUrl(), dbConfig.getUser(), dbConfig.getPassword());
+    return new ConnectionPool(dbConfig);
+  }
+
+  @Provides
+  @Singleton
+  public DBI dbi(ConnectionPool connectionPool) {
+    return new DBI(connectionPool);
   }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.serialization;
+
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.event.AlarmDefinitionCreatedEvent;
+import monasca.common.model.event.AlarmDefinitionDeletedEvent;
+import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
+import monasca.common.model.event.AlarmDeletedEvent;
+import monasca.common.model.event.AlarmUpdatedEvent;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.common.util.Serialization;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+
+import backtype.storm.Config;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kryo serializers for the classes sent in tuples between the Bolts. Without them Storm uses Java
+ * serialization, which writes the class descriptions with every tuple.
+ *
+ * The classes of the metric streams, sent for every Metric, are written field by field. Maps are
+ * written as their size followed by the keys and values, with the size written as size + 1 so 0
+ * can mean null. An AlarmSubExpression is written as its expression and parsed again when read,
+ * as the AlarmDAO stores it. The alarm and alarm definition events are rare, so they are written
+ * as the same JSON they are read from Kafka as.
+ */
+public final class TupleSerializers {
+
+  private TupleSerializers() {}
+
+  /**
+   * Registers all of the serializers with the Storm configuration
+   */
+  public static void register(final Config config) {
+    config.registerSerialization(TenantIdAndMetricName.class,
+        TenantIdAndMetricNameSerializer.class);
+    config.registerSerialization(MetricDefinitionAndTenantId.class,
+        MetricDefinitionAndTenantIdSerializer.class);
+    config.registerSerialization(Metric.class, MetricSerializer.class);
+    config.registerSerialization(MetricDefinition.class, MetricDefinitionSerializer.class);
+    config.registerSerialization(AlarmSubExpression.class, AlarmSubExpressionSerializer.class);
+    config.registerSerialization(AlarmDefinitionCreatedEvent.class, EventSerializer.class);
+    config.registerSerialization(AlarmDefinitionDeletedEvent.class, EventSerializer.class);
+    config.registerSerialization(AlarmDefinitionUpdatedEvent.class, EventSerializer.class);
+    config.registerSerialization(AlarmDeletedEvent.class, EventSerializer.class);
+    config.registerSerialization(AlarmUpdatedEvent.class, EventSerializer.class);
+  }
+
+  public static class TenantIdAndMetricNameSerializer extends Serializer<TenantIdAndMetricName> {
+    @Override
+    public void write(Kryo kryo, Output output, TenantIdAndMetricName object) {
+      output.writeString(object.getTenantId());
+      output.writeString(object.getMetricName());
+    }
+
+    @Override
+    public TenantIdAndMetricName read(Kryo kryo, Input input,
+        Class<TenantIdAndMetricName> type) {
+      return new TenantIdAndMetricName(input.readString(), input.readString());
+    }
+  }
+
+  public static class MetricDefinitionAndTenantIdSerializer extends
+      Serializer<MetricDefinitionAndTenantId> {
+    @Override
+    public void write(Kryo kryo, Output output, MetricDefinitionAndTenantId object) {
+      writeMetricDefinition(output, object.metricDefinition);
+      output.writeString(object.tenantId);
+    }
+
+    @Override
+    public MetricDefinitionAndTenantId read(Kryo kryo, Input input,
+        Class<MetricDefinitionAndTenantId> type) {
+      final MetricDefinition metricDefinition = readMetricDefinition(input);
+      return new MetricDefinitionAndTenantId(metricDefinition, input.readString());
+    }
+  }
+
+  public static class MetricSerializer extends Serializer<Metric> {
+    @Override
+    public void write(Kryo kryo, Output output, Metric object) {
+      writeMetricDefinition(output, object.definition());
+      output.writeLong(object.timestamp, true);
+      output.writeDouble(object.value);
+    }
+
+    @Override
+    public Metric read(Kryo kryo, Input input, Class<Metric> type) {
+      final MetricDefinition metricDefinition = readMetricDefinition(input);
+      final long timestamp = input.readLong(true);
+      return new Metric(metricDefinition.name, metricDefinition.dimensions, timestamp,
+          input.readDouble());
+    }
+  }
+
+  public static class MetricDefinitionSerializer extends Serializer<MetricDefinition> {
+    @Override
+    public void write(Kryo kryo, Output output, MetricDefinition object) {
+      writeMetricDefinition(output, object);
+    }
+
+    @Override
+    public MetricDefinition read(Kryo kryo, Input input, Class<MetricDefinition> type) {
+      return readMetricDefinition(input);
+    }
+  }
+
+  public static class AlarmSubExpressionSerializer extends Serializer<AlarmSubExpression> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmSubExpression object) {
+      output.writeString(object.getExpression());
+    }
+
+    @Override
+    public AlarmSubExpression read(Kryo kryo, Input input, Class<AlarmSubExpression> type) {
+      return AlarmSubExpression.of(input.readString());
+    }
+  }
+
+  /**
+   * Writes an alarm or alarm definition event as the JSON that the EventSpout reads it from
+   */
+  public static class EventSerializer extends Serializer<Object> {
+    static {
+      Serialization.registerTarget(AlarmDefinitionCreatedEvent.class);
+      Serialization.registerTarget(AlarmDefinitionDeletedEvent.class);
+      Serialization.registerTarget(AlarmDefinitionUpdatedEvent.class);
+      Serialization.registerTarget(AlarmDeletedEvent.class);
+      Serialization.registerTarget(AlarmUpdatedEvent.class);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, Object object) {
+      output.writeString(Serialization.toJson(object));
+    }
+
+    @Override
+    public Object read(Kryo kryo, Input input, Class<Object> type) {
+      return Serialization.fromJson(input.readString());
+    }
+  }
+
+  private static void writeDimensions(final Output output, final Map<String, String> dimensions) {
+    if (dimensions == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(dimensions.size() + 1, true);
+    for (final Map.Entry<String, String> entry : dimensions.entrySet()) {
+      output.writeString(entry.getKey());
+      output.writeString(entry.getValue());
+    }
+  }
+
+  private static Map<String, String> readDimensions(final Input input) {
+    final int size = input.readInt(true) - 1;
+    if (size < 0) {
+      return null;
+    }
+    final Map<String, String> dimensions = new HashMap<>(capacity(size));
+    for (int i = 0; i < size; i++) {
+      dimensions.put(input.readString(), input.readString());
+    }
+    return dimensions;
+  }
+
+  private static void writeMetricDefinition(final Output output,
+      final MetricDefinition metricDefinition) {
+    output.writeString(metricDefinition.name);
+    writeDimensions(output, metricDefinition.dimensions);
+  }
+
+  private static MetricDefinition readMetricDefinition(final Input input) {
+    final String name = input.readString();
+    return new MetricDefinition(name, readDimensions(input));
+  }
+
+  private static int capacity(final int size) {
+    return (int) (size / 0.75f) + 1;
+  }
+}
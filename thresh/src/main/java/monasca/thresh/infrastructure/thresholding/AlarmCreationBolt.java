@@ -17,6 +17,8 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import backtype.storm.Config;
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
@@ -28,9 +30,13 @@ import backtype.storm.tuple.Values;
 import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.event.AlarmDefinitionDeletedEvent;
+import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
+import monasca.common.model.event.AlarmDeletedEvent;
 import monasca.common.model.metric.MetricDefinition;
 import monasca.common.streaming.storm.Logging;
+import monasca.common.streaming.storm.Tuples;
 import monasca.common.util.Injector;
+import monasca.thresh.AlarmCreationConfig;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
@@ -38,21 +44,39 @@ import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.domain.service.AlarmIndex;
+import monasca.thresh.domain.service.WaitingAlarms;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Handles creation of Alarms and Alarmed Metrics.
- * 
- * MUST be only one of these bolts in the storm application
+ *
+ * There can be any number of these bolts. The new metrics are grouped by AlarmDefinition id, so
+ * all of the Alarms of an AlarmDefinition, and its waiting Alarms, are handled by the same bolt.
+ * The metric definitions and dimensions shared with Alarms of other AlarmDefinitions are inserted
+ * idempotently by the AlarmDAO, so bolts creating Alarms for the same metrics don't conflict.
+ *
+ * The Alarms of an AlarmDefinition are loaded once into an AlarmIndex and kept up to date with the
+ * Alarms this bolt creates and the Alarms that are deleted, so placing a new metric doesn't need
+ * the database. The index is dropped when the AlarmDefinition is updated or deleted.
+ *
+ * The Alarms still waiting for metrics are indexed the same way, up to a configured number of
+ * them. The oldest waiting Alarms are evicted to make room and dropped after a configured age.
+ *
+ * If configured, the completed Alarms are collected for a short time and created together in one
+ * transaction. Their SubAlarms are only sent once they have been created. The collected Alarms are
+ * created before any event is handled, so the events see them just as if they had been created
+ * one at a time.
  */
 public class AlarmCreationBolt extends BaseRichBolt {
   private static final long serialVersionUID = 1096706128973976599L;
@@ -66,17 +90,35 @@ public class AlarmCreationBolt extends BaseRichBolt {
   private transient AlarmDefinitionDAO alarmDefDAO;
   private transient AlarmDAO alarmDAO;
   private OutputCollector collector;
-  private final Map<String, List<Alarm>> waitingAlarms = new HashMap<>();
-  private static final List<Alarm> EMPTY_LIST = Collections.<Alarm>emptyList();
+  private final AlarmCreationConfig config;
+  private transient WaitingAlarms waitingAlarms;
+  private transient WaitingAlarmsMetric waitingAlarmsMetric;
+  private final Map<String, AlarmIndex> alarmIndexes = new HashMap<>();
+  /** Alarms by id that are complete but not created yet */
+  private transient Map<String, Alarm> pendingAlarms;
+  /** SubAlarms of the pending Alarms to send once they are created */
+  private transient List<Values> pendingEmits;
+  private transient long pendingSinceMillis;
 
   public AlarmCreationBolt(DataSourceFactory dbConfig) {
+    this(dbConfig, new AlarmCreationConfig());
+  }
+
+  public AlarmCreationBolt(DataSourceFactory dbConfig, AlarmCreationConfig config) {
     this.dbConfig = dbConfig;
+    this.config = config;
   }
 
   public AlarmCreationBolt(AlarmDefinitionDAO alarmDefDAO,
                            AlarmDAO alarmDAO) {
+    this(alarmDefDAO, alarmDAO, new AlarmCreationConfig());
+  }
+
+  public AlarmCreationBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO,
+      AlarmCreationConfig config) {
     this.alarmDefDAO = alarmDefDAO;
     this.alarmDAO = alarmDAO;
+    this.config = config;
   }
 
   @Override
@@ -84,24 +126,46 @@ public class AlarmCreationBolt extends BaseRichBolt {
     declarer.declareStream(ALARM_CREATION_STREAM, new Fields(ALARM_CREATION_FIELDS));
   }
 
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    if (!batchingCreation()) {
+      return null;
+    }
+    // Ticks create the pending Alarms when no metrics are coming in
+    final Map<String, Object> conf = new HashMap<>();
+    conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+    return conf;
+  }
+
   @Override
   public void execute(Tuple tuple) {
     logger.info("tuple: {}", tuple);
     try {
-      if (MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM.equals(tuple.getSourceStreamId())) {
+      if (Tuples.isTickTuple(tuple)) {
+        createPendingAlarmsIfDue();
+      } else if (MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM.equals(tuple.getSourceStreamId())) {
         final MetricDefinitionAndTenantId metricDefinitionAndTenantId =
             (MetricDefinitionAndTenantId) tuple.getValue(0);
         handleNewMetricDefinition(metricDefinitionAndTenantId, tuple.getString(1));
+        createPendingAlarmsIfDue();
       } else if (EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID.equals(tuple
           .getSourceStreamId())) {
+        createPendingAlarms();
         final String eventType = tuple.getString(0);
         if (EventProcessingBolt.UPDATED.equals(eventType)) {
           // We could try to update the subalarms, but it is easier just to delete
-          // the waiting alarms and wait for them to be recreated. The AlarmDefinition
-          // itself is not cached so we don't have to do anything with it
+          // the waiting alarms and wait for them to be recreated. The indexed Alarms
+          // are reloaded with the updated AlarmDefinition
           removeWaitingAlarmsForAlarmDefinition(tuple.getString(2));
+          removeAlarmIndex(tuple.getString(2));
+        }
+      } else if (EventProcessingBolt.ALARM_EVENT_STREAM_ID.equals(tuple.getSourceStreamId())) {
+        createPendingAlarms();
+        if (EventProcessingBolt.DELETED.equals(tuple.getString(0))) {
+          handleAlarmDeleted((AlarmDeletedEvent) tuple.getValue(2));
         }
       } else if (EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID.equals(tuple.getSourceStreamId())) {
+        createPendingAlarms();
         final String eventType = tuple.getString(0);
         logger.debug("Received {} Event", eventType);
         if (EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID.equals(tuple.getSourceStreamId())) {
@@ -109,6 +173,11 @@ public class AlarmCreationBolt extends BaseRichBolt {
             final AlarmDefinitionDeletedEvent event =
                 (AlarmDefinitionDeletedEvent) tuple.getValue(1);
             removeWaitingAlarmsForAlarmDefinition(event.alarmDefinitionId);
+            removeAlarmIndex(event.alarmDefinitionId);
+          } else if (EventProcessingBolt.UPDATED.equals(eventType)) {
+            final AlarmDefinitionUpdatedEvent event =
+                (AlarmDefinitionUpdatedEvent) tuple.getValue(1);
+            removeAlarmIndex(event.alarmDefinitionId);
           }
         }
       }
@@ -123,33 +192,107 @@ public class AlarmCreationBolt extends BaseRichBolt {
     }
   }
 
+  private boolean batchingCreation() {
+    return config.creationBatchMillis > 0;
+  }
+
+  private void createPendingAlarmsIfDue() {
+    if (!pendingAlarms.isEmpty()
+        && ((pendingAlarms.size() >= config.maxCreationBatchSize)
+            || ((getCurrentTimeMillis() - pendingSinceMillis) >= config.creationBatchMillis))) {
+      createPendingAlarms();
+    }
+  }
+
+  /**
+   * Creates the pending Alarms in one transaction and sends their SubAlarms. If that fails, the
+   * Alarms are dropped from the index just as an Alarm whose creation failed is never indexed
+   */
+  private void createPendingAlarms() {
+    if (pendingAlarms.isEmpty()) {
+      return;
+    }
+    try {
+      alarmDAO.createAlarms(new ArrayList<>(pendingAlarms.values()));
+      logger.debug("Created {} alarms", pendingAlarms.size());
+      for (final Values values : pendingEmits) {
+        collector.emit(ALARM_CREATION_STREAM, values);
+      }
+    } catch (RuntimeException e) {
+      logger.error("Failed to create {} alarms", pendingAlarms.size(), e);
+      for (final Alarm alarm : pendingAlarms.values()) {
+        final AlarmIndex index = alarmIndexes.get(alarm.getAlarmDefinitionId());
+        if (index != null) {
+          index.remove(alarm.getId());
+        }
+      }
+    } finally {
+      pendingAlarms.clear();
+      pendingEmits.clear();
+    }
+  }
+
   private void removeWaitingAlarmsForAlarmDefinition(String alarmDefinitionId) {
-    final List<Alarm> waiting = waitingAlarms.remove(alarmDefinitionId);
-    if (waiting != null && !waiting.isEmpty()) {
-      logger.info("{} waiting alarms removed for Alarm Definition Id {}", waiting != null
-          && !waiting.isEmpty() ? waiting.size() : "No", alarmDefinitionId);
+    final int removed = waitingAlarms.removeAlarmDefinition(alarmDefinitionId);
+    if (removed > 0) {
+      logger.info("{} waiting alarms removed for Alarm Definition Id {}", removed,
+          alarmDefinitionId);
+    }
+  }
+
+  private void removeAlarmIndex(String alarmDefinitionId) {
+    final AlarmIndex index = alarmIndexes.remove(alarmDefinitionId);
+    if (index != null) {
+      logger.info("{} indexed alarms removed for Alarm Definition Id {}", index.size(),
+          alarmDefinitionId);
+    }
+  }
+
+  private void handleAlarmDeleted(AlarmDeletedEvent event) {
+    final AlarmIndex index = alarmIndexes.get(event.alarmDefinitionId);
+    if ((index != null) && (index.remove(event.alarmId) != null)) {
+      logger.debug("Removed deleted alarm {} from the index", event.alarmId);
+    }
+  }
+
+  private AlarmIndex getAlarmIndex(String alarmDefinitionId) {
+    AlarmIndex index = alarmIndexes.get(alarmDefinitionId);
+    if (index == null) {
+      final AlarmDefinition alarmDefinition = lookUpAlarmDefinition(alarmDefinitionId);
+      if (alarmDefinition == null) {
+        return null;
+      }
+      index =
+          new AlarmIndex(alarmDefinition, alarmDAO.findForAlarmDefinitionId(alarmDefinitionId));
+      logger.info("Indexed {} alarms for Alarm Definition Id {}", index.size(), alarmDefinitionId);
+      alarmIndexes.put(alarmDefinitionId, index);
     }
+    return index;
   }
 
   protected void handleNewMetricDefinition(
       final MetricDefinitionAndTenantId metricDefinitionAndTenantId, final String alarmDefinitionId) {
-    final AlarmDefinition alarmDefinition = lookUpAlarmDefinition(alarmDefinitionId);
-    if (alarmDefinition == null) {
+    final AlarmIndex existingAlarms = getAlarmIndex(alarmDefinitionId);
+    if (existingAlarms == null) {
       return;
     }
+    final AlarmDefinition alarmDefinition = existingAlarms.getAlarmDefinition();
 
     if (!validMetricDefinition(alarmDefinition, metricDefinitionAndTenantId)) {
       return;
     }
 
-    final List<Alarm> existingAlarms = alarmDAO.findForAlarmDefinitionId(alarmDefinitionId);
-    if (alreadyCreated(existingAlarms, metricDefinitionAndTenantId)) {
+    if (existingAlarms.contains(metricDefinitionAndTenantId)) {
       logger.warn("MetricDefinition {} is already in existing Alarm", metricDefinitionAndTenantId);
       return;
     }
 
-    if (alreadyCreated(getWaitingAlarmsForAlarmDefinition(alarmDefinition),
-        metricDefinitionAndTenantId)) {
+    final int expired = waitingAlarms.expire(getCurrentTime());
+    if (expired > 0) {
+      logger.warn("{} waiting alarms expired without getting all of their metrics", expired);
+    }
+
+    if (waitingAlarms.contains(alarmDefinitionId, metricDefinitionAndTenantId)) {
       logger.warn("MetricDefinition {} is already in waiting Alarm", metricDefinitionAndTenantId);
       return;
     }
@@ -160,7 +303,7 @@ public class AlarmCreationBolt extends BaseRichBolt {
     if (existingAlarm != null) {
       logger.info("Metric {} fits into existing alarm {}", metricDefinitionAndTenantId,
           existingAlarm);
-      addToExistingAlarm(existingAlarm, metricDefinitionAndTenantId);
+      addToExistingAlarm(existingAlarm, metricDefinitionAndTenantId, existingAlarms);
     } else {
       final List<Alarm> newAlarms =
           finishesAlarm(alarmDefinition, metricDefinitionAndTenantId, existingAlarms);
@@ -174,28 +317,24 @@ public class AlarmCreationBolt extends BaseRichBolt {
   }
 
   private Alarm fitsInExistingAlarm(final MetricDefinitionAndTenantId metricDefinitionAndTenantId,
-      final AlarmDefinition alarmDefinition, final List<Alarm> existingAlarms) {
-    Alarm existingAlarm = null;
-    if (alarmDefinition.getMatchBy().isEmpty()) {
-      if (!existingAlarms.isEmpty()) {
-        existingAlarm = existingAlarms.get(0);
-      }
-    }
-    else {
-      for (final Alarm alarm : existingAlarms) {
-        if (metricFitsInAlarm(alarm, alarmDefinition, metricDefinitionAndTenantId)) {
-          existingAlarm = alarm;
-          break;
-        }
+      final AlarmDefinition alarmDefinition, final AlarmIndex existingAlarms) {
+    for (final Alarm alarm : existingAlarms
+        .findAlarms(metricDefinitionAndTenantId.metricDefinition)) {
+      if (alarmDefinition.getMatchBy().isEmpty()
+          || metricFitsInAlarm(alarm, alarmDefinition, metricDefinitionAndTenantId)) {
+        return alarm;
       }
     }
-    return existingAlarm;
+    return null;
   }
 
   private void addToExistingAlarm(Alarm existingAlarm,
-      MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
-    existingAlarm.addAlarmedMetric(metricDefinitionAndTenantId);
-    alarmDAO.addAlarmedMetric(existingAlarm.getId(), metricDefinitionAndTenantId);
+      MetricDefinitionAndTenantId metricDefinitionAndTenantId, AlarmIndex existingAlarms) {
+    // A pending Alarm is created with all of the metrics it has by then
+    if (!pendingAlarms.containsKey(existingAlarm.getId())) {
+      alarmDAO.addAlarmedMetric(existingAlarm.getId(), metricDefinitionAndTenantId);
+    }
+    existingAlarms.addAlarmedMetric(existingAlarm, metricDefinitionAndTenantId);
   }
 
   private void sendNewMetricDefinition(Alarm existingAlarm,
@@ -207,8 +346,12 @@ public class AlarmCreationBolt extends BaseRichBolt {
         final Values values =
             new Values(EventProcessingBolt.CREATED, timn, metricDefinitionAndTenantId,
                 existingAlarm.getAlarmDefinitionId(), subAlarm);
-        logger.debug("Emitting new SubAlarm {}", values);
-        collector.emit(ALARM_CREATION_STREAM, values);
+        if (pendingAlarms.containsKey(existingAlarm.getId())) {
+          pendingEmits.add(values);
+        } else {
+          logger.debug("Emitting new SubAlarm {}", values);
+          collector.emit(ALARM_CREATION_STREAM, values);
+        }
       }
     }
   }
@@ -250,27 +393,36 @@ public class AlarmCreationBolt extends BaseRichBolt {
    * @return
    */
   protected Integer countWaitingAlarms(final String alarmDefinitionId) {
-    final List<Alarm> waiting = waitingAlarms.get(alarmDefinitionId);
-    return waiting == null ? null: Integer.valueOf(waiting.size());
+    return waitingAlarms.count(alarmDefinitionId);
+  }
+
+  /**
+   * This is only used for testing
+   *
+   * @param alarmDefinitionId
+   * @return
+   */
+  protected Integer countIndexedAlarms(final String alarmDefinitionId) {
+    final AlarmIndex index = alarmIndexes.get(alarmDefinitionId);
+    return index == null ? null : Integer.valueOf(index.size());
   }
 
   private List<Alarm> finishesAlarm(AlarmDefinition alarmDefinition,
-      MetricDefinitionAndTenantId metricDefinitionAndTenantId, List<Alarm> existingAlarms) {
-    final List<Alarm> waitingAlarms =
-        findMatchingWaitingAlarms(getWaitingAlarmsForAlarmDefinition(alarmDefinition),
-            alarmDefinition, metricDefinitionAndTenantId);
+      MetricDefinitionAndTenantId metricDefinitionAndTenantId, AlarmIndex existingAlarms) {
+    final List<Alarm> matchingAlarms =
+        findMatchingWaitingAlarms(alarmDefinition, metricDefinitionAndTenantId);
     final List<Alarm> result = new LinkedList<>();
-    if (waitingAlarms.isEmpty()) {
+    if (matchingAlarms.isEmpty()) {
       final Alarm newAlarm = new Alarm(alarmDefinition, AlarmState.UNDETERMINED);
       newAlarm.addAlarmedMetric(metricDefinitionAndTenantId);
       if (alarmIsComplete(newAlarm)) {
         logger.debug("New alarm is complete. Saving");
-        saveAlarm(newAlarm);
+        saveAlarm(newAlarm, existingAlarms);
         result.add(newAlarm);
       } else {
         if (reuseExistingMetric(newAlarm, alarmDefinition, existingAlarms)) {
           logger.debug("New alarm is complete reusing existing metric. Saving");
-          saveAlarm(newAlarm);
+          saveAlarm(newAlarm, existingAlarms);
           result.add(newAlarm);        }
         else {
           logger.debug("Adding new alarm to the waiting list");
@@ -278,11 +430,11 @@ public class AlarmCreationBolt extends BaseRichBolt {
         }
       }
     } else {
-      for (final Alarm waiting : waitingAlarms) {
-        waiting.addAlarmedMetric(metricDefinitionAndTenantId);
+      for (final Alarm waiting : matchingAlarms) {
+        waitingAlarms.addAlarmedMetric(waiting, metricDefinitionAndTenantId);
         if (alarmIsComplete(waiting)) {
-          removeFromWaitingAlarms(waiting, alarmDefinition);
-          saveAlarm(waiting);
+          waitingAlarms.remove(waiting);
+          saveAlarm(waiting, existingAlarms);
           result.add(waiting);
         }
       }
@@ -291,14 +443,12 @@ public class AlarmCreationBolt extends BaseRichBolt {
   }
 
   private boolean reuseExistingMetric(Alarm newAlarm, final AlarmDefinition alarmDefinition,
-      List<Alarm> existingAlarms) {
+      AlarmIndex existingAlarms) {
     boolean addedOne = false;
-    for (final Alarm existingAlarm : existingAlarms) {
-      for (final MetricDefinitionAndTenantId mtid : existingAlarm.getAlarmedMetrics()) {
-        if (metricFitsInAlarm(newAlarm, alarmDefinition, mtid)) {
-          newAlarm.addAlarmedMetric(mtid);
-          addedOne = true;
-        }
+    for (final MetricDefinitionAndTenantId mtid : existingAlarms.findMetrics(newAlarm)) {
+      if (metricFitsInAlarm(newAlarm, alarmDefinition, mtid)) {
+        newAlarm.addAlarmedMetric(mtid);
+        addedOne = true;
       }
     }
     if (!addedOne) {
@@ -307,14 +457,23 @@ public class AlarmCreationBolt extends BaseRichBolt {
     return alarmIsComplete(newAlarm);
   }
 
-  private void saveAlarm(Alarm newAlarm) {
-    alarmDAO.createAlarm(newAlarm);
+  private void saveAlarm(Alarm newAlarm, AlarmIndex existingAlarms) {
+    if (batchingCreation()) {
+      if (pendingAlarms.isEmpty()) {
+        pendingSinceMillis = getCurrentTimeMillis();
+      }
+      pendingAlarms.put(newAlarm.getId(), newAlarm);
+    } else {
+      alarmDAO.createAlarm(newAlarm);
+    }
+    existingAlarms.add(newAlarm);
   }
 
-  private List<Alarm> findMatchingWaitingAlarms(List<Alarm> waiting, AlarmDefinition alarmDefinition,
+  private List<Alarm> findMatchingWaitingAlarms(AlarmDefinition alarmDefinition,
         MetricDefinitionAndTenantId check) {
     final List<Alarm> result = new LinkedList<>();
-    for (final Alarm alarm : waiting) {
+    for (final Alarm alarm : waitingAlarms.findAlarms(alarmDefinition.getId(),
+        check.metricDefinition)) {
       if (metricFitsInAlarm(alarm, alarmDefinition, check)) {
         result.add(alarm);
       }
@@ -324,68 +483,50 @@ public class AlarmCreationBolt extends BaseRichBolt {
 
   protected boolean metricFitsInAlarm(final Alarm alarm, AlarmDefinition alarmDefinition,
       MetricDefinitionAndTenantId check) {
-    final Map<String, String> matchesByValues = getMatchesByValues(alarmDefinition, alarm);
     boolean result = false;
     for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
       if (metricFitsInAlarmSubExpr(subAlarm.getExpression(), check.metricDefinition)) {
         result = true;
-        if (!matchesByValues.isEmpty()) {
-          boolean foundOne = false;
-          for (final Map.Entry<String, String> entry : matchesByValues.entrySet()) {
-            final String value = check.metricDefinition.dimensions.get(entry.getKey());
-            if (value != null) {
-              if (!value.equals(entry.getValue())) {
-                return false;
-              }
-              foundOne = true;
-            }
-          }
-          if (!foundOne) {
-            return false;
-          }
-        }
+        break;
       }
     }
-    return result;
-  }
-
-  private Map<String, String> getMatchesByValues(AlarmDefinition alarmDefinition, final Alarm alarm) {
-    final Map<String, String> matchesByValues = new HashMap<>();
-    if (!alarmDefinition.getMatchBy().isEmpty()) {
-      for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
-        for (final String matchBy : alarmDefinition.getMatchBy()) {
-          final String value = md.metricDefinition.dimensions.get(matchBy);
-          if (value != null) {
-            matchesByValues.put(matchBy, value);
+    if (!result) {
+      return false;
+    }
+    boolean hasMatchBy = false;
+    boolean foundOne = false;
+    for (final String matchBy : alarmDefinition.getMatchBy()) {
+      final String alarmValue = getMatchByValue(alarm, matchBy);
+      if (alarmValue != null) {
+        hasMatchBy = true;
+        final String value = check.metricDefinition.dimensions.get(matchBy);
+        if (value != null) {
+          if (!value.equals(alarmValue)) {
+            return false;
           }
+          foundOne = true;
         }
       }
     }
-    return matchesByValues;
+    return !hasMatchBy || foundOne;
   }
 
-  private void removeFromWaitingAlarms(Alarm toRemove, AlarmDefinition alarmDefinition) {
-    final List<Alarm> waiting = waitingAlarms.get(alarmDefinition.getId());
-    if ((waiting == null) || !waiting.remove(toRemove)) {
-      logger.error("Did not find Alarm to remove");
+  private static String getMatchByValue(final Alarm alarm, final String matchBy) {
+    for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
+      final String value = md.metricDefinition.dimensions.get(matchBy);
+      if (value != null) {
+        return value;
+      }
     }
+    return null;
   }
 
   private void addToWaitingAlarms(Alarm newAlarm, AlarmDefinition alarmDefinition) {
-    List<Alarm> waiting = waitingAlarms.get(alarmDefinition.getId());
-    if (waiting == null) {
-      waiting = new LinkedList<>();
-      waitingAlarms.put(alarmDefinition.getId(), waiting);
-    }
-    waiting.add(newAlarm);
-  }
-
-  private List<Alarm> getWaitingAlarmsForAlarmDefinition(AlarmDefinition alarmDefinition) {
-    final List<Alarm> waiting = waitingAlarms.get(alarmDefinition.getId());
-    if (waiting == null) {
-      return EMPTY_LIST;
+    final int evicted = waitingAlarms.add(alarmDefinition, newAlarm, getCurrentTime());
+    if (evicted > 0) {
+      logger.warn("{} waiting alarms evicted, more than {} alarms are waiting for metrics",
+          evicted, config.maxWaitingAlarms);
     }
-    return waiting;
   }
 
   private boolean alarmIsComplete(Alarm newAlarm) {
@@ -404,18 +545,6 @@ public class AlarmCreationBolt extends BaseRichBolt {
     return true;
   }
 
-  private boolean alreadyCreated(List<Alarm> existingAlarms,
-      MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
-    for (final Alarm alarm : existingAlarms) {
-      for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
-        if (md.equals(metricDefinitionAndTenantId)) {
-          return true;
-        }
-      }
-    }
-    return false;
-  }
-
   private AlarmDefinition lookUpAlarmDefinition(String alarmDefinitionId) {
     final AlarmDefinition found = alarmDefDAO.findById(alarmDefinitionId);
     if (found == null) {
@@ -432,6 +561,12 @@ public class AlarmCreationBolt extends BaseRichBolt {
     logger = LoggerFactory.getLogger(Logging.categoryFor(getClass(), context));
     logger.info("Preparing");
     this.collector = collector;
+    waitingAlarms = new WaitingAlarms(config.maxWaitingAlarms, config.waitingAlarmMaxAgeSeconds);
+    pendingAlarms = new LinkedHashMap<>();
+    pendingEmits = new ArrayList<>();
+    waitingAlarmsMetric = new WaitingAlarmsMetric();
+    context.registerMetric("waiting-alarms", waitingAlarmsMetric,
+        config.metricsTimeBucketSeconds);
 
     if (alarmDefDAO == null) {
       Injector.registerIfNotBound(AlarmDefinitionDAO.class, new PersistenceModule(dbConfig));
@@ -441,6 +576,29 @@ public class AlarmCreationBolt extends BaseRichBolt {
     if (alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
+      ConnectionPoolMetric.register(context);
+    }
+  }
+
+  /**
+   * Reports the waiting Alarms and how many of them were evicted or expired since the last report
+   */
+  private class WaitingAlarmsMetric implements IMetric {
+    private long lastEvicted;
+    private long lastExpired;
+
+    @Override
+    public Object getValueAndReset() {
+      final long evicted = waitingAlarms.getEvicted();
+      final long expired = waitingAlarms.getExpired();
+      final Map<String, Object> result = new HashMap<>();
+      result.put("waiting", waitingAlarms.size());
+      result.put("evicted", evicted - lastEvicted);
+      result.put("expired", expired - lastExpired);
+      result.put("pendingCreation", pendingAlarms.size());
+      lastEvicted = evicted;
+      lastExpired = expired;
+      return result;
     }
   }
 
@@ -450,4 +608,11 @@ public class AlarmCreationBolt extends BaseRichBolt {
   protected long getCurrentTime() {
     return System.currentTimeMillis() / 1000;
   }
+
+  /**
+   * Allow override of current time for testing.
+   */
+  protected long getCurrentTimeMillis() {
+    return System.currentTimeMillis();
+  }
 }
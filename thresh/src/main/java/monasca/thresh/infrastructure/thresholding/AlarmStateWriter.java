@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import backtype.storm.metric.api.IMetric;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the Alarm state changes to the database behind the AlarmThresholdingBolt.
+ *
+ * The latest state of each changed Alarm is kept until a background thread writes them all with
+ * AlarmDAO.updateStates, every flush interval or as soon as a batch of Alarms has changed. An
+ * Alarm that changes state again before it is written is only written once, with its latest
+ * state. At most maxPending Alarms are kept, a write for another Alarm waits until the thread has
+ * taken them. States that failed to be written are kept for the next flush unless the Alarm has
+ * changed state since.
+ *
+ * The bolt acks its tuple and sends the AlarmStateTransitionedEvent before the state is written,
+ * so if the worker dies the state changes not yet written are lost, up to maxPending of them, even
+ * though their notifications were sent. The alarm table then keeps the older states until the
+ * Alarms change state again.
+ *
+ * A state set through the API must not be overwritten by an older state kept here, so the bolt
+ * removes the Alarm with remove when it gets the AlarmUpdatedEvent or AlarmDeletedEvent.
+ *
+ * The statistics are reported as a Storm metric.
+ */
+public class AlarmStateWriter implements IMetric {
+  private static final Logger logger = LoggerFactory.getLogger(AlarmStateWriter.class);
+
+  private final AlarmDAO alarmDAO;
+  private final long flushIntervalNanos;
+  private final int batchSize;
+  private final int maxPending;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final Condition batchFull = lock.newCondition();
+  private final Condition flushDone = lock.newCondition();
+  private final Thread flusher;
+
+  // The rest is guarded by the lock
+  private Map<String, AlarmState> pending = new LinkedHashMap<>();
+  /** The states being written by the thread */
+  private Map<String, AlarmState> flushing;
+  /** Alarms removed while their state was being written, not to be written again on failure */
+  private final Set<String> removed = new HashSet<>();
+  private boolean closed;
+  private long writes;
+  private long coalesced;
+  private long blockedNanos;
+  private long flushes;
+  private long flushedAlarms;
+  private long failedFlushes;
+  private long flushNanos;
+  private long maxFlushNanos;
+
+  public AlarmStateWriter(AlarmDAO alarmDAO, long flushIntervalMillis, int batchSize,
+      int maxPending) {
+    this.alarmDAO = alarmDAO;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    this.batchSize = batchSize;
+    this.maxPending = Math.max(maxPending, batchSize);
+    this.flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushUntilClosed();
+      }
+    }, "alarm-state-writer");
+    this.flusher.setDaemon(true);
+  }
+
+  public void start() {
+    flusher.start();
+  }
+
+  /**
+   * Keeps the state to be written. Waits if too many Alarms are waiting to be written
+   */
+  public void write(String alarmId, AlarmState state) {
+    lock.lock();
+    try {
+      writes++;
+      if (pending.containsKey(alarmId)) {
+        pending.put(alarmId, state);
+        coalesced++;
+        return;
+      }
+      if (pending.size() >= maxPending) {
+        final long startNanos = System.nanoTime();
+        while ((pending.size() >= maxPending) && !closed) {
+          notFull.awaitUninterruptibly();
+        }
+        blockedNanos += System.nanoTime() - startNanos;
+      }
+      pending.put(alarmId, state);
+      if (pending.size() >= batchSize) {
+        batchFull.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets the state of the Alarm that has not been written yet. If its state is being written,
+   * waits until that is done.
+   *
+   * @return true if an older state of the Alarm may have been written after the caller's own
+   *         change, so the caller has to write its state again
+   */
+  public boolean remove(String alarmId) {
+    lock.lock();
+    try {
+      if (pending.remove(alarmId) != null) {
+        notFull.signal();
+      }
+      if ((flushing == null) || !flushing.containsKey(alarmId)) {
+        return false;
+      }
+      removed.add(alarmId);
+      final Map<String, AlarmState> batch = flushing;
+      while (flushing == batch) {
+        flushDone.awaitUninterruptibly();
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the remaining states and stops the thread
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      batchFull.signal();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushUntilClosed() {
+    while (true) {
+      final Map<String, AlarmState> batch;
+      lock.lock();
+      try {
+        final long deadline = System.nanoTime() + flushIntervalNanos;
+        long remaining = flushIntervalNanos;
+        while (!closed && (pending.size() < batchSize) && (remaining > 0)) {
+          batchFull.awaitNanos(remaining);
+          remaining = deadline - System.nanoTime();
+        }
+        if (pending.isEmpty()) {
+          if (closed) {
+            return;
+          }
+          continue;
+        }
+        batch = pending;
+        flushing = batch;
+        pending = new LinkedHashMap<>();
+        notFull.signalAll();
+      } catch (InterruptedException e) {
+        logger.warn("Alarm state writer interrupted, {} states not written", pending.size());
+        return;
+      } finally {
+        lock.unlock();
+      }
+      if (!flush(batch)) {
+        // Don't retry in a loop while the database is down
+        try {
+          Thread.sleep(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos));
+        } catch (InterruptedException e) {
+          logger.warn("Alarm state writer interrupted");
+          return;
+        }
+      }
+    }
+  }
+
+  private boolean flush(Map<String, AlarmState> batch) {
+    final long startNanos = System.nanoTime();
+    try {
+      alarmDAO.updateStates(batch);
+      final long elapsedNanos = System.nanoTime() - startNanos;
+      lock.lock();
+      try {
+        flushes++;
+        flushedAlarms += batch.size();
+        flushNanos += elapsedNanos;
+        maxFlushNanos = Math.max(maxFlushNanos, elapsedNanos);
+        flushed();
+      } finally {
+        lock.unlock();
+      }
+      return true;
+    } catch (RuntimeException e) {
+      lock.lock();
+      try {
+        failedFlushes++;
+        if (closed) {
+          logger.error("Failed to write the state of {} alarms, dropping them", batch.size(), e);
+          flushed();
+          return true;
+        }
+        logger.error("Failed to write the state of {} alarms, will retry", batch.size(), e);
+        for (final Map.Entry<String, AlarmState> entry : batch.entrySet()) {
+          // A newer state is kept, and a removed Alarm is not written
+          if (!pending.containsKey(entry.getKey()) && !removed.contains(entry.getKey())) {
+            pending.put(entry.getKey(), entry.getValue());
+          }
+        }
+        flushed();
+      } finally {
+        lock.unlock();
+      }
+      return false;
+    }
+  }
+
+  private void flushed() {
+    flushing = null;
+    removed.clear();
+    flushDone.signalAll();
+  }
+
+  @Override
+  public Object getValueAndReset() {
+    final Map<String, Object> result = new HashMap<>();
+    lock.lock();
+    try {
+      result.put("pending", pending.size());
+      result.put("writes", writes);
+      result.put("coalesced", coalesced);
+      result.put("coalescingRatio", writes == 0 ? 0.0 : (double) coalesced / writes);
+      result.put("blockedMillis", blockedNanos / 1000000.0);
+      result.put("flushes", flushes);
+      result.put("flushedAlarms", flushedAlarms);
+      result.put("failedFlushes", failedFlushes);
+      result.put("meanFlushMillis", flushes == 0 ? 0.0 : flushNanos / 1000000.0 / flushes);
+      result.put("maxFlushMillis", maxFlushNanos / 1000000.0);
+      writes = 0;
+      coalesced = 0;
+      blockedNanos = 0;
+      flushes = 0;
+      flushedAlarms = 0;
+      failedFlushes = 0;
+      flushNanos = 0;
+      maxFlushNanos = 0;
+    } finally {
+      lock.unlock();
+    }
+    return result;
+  }
+}
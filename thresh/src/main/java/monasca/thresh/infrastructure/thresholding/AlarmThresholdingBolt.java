@@ -28,12 +28,14 @@ import monasca.common.streaming.storm.Streams;
 import monasca.common.util.Injector;
 import monasca.common.util.Serialization;
 
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseRichBolt;
 import backtype.storm.tuple.Tuple;
 
+import monasca.thresh.AlarmThresholdingConfig;
 import monasca.thresh.ThresholdingConfiguration;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
@@ -62,6 +64,12 @@ import java.util.Map;
  * <li>Input: String alarmId, SubAlarm subAlarm
  * <li>Input alarm-events: String eventType, String alarmId
  * </ul>
+ * <p/>
+ * If a state flush interval is configured, the state changes are written to the database by an
+ * AlarmStateWriter behind the bolt instead of one at a time as they happen. The state changes not
+ * yet written when the worker dies are then lost, although their events were already sent. If an
+ * event queue size is configured, the state transition events are sent to Kafka from a background
+ * thread.
  */
 public class AlarmThresholdingBolt extends BaseRichBolt {
   private static final long serialVersionUID = -4126465124017857754L;
@@ -69,6 +77,7 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
   private transient Logger logger;
   private DataSourceFactory dbConfig;
   private KafkaProducerConfiguration producerConfiguration;
+  private final AlarmThresholdingConfig thresholdingConfig;
   final Map<String, Alarm> alarms = new HashMap<String, Alarm>();
   final Map<String, AlarmDefinition> alarmDefinitions = new HashMap<>();
   private String alertExchange;
@@ -76,18 +85,31 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
   private transient AlarmDAO alarmDAO;
   private transient AlarmDefinitionDAO alarmDefinitionDAO;
   private transient AlarmEventForwarder alarmEventForwarder;
+  private transient AlarmStateWriter stateWriter;
   private OutputCollector collector;
 
   public AlarmThresholdingBolt(DataSourceFactory dbConfig, KafkaProducerConfiguration producerConfig) {
+    this(dbConfig, producerConfig, new AlarmThresholdingConfig());
+  }
+
+  public AlarmThresholdingBolt(DataSourceFactory dbConfig,
+      KafkaProducerConfiguration producerConfig, AlarmThresholdingConfig thresholdingConfig) {
     this.dbConfig = dbConfig;
     this.producerConfiguration = producerConfig;
+    this.thresholdingConfig = thresholdingConfig;
   }
 
   public AlarmThresholdingBolt(final AlarmDAO alarmDAO, final AlarmDefinitionDAO alarmDefinitionDAO,
       final AlarmEventForwarder alarmEventForwarder) {
+    this(alarmDAO, alarmDefinitionDAO, alarmEventForwarder, new AlarmThresholdingConfig());
+  }
+
+  public AlarmThresholdingBolt(final AlarmDAO alarmDAO, final AlarmDefinitionDAO alarmDefinitionDAO,
+      final AlarmEventForwarder alarmEventForwarder, AlarmThresholdingConfig thresholdingConfig) {
     this.alarmDAO = alarmDAO;
     this.alarmDefinitionDAO = alarmDefinitionDAO;
     this.alarmEventForwarder = alarmEventForwarder;
+    this.thresholdingConfig = thresholdingConfig;
   }
 
   @Override
@@ -179,6 +201,7 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     if (alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
+      ConnectionPoolMetric.register(context);
     }
 
     if (alarmDefinitionDAO == null) {
@@ -187,9 +210,32 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     }
     if (alarmEventForwarder == null) {
       Injector.registerIfNotBound(AlarmEventForwarder.class, new ProducerModule(
-          this.producerConfiguration));
+          this.producerConfiguration, thresholdingConfig));
       alarmEventForwarder = Injector.getInstance(AlarmEventForwarder.class);
     }
+    if (alarmEventForwarder instanceof IMetric) {
+      context.registerMetric("alarm-event-forwarder", (IMetric) alarmEventForwarder,
+          thresholdingConfig.metricsTimeBucketSeconds);
+    }
+
+    if (thresholdingConfig.stateFlushIntervalMillis > 0) {
+      stateWriter =
+          new AlarmStateWriter(alarmDAO, thresholdingConfig.stateFlushIntervalMillis,
+              thresholdingConfig.stateFlushBatchSize, thresholdingConfig.maxPendingStates);
+      stateWriter.start();
+      context.registerMetric("alarm-state-writer", stateWriter,
+          thresholdingConfig.metricsTimeBucketSeconds);
+    }
+  }
+
+  @Override
+  public void cleanup() {
+    if (stateWriter != null) {
+      stateWriter.close();
+    }
+    if (alarmEventForwarder != null) {
+      alarmEventForwarder.close();
+    }
   }
 
   private void evaluateThreshold(Alarm alarm, SubAlarm subAlarm) {
@@ -200,7 +246,7 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     AlarmState initialState = alarm.getState();
     // Wait for all sub alarms to have a state before evaluating to prevent flapping on startup
     if (allSubAlarmsHaveState(alarm)
-        && alarm.evaluate(alarmDefinitions.get(alarm.getAlarmDefinitionId()).getAlarmExpression())) {
+        && alarm.evaluate(alarmDefinitions.get(alarm.getAlarmDefinitionId()))) {
       changeAlarmState(alarm, initialState, alarm.getStateChangeReason());
     }
   }
@@ -215,7 +261,11 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
   }
 
   private void changeAlarmState(Alarm alarm, AlarmState initialState, String stateChangeReason) {
-    alarmDAO.updateState(alarm.getId(), alarm.getState());
+    if (stateWriter != null) {
+      stateWriter.write(alarm.getId(), alarm.getState());
+    } else {
+      alarmDAO.updateState(alarm.getId(), alarm.getState());
+    }
     final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarm.getAlarmDefinitionId());
     final List<MetricDefinition> alarmedMetrics = new ArrayList<>(alarm.getAlarmedMetrics().size());
     for (final MetricDefinitionAndTenantId mdtid : alarm.getAlarmedMetrics()) {
@@ -230,8 +280,10 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
             getTimestamp());
     try {
       alarmEventForwarder.send(alertExchange, alertRoutingKey, Serialization.toJson(event));
-    } catch (Exception ignore) {
-      logger.debug("Failure sending alarm", ignore);
+    } catch (Exception e) {
+      // The state change is saved, or queued for the AlarmStateWriter, so the tuple is not failed
+      // for this
+      logger.error("Failed to send the state transition of alarm {}", alarm.getId(), e);
     }
   }
 
@@ -241,10 +293,17 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
 
   void handleAlarmDeleted(String alarmId) {
     logger.debug("Received AlarmDeletedEvent for alarm id {}", alarmId);
+    if (stateWriter != null) {
+      stateWriter.remove(alarmId);
+    }
     alarms.remove(alarmId);
   }
 
   void handleAlarmUpdated(String alarmId, AlarmUpdatedEvent alarmUpdatedEvent) {
+    // The state set through the API must not be overwritten by an older one not yet written
+    if ((stateWriter != null) && stateWriter.remove(alarmId)) {
+      alarmDAO.updateState(alarmId, alarmUpdatedEvent.alarmState);
+    }
     final Alarm oldAlarm = alarms.get(alarmId);
     if (oldAlarm == null) {
       logger.debug("Updated Alarm {} not loaded, ignoring");
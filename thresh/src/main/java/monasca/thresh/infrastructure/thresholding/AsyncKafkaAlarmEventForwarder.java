@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import backtype.storm.metric.api.IMetric;
+
+import monasca.common.configuration.KafkaProducerConfiguration;
+import monasca.common.configuration.KafkaProducerProperties;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the Alarm events to Kafka from a background thread so the caller does not wait for the
+ * brokers.
+ *
+ * The events are kept in a bounded queue and the thread sends them in batches of up to batchSize,
+ * compressed with the compression codec of the producer configuration. An event sent while the
+ * queue is full is dropped. A batch the producer fails to send, after its own retries, is dropped
+ * too. The events sent, dropped and failed are reported as a Storm metric.
+ */
+public class AsyncKafkaAlarmEventForwarder implements AlarmEventForwarder, IMetric {
+  private static final Logger logger = LoggerFactory.getLogger(AsyncKafkaAlarmEventForwarder.class);
+  private static final long POLL_MILLIS = 100;
+
+  private final Producer<String, String> producer;
+  private final String topic;
+  private final int batchSize;
+  private final BlockingQueue<KeyedMessage<String, String>> queue;
+  private final Thread sender;
+  private volatile boolean closed;
+
+  private final AtomicLong sentEvents = new AtomicLong();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final AtomicLong failedEvents = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong failedBatches = new AtomicLong();
+  private final AtomicLong sendNanos = new AtomicLong();
+
+  public AsyncKafkaAlarmEventForwarder(KafkaProducerConfiguration kafkaConfig, int queueSize,
+      int batchSize) {
+    this(new Producer<String, String>(new ProducerConfig(producerProperties(kafkaConfig))),
+        kafkaConfig.getTopic(), queueSize, batchSize);
+  }
+
+  AsyncKafkaAlarmEventForwarder(Producer<String, String> producer, String topic, int queueSize,
+      int batchSize) {
+    this.producer = producer;
+    this.topic = topic;
+    this.batchSize = Math.max(batchSize, 1);
+    this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, this.batchSize));
+    this.sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        sendUntilClosed();
+      }
+    }, "alarm-event-forwarder");
+    this.sender.setDaemon(true);
+    this.sender.start();
+  }
+
+  static Properties producerProperties(KafkaProducerConfiguration kafkaConfig) {
+    final Properties properties = KafkaProducerProperties.createKafkaProperties(kafkaConfig);
+    // The batches are already sent from a background thread. With Kafka's own async producer the
+    // failures would only be logged by Kafka
+    properties.setProperty("producer.type", "sync");
+    return properties;
+  }
+
+  @Override
+  public void send(String alertExchange, String alertRoutingKey, String json) {
+    logger.debug("queueing alertExchange: {}, alertRoutingKey: {}, json: {}", alertExchange,
+        alertRoutingKey, json);
+    if (!queue.offer(new KeyedMessage<String, String>(topic, alertRoutingKey, json))) {
+      // Only log the first event dropped since the last report
+      if (droppedEvents.getAndIncrement() == 0) {
+        logger.warn("Alarm event queue is full, dropping events");
+      }
+    }
+  }
+
+  private void sendUntilClosed() {
+    final List<KeyedMessage<String, String>> batch = new ArrayList<>(batchSize);
+    while (true) {
+      try {
+        final KeyedMessage<String, String> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          if (closed && queue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+        batch.add(first);
+      } catch (InterruptedException e) {
+        logger.warn("Alarm event forwarder interrupted, {} events not sent", queue.size());
+        return;
+      }
+      queue.drainTo(batch, batchSize - 1);
+      sendBatch(batch);
+      batch.clear();
+    }
+  }
+
+  private void sendBatch(List<KeyedMessage<String, String>> batch) {
+    final long startNanos = System.nanoTime();
+    try {
+      producer.send(batch);
+      sentEvents.addAndGet(batch.size());
+      batches.incrementAndGet();
+    } catch (RuntimeException e) {
+      failedEvents.addAndGet(batch.size());
+      failedBatches.incrementAndGet();
+      logger.error("Failed to send {} alarm events, dropping them", batch.size(), e);
+    } finally {
+      sendNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Sends the events still queued and closes the producer
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      sender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    producer.close();
+  }
+
+  @Override
+  public Object getValueAndReset() {
+    final long sent = sentEvents.getAndSet(0);
+    final long batchCount = batches.getAndSet(0);
+    final long failedBatchCount = failedBatches.getAndSet(0);
+    final long nanos = sendNanos.getAndSet(0);
+    final long sends = batchCount + failedBatchCount;
+
+    final Map<String, Object> result = new HashMap<>();
+    result.put("queued", queue.size());
+    result.put("sent", sent);
+    result.put("dropped", droppedEvents.getAndSet(0));
+    result.put("failed", failedEvents.getAndSet(0));
+    result.put("batches", batchCount);
+    result.put("failedBatches", failedBatchCount);
+    result.put("averageBatchSize", batchCount == 0 ? 0.0 : (double) sent / batchCount);
+    result.put("meanSendMillis", sends == 0 ? 0.0 : nanos / 1000000.0 / sends);
+    return result;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import backtype.storm.metric.api.IMetric;
+import backtype.storm.task.TopologyContext;
+
+import monasca.common.util.Injector;
+import monasca.thresh.infrastructure.persistence.ConnectionPool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports the size of the worker's ConnectionPool and how long getting connections from it took
+ * since the last report. The pool is shared by the bolts of the worker, so every bolt reporting it
+ * sees the same pool.
+ */
+public class ConnectionPoolMetric implements IMetric {
+  public static final String NAME = "connection-pool";
+  public static final int TIME_BUCKET_SECONDS = 60;
+
+  private final ConnectionPool connectionPool;
+  private long lastConnectionCount;
+  private long lastConnectionWaitNanos;
+
+  public ConnectionPoolMetric(ConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+    lastConnectionCount = connectionPool.getConnectionCount();
+    lastConnectionWaitNanos = connectionPool.getConnectionWaitNanos();
+  }
+
+  /**
+   * Registers the metric for the ConnectionPool bound by the PersistenceModule
+   */
+  public static void register(TopologyContext context) {
+    context.registerMetric(NAME,
+        new ConnectionPoolMetric(Injector.getInstance(ConnectionPool.class)), TIME_BUCKET_SECONDS);
+  }
+
+  @Override
+  public Object getValueAndReset() {
+    final long connectionCount = connectionPool.getConnectionCount();
+    final long connectionWaitNanos = connectionPool.getConnectionWaitNanos();
+    final long connections = connectionCount - lastConnectionCount;
+    final long waitNanos = connectionWaitNanos - lastConnectionWaitNanos;
+    lastConnectionCount = connectionCount;
+    lastConnectionWaitNanos = connectionWaitNanos;
+
+    final Map<String, Object> result = new HashMap<>();
+    result.put("active", connectionPool.getActive());
+    result.put("idle", connectionPool.getIdle());
+    result.put("waiting", connectionPool.getWaitCount());
+    result.put("connections", connections);
+    result.put("waitMillis", waitNanos / 1000000.0);
+    result.put("averageWaitMillis", connections == 0 ? 0.0 : waitNanos / 1000000.0 / connections);
+    return result;
+  }
+}
@@ -140,6 +140,7 @@ public class EventProcessingBolt extends BaseRichBolt {
     if (alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
+      ConnectionPoolMetric.register(context);
     }
   }
 
@@ -37,8 +37,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
+/**
+ * Reads Kafka messages with one thread per KafkaStream and hands them to nextTuple() through a
+ * MessageRingBuffer of KafkaSpoutConfig.queueSize messages.
+ *
+ * The consumer commits the offsets of the messages its readers have taken, whether or not
+ * nextTuple() has emitted them yet. If the worker dies, the messages still in the queue are lost
+ * rather than read again.
+ */
+public abstract class KafkaSpout extends BaseRichSpout {
   private static final Logger logger = LoggerFactory.getLogger(KafkaSpout.class);
 
   private static final long serialVersionUID = 744004533863562119L;
@@ -49,17 +60,21 @@ public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
 
   private transient List<KafkaStream<byte[], byte[]>> streams = null;
 
+  private static final long FULL_QUEUE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
   private SpoutOutputCollector collector;
 
   private volatile boolean shouldContinue;
 
-  private byte[] message;
+  private transient MessageRingBuffer<byte[]> queue;
 
-  private Thread readerThread;
+  private transient volatile Thread[] readerThreads;
 
-  private String spoutName;
+  private transient AtomicInteger runningReaders;
 
-  private boolean waiting = false;
+  private volatile Thread waitingThread;
+
+  private String spoutName;
 
   protected KafkaSpout(KafkaSpoutConfig kafkaSpoutConfig) {
     this.kafkaSpoutConfig = kafkaSpoutConfig;
@@ -70,10 +85,12 @@ public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
     logger.info("Activated");
     if (streams == null) {
       Map<String, Integer> topicCountMap = new HashMap<>();
-      topicCountMap.put(kafkaSpoutConfig.kafkaConsumerConfiguration.getTopic(), new Integer(1));
+      topicCountMap.put(kafkaSpoutConfig.kafkaConsumerConfiguration.getTopic(),
+          kafkaSpoutConfig.numStreams);
       Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap =
           consumerConnector.createMessageStreams(topicCountMap);
       streams = consumerMap.get(kafkaSpoutConfig.kafkaConsumerConfiguration.getTopic());
+      logger.info("Reading from {} streams", streams.size());
     }
   }
 
@@ -81,6 +98,8 @@ public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
   public void open(Map conf, TopologyContext context, SpoutOutputCollector collector) {
     logger.info("Opened");
     this.collector = collector;
+    this.queue = new MessageRingBuffer<>(kafkaSpoutConfig.queueSize);
+    this.runningReaders = new AtomicInteger();
     logger.info(" topic = " + kafkaSpoutConfig.kafkaConsumerConfiguration.getTopic());
     this.spoutName = String.format("%s-%d", context.getThisComponentId(), context.getThisTaskId());
 
@@ -95,89 +114,108 @@ public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
   }
 
   @Override
-  public synchronized void deactivate() {
+  public void deactivate() {
     logger.info("deactivated");
     this.consumerConnector.shutdown();
     this.shouldContinue = false;
-    // Wake up the reader thread if it is waiting
-    notify();
-  }
-
-  @Override
-  public void run() {
-    while (this.shouldContinue) {
-      final ConsumerIterator<byte[], byte[]> it = streams.get(0).iterator();
-      if (it.hasNext()) {
-        final byte[] message = it.next().message();
-        synchronized (this) {
-          this.message = message;
-          // Wake up getMessage() if it is waiting
-          if (this.waiting) {
-            notify();
-          }
-          while (this.message != null && this.shouldContinue)
-            try {
-              wait();
-            } catch (InterruptedException e) {
-              logger.info("Wait interrupted", e);
-            }
-        }
+    // Wake up the reader threads if they are waiting for room in the queue
+    final Thread[] readers = this.readerThreads;
+    if (readers != null) {
+      for (final Thread reader : readers) {
+        LockSupport.unpark(reader);
       }
     }
-    logger.info("readerThread {} exited", this.readerThread.getName());
-    this.readerThread = null;
   }
 
   @Override
   public void nextTuple() {
     logger.debug("nextTuple called");
     checkReaderRunning();
-    final byte[] message = getMessage();
-    if (message != null) {
-      logger.debug("streams iterator has next");
-      processMessage(message, collector);
+    if (processMessages() == 0) {
+      waitForMessage();
+      processMessages();
     }
   }
 
   private void checkReaderRunning() {
     this.shouldContinue = true;
-    if (this.readerThread == null) {
-      final String threadName = String.format("%s reader", this.spoutName);
-      this.readerThread = new Thread(this, threadName);
-      this.readerThread.start();
-      logger.info("Started Reader Thread {}", this.readerThread.getName());
+    if (this.readerThreads == null) {
+      final Thread[] readers = new Thread[streams.size()];
+      for (int i = 0; i < readers.length; i++) {
+        final String threadName = String.format("%s reader %d", this.spoutName, i);
+        readers[i] = new Thread(new StreamReader(streams.get(i)), threadName);
+      }
+      this.runningReaders.set(readers.length);
+      this.readerThreads = readers;
+      for (final Thread reader : readers) {
+        reader.start();
+        logger.info("Started Reader Thread {}", reader.getName());
+      }
     }
   }
 
   /**
-   * Must only be called from a synchronized method
+   * Processes up to maxBatchSize queued messages
    *
-   * @return
+   * @return the number of messages processed
    */
-  private byte[] tryToGetMessage() {
-    final byte[] result = this.message;
-    if (result != null) {
-      this.message = null;
-      notify();
+  private int processMessages() {
+    int count = 0;
+    byte[] message;
+    while ((count < kafkaSpoutConfig.maxBatchSize) && ((message = this.queue.poll()) != null)) {
+      processMessage(message, collector);
+      count++;
     }
-    return result;
+    if (count > 0) {
+      logger.debug("Processed {} queued messages", count);
+    }
+    return count;
   }
 
-  private synchronized byte[] getMessage() {
-    final byte[] result = tryToGetMessage();
-    if (result != null) {
-      return result;
-    }
+  private void waitForMessage() {
     // Storm docs recommend a short sleep but make the sleep time
-    // configurable so we can lessen the load on dev systems
-    this.waiting = true;
-    try {
-      wait(kafkaSpoutConfig.maxWaitTime);
-    } catch (InterruptedException e) {
-      logger.info("Sleep interrupted", e);
+    // configurable so we can lessen the load on dev systems.
+    // waitingThread is set before checking the queue so the reader either sees it and wakes
+    // us up or we see its message
+    this.waitingThread = Thread.currentThread();
+    if (this.queue.isEmpty()) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(kafkaSpoutConfig.maxWaitTime));
+    }
+    this.waitingThread = null;
+  }
+
+  /**
+   * Reads one KafkaStream and puts its messages on the queue shared by all of the streams
+   */
+  private class StreamReader implements Runnable {
+    private final KafkaStream<byte[], byte[]> stream;
+
+    private StreamReader(KafkaStream<byte[], byte[]> stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public void run() {
+      final ConsumerIterator<byte[], byte[]> it = stream.iterator();
+      while (shouldContinue) {
+        if (it.hasNext()) {
+          final byte[] message = it.next().message();
+          while (!queue.offer(message) && shouldContinue) {
+            // nextTuple() is behind so wait for it to make room
+            LockSupport.parkNanos(FULL_QUEUE_WAIT_NANOS);
+          }
+          // Wake up nextTuple() if it is waiting
+          final Thread waiting = waitingThread;
+          if (waiting != null) {
+            LockSupport.unpark(waiting);
+          }
+        }
+      }
+      logger.info("readerThread {} exited", Thread.currentThread().getName());
+      if (runningReaders.decrementAndGet() == 0) {
+        readerThreads = null;
+      }
     }
-    this.waiting = false;
-    return tryToGetMessage(); // We might have been woken up because there was a message
   }
 
   protected abstract void processMessage(byte[] message, SpoutOutputCollector collector2);
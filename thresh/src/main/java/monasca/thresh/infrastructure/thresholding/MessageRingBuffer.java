@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free queue used to hand messages from the Kafka reader threads to nextTuple().
+ *
+ * Any number of threads may call offer but only one thread may call poll. A producer claims a
+ * slot by advancing the tail with a compare and set and then publishes its message into the slot,
+ * so the consumer treats a claimed but still empty slot as the end of the queue. The consumer
+ * owns the head and publishes it with lazySet, so a message costs no locks. The capacity is
+ * rounded up to a power of two.
+ */
+public class MessageRingBuffer<T> {
+  private final AtomicReferenceArray<T> buffer;
+  private final int capacity;
+  private final int mask;
+  /** Index of the next element to poll. Only written by the consumer */
+  private final AtomicLong head = new AtomicLong();
+  /** Index of the next slot to claim by a producer */
+  private final AtomicLong tail = new AtomicLong();
+
+  public MessageRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0 but was " + capacity);
+    }
+    this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.buffer = new AtomicReferenceArray<>(this.capacity);
+    this.mask = this.capacity - 1;
+  }
+
+  /**
+   * Returns false if the buffer is full
+   */
+  public boolean offer(T element) {
+    long currentTail;
+    do {
+      currentTail = tail.get();
+      if (currentTail - head.get() >= capacity) {
+        return false;
+      }
+    } while (!tail.compareAndSet(currentTail, currentTail + 1));
+    buffer.lazySet((int) currentTail & mask, element);
+    return true;
+  }
+
+  /**
+   * Returns null if the buffer is empty or the next message has been claimed by a producer but
+   * not yet published
+   */
+  public T poll() {
+    final long currentHead = head.get();
+    if (currentHead == tail.get()) {
+      return null;
+    }
+    final int index = (int) currentHead & mask;
+    final T result = buffer.get(index);
+    if (result == null) {
+      return null;
+    }
+    buffer.lazySet(index, null);
+    head.lazySet(currentHead + 1);
+    return result;
+  }
+
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+}
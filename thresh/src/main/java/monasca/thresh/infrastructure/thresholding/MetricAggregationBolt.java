@@ -18,6 +18,8 @@
 package monasca.thresh.infrastructure.thresholding;
 
 import backtype.storm.Config;
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
@@ -30,20 +32,31 @@ import monasca.common.model.metric.Metric;
 import monasca.common.streaming.storm.Logging;
 import monasca.common.streaming.storm.Streams;
 import monasca.common.streaming.storm.Tuples;
+import monasca.thresh.MetricAggregationConfig;
+import monasca.thresh.domain.model.DoubleWindowStats;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubAlarmStats;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.domain.service.LowWatermark;
 import monasca.thresh.domain.service.SubAlarmStatsRepository;
+import monasca.thresh.domain.service.SubAlarmStatsRepository.SharedWindow;
+import monasca.thresh.domain.service.TimingWheel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
@@ -54,12 +67,42 @@ import java.util.Set;
  * The TICK_TUPLE_SECONDS_KEY value should be no greater than the smallest possible window width.
  * This ensures that the window slides in time with the expected metrics.
  *
+ * A tick only evaluates the SubAlarms whose evaluation could have changed since the last tick.
+ * Those are the SubAlarms whose window slid at the last tick, that were sent a value for their
+ * view, that were created, updated or asked to resend their state, or that are still counting
+ * empty windows towards UNDETERMINED. The others would evaluate the same view to the same
+ * result. Windows are only slid when they reach their boundary, which is found with a
+ * TimingWheel, so an idle SubAlarm costs nothing until its next boundary.
+ *
+ * The SubAlarms can be split into shards by the metric they were created for. The tick tuples
+ * then come that many times as often and each one evaluates a single shard, so the evaluation
+ * doesn't hold up the Metrics for a whole pass at once. All the shards of a round are evaluated
+ * and slid with the time of the round's first tick, so the windows move exactly as if every
+ * SubAlarm had been evaluated then.
+ *
+ * SubAlarms of a metric with the same function, period and periods share one window, see
+ * SubAlarmStatsRepository. A shard evaluates all of its SubAlarms before it slides any window, so
+ * the SubAlarms sharing a window all see the same view.
+ *
+ * When a checkpoint directory is configured the numeric windows are checkpointed to a local file
+ * every checkpoint interval, see WindowCheckpoint. A restarted task gives each SubAlarm it is sent
+ * the window it had, slid to the current time, so the SubAlarms don't start with empty windows.
+ *
+ * With event time configured the windows are slid by the timestamps of the Metrics instead of
+ * the clock. Each MetricFilteringBolt sends the low watermark of the Metrics it has seen, and the
+ * event time is the lowest of these less the allowed lateness. The windows are slid as soon as it
+ * moves, and each window is evaluated at every boundary it passes, so working through a backlog
+ * of Metrics after an outage gives the same states as evaluating them as they arrived, instead of
+ * sliding past the backlog and counting the empty windows towards UNDETERMINED. Nothing is
+ * evaluated until the event time is known.
+ *
  * <ul>
  * <li>Input: MetricDefinition metricDefinition, Metric metric
  * <li>Input metric-alarm-events: String eventType, MetricDefinition metricDefinition, String
  * subAlarmId
  * <li>Input metric-sub-alarm-events: String eventType, MetricDefinition metricDefinition, SubAlarm
  * subAlarm
+ * <li>Input watermark: Long watermark
  * <li>Output: String alarmId, SubAlarm subAlarm
  * </ul>
  */
@@ -70,23 +113,52 @@ public class MetricAggregationBolt extends BaseRichBolt {
   public static final String METRIC_AGGREGATION_CONTROL_STREAM = "MetricAggregationControl";
   public static final String[] METRIC_AGGREGATION_CONTROL_FIELDS = new String[] {"directive"};
   public static final String METRICS_BEHIND = "MetricsBehind";
+  public static final String WATERMARK_STREAM = "watermark";
+  public static final String[] WATERMARK_FIELDS = new String[] {"watermark"};
+  private static final Comparator<SubAlarmStats> BY_NEXT_SLIDE = new Comparator<SubAlarmStats>() {
+    @Override
+    public int compare(SubAlarmStats o1, SubAlarmStats o2) {
+      return Long.compare(o1.getNextSlideTimestamp(), o2.getNextSlideTimestamp());
+    }
+  };
 
   final Map<MetricDefinitionAndTenantId, SubAlarmStatsRepository> metricDefToSubAlarmStatsRepos =
       new HashMap<>();
   private final Set<SubAlarmStats> subAlarmStatsSet = new HashSet<>();
   private final Map<String, SubAlarmStats> subAlarmToSubAlarmStats = new HashMap<>();
+  /** The metric each SubAlarm was created for, which decides its shard and the window it shares */
+  private final Map<String, MetricDefinitionAndTenantId> subAlarmHomes = new HashMap<>();
+  private transient Shard[] shards;
+  /** Index of the shard evaluated by the next tick */
+  private transient int nextShard;
+  private transient long roundTimestamp;
+  private transient boolean roundUpToDate;
+  private transient TickMetric tickMetric;
+  private transient WindowCheckpoint checkpoint;
+  private transient long nextCheckpointTimestamp;
+  /** Low watermark of the MetricFilteringBolts, only kept when the windows slide by event time */
+  private transient LowWatermark watermark;
+  private transient long eventTime = LowWatermark.NONE;
 
   private transient Logger logger;
   /** Namespaces for which metrics are received sporadically */
   private Set<String> sporadicMetricNamespaces = Collections.emptySet();
   private OutputCollector collector;
   private boolean upToDate = true;
+  private final MetricAggregationConfig aggregationConfig;
 
   public MetricAggregationBolt() {
+    this(Collections.<String>emptySet(), new MetricAggregationConfig());
   }
 
   public MetricAggregationBolt(Set<String> sporadicMetricNamespaces) {
+    this(sporadicMetricNamespaces, new MetricAggregationConfig());
+  }
+
+  public MetricAggregationBolt(Set<String> sporadicMetricNamespaces,
+      MetricAggregationConfig aggregationConfig) {
     this.sporadicMetricNamespaces = sporadicMetricNamespaces;
+    this.aggregationConfig = aggregationConfig;
   }
 
   @Override
@@ -109,6 +181,8 @@ public class MetricAggregationBolt extends BaseRichBolt {
           aggregateValues(metricDefinitionAndTenantId, metric);
         } else if (METRIC_AGGREGATION_CONTROL_STREAM.equals(tuple.getSourceStreamId())) {
           processControl(tuple.getString(0));
+        } else if (WATERMARK_STREAM.equals(tuple.getSourceStreamId())) {
+          handleWatermark(tuple.getSourceTask(), tuple.getLong(0));
         } else {
           String eventType = tuple.getString(0);
 
@@ -147,7 +221,8 @@ public class MetricAggregationBolt extends BaseRichBolt {
   private void processControl(final String directive) {
     if (METRICS_BEHIND.equals(directive)) {
       logger.debug("Received {}", directive);
-      this.upToDate = false;
+      // With event time the windows never get ahead of the Metrics
+      this.upToDate = aggregationConfig.eventTime;
     } else {
       logger.error("Unknown directive '{}'", directive);
     }
@@ -156,17 +231,95 @@ public class MetricAggregationBolt extends BaseRichBolt {
   @Override
   public Map<String, Object> getComponentConfiguration() {
     Map<String, Object> conf = new HashMap<String, Object>();
+    final int tickSeconds = tickSeconds();
     conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS,
-        Integer.valueOf(System.getProperty(TICK_TUPLE_SECONDS_KEY, "60")).intValue());
+        tickSeconds / numberOfShards(tickSeconds, aggregationConfig.evaluationShards));
     return conf;
   }
 
+  private static int tickSeconds() {
+    return Integer.valueOf(System.getProperty(TICK_TUPLE_SECONDS_KEY, "60")).intValue();
+  }
+
+  /**
+   * Returns the largest number of shards no greater than {@code wanted} that divides the tick
+   * interval, so every round of shards takes exactly the tick interval
+   */
+  static int numberOfShards(int tickSeconds, int wanted) {
+    for (int shardCount = Math.min(Math.max(wanted, 1), tickSeconds); shardCount > 1;
+        shardCount--) {
+      if (tickSeconds % shardCount == 0) {
+        return shardCount;
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Returns the number of tasks sending this Bolt the {@code streamId}
+   */
+  static int countSourceTasks(TopologyContext context, String streamId) {
+    int tasks = 0;
+    final Map<GlobalStreamId, ?> sources = context.getThisSources();
+    if (sources != null) {
+      for (GlobalStreamId source : sources.keySet()) {
+        if (streamId.equals(source.get_streamId())) {
+          tasks += context.getComponentTasks(source.get_componentId()).size();
+        }
+      }
+    }
+    return tasks;
+  }
+
   @Override
   @SuppressWarnings("rawtypes")
   public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
     logger = LoggerFactory.getLogger(Logging.categoryFor(getClass(), context));
     logger.info("Preparing");
     this.collector = collector;
+    final long now = currentTimeSeconds();
+    shards = new Shard[numberOfShards(tickSeconds(), aggregationConfig.evaluationShards)];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(now);
+    }
+    logger.info("Evaluating SubAlarms in {} shards", shards.length);
+    tickMetric = new TickMetric();
+    context.registerMetric("aggregation-tick", tickMetric,
+        aggregationConfig.metricsTimeBucketSeconds);
+    if (aggregationConfig.checkpointDirectory != null) {
+      openCheckpoint(context.getThisTaskId(), now);
+    }
+    if (aggregationConfig.eventTime) {
+      watermark =
+          new LowWatermark(countSourceTasks(context, WATERMARK_STREAM),
+              aggregationConfig.watermarkIdleSeconds, now);
+      logger.info("Sliding windows by event time with a lateness of {} seconds",
+          aggregationConfig.watermarkLatenessSeconds);
+    }
+  }
+
+  private void openCheckpoint(int taskId, long now) {
+    final File directory = new File(aggregationConfig.checkpointDirectory);
+    final File file = new File(directory, "aggregation-" + taskId + ".checkpoint");
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create " + directory);
+      }
+      checkpoint = WindowCheckpoint.open(file, aggregationConfig.checkpointMaxSlots);
+      nextCheckpointTimestamp = now + aggregationConfig.checkpointIntervalSeconds;
+      logger.info("Checkpointing windows to {}, {} windows can be restored", file,
+          checkpoint.size());
+    } catch (IOException e) {
+      logger.error("Failed to open checkpoint {}, windows will not be checkpointed", file, e);
+    }
+  }
+
+  @Override
+  public void cleanup() {
+    if (checkpoint != null) {
+      writeCheckpoint(currentTimeSeconds(), Integer.MAX_VALUE);
+      closeCheckpoint();
+    }
   }
 
   /**
@@ -179,8 +332,11 @@ public class MetricAggregationBolt extends BaseRichBolt {
       return;
     }
 
-    for (SubAlarmStats stats : subAlarmStatsRepo.get()) {
+    for (SubAlarmStats stats : subAlarmStatsRepo.getNotSharing()) {
       if (stats.getStats().addValue(metric.value, metric.timestamp)) {
+        if (stats.isInView(metric.timestamp)) {
+          shardFor(stats).pendingEvaluation.add(stats);
+        }
         logger.trace("Aggregated value {} at {} for {}. Updated {}", metric.value,
             metric.timestamp, metricDefinitionAndTenantId, stats.getStats());
       } else {
@@ -189,33 +345,312 @@ public class MetricAggregationBolt extends BaseRichBolt {
             stats.getStats());
       }
     }
+    for (SharedWindow shared : subAlarmStatsRepo.getSharedWindows()) {
+      if (shared.getWindow().addValue(metric.value, metric.timestamp)) {
+        if (metric.timestamp <= shared.getWindow().getViewEndTimestamp()) {
+          shardFor(metricDefinitionAndTenantId).pendingEvaluation.addAll(shared.getUsers());
+        }
+        logger.trace("Aggregated value {} at {} for {}. Updated {}", metric.value,
+            metric.timestamp, metricDefinitionAndTenantId, shared.getWindow());
+      } else {
+        logger.warn("Metric is too old, age {} seconds: timestamp {} for {}, {}",
+            currentTimeSeconds() - metric.timestamp, metric.timestamp, metricDefinitionAndTenantId,
+            shared.getWindow());
+      }
+    }
   }
 
   /**
-   * Evaluates all SubAlarms for all SubAlarmStatsRepositories using an evaluation time of 1 minute
-   * ago, then sliding the window to the current time.
+   * Evaluates the SubAlarms of the next shard whose evaluation could have changed since they were
+   * last evaluated and slides the windows that have reached their boundary to the time of the
+   * round.
    */
   void evaluateAlarmsAndSlideWindows() {
     logger.debug("evaluateAlarmsAndSlideWindows called");
-    long newWindowTimestamp = currentTimeSeconds();
-    for (SubAlarmStats subAlarmStats : subAlarmStatsSet) {
-      if (upToDate) {
-        logger.debug("Evaluating {}", subAlarmStats);
-        if (subAlarmStats.evaluateAndSlideWindow(newWindowTimestamp)) {
-          logger.debug("Alarm state changed for {}", subAlarmStats);
-          collector.emit(new Values(subAlarmStats.getSubAlarm().getAlarmId(), subAlarmStats
-              .getSubAlarm()));
+    final long startNanos = System.nanoTime();
+    if (nextShard == 0) {
+      if (aggregationConfig.eventTime) {
+        roundUpToDate = advanceEventTime();
+        roundTimestamp = eventTime;
+        if (!roundUpToDate) {
+          logger.info("Not evaluating SubAlarms this round because the event time is not known");
         }
       } else {
-        subAlarmStats.slideWindow(newWindowTimestamp);
+        roundTimestamp = currentTimeSeconds();
+        roundUpToDate = upToDate;
+        upToDate = true;
+        if (!roundUpToDate) {
+          logger.info("Not evaluating SubAlarms this round because Metrics are not up to date");
+        }
+      }
+    }
+    final Shard shard = shards[nextShard];
+    nextShard = (nextShard + 1) % shards.length;
+    if (roundTimestamp == LowWatermark.NONE) {
+      // Nothing can be slid without the event time
+      return;
+    }
+    final long newWindowTimestamp = roundTimestamp;
+    int evaluated = 0;
+    int slid = 0;
+
+    if (aggregationConfig.eventTime) {
+      slideToEventTime(shard, newWindowTimestamp);
+    }
+
+    // Swap the sets so SubAlarmStats can be added for the next round while evaluating this one
+    final Set<SubAlarmStats> evaluating = shard.pendingEvaluation;
+    shard.pendingEvaluation = shard.evaluating;
+    shard.evaluating = evaluating;
+    for (SubAlarmStats subAlarmStats : evaluating) {
+      if (roundUpToDate) {
+        evaluated++;
+        evaluate(shard, subAlarmStats);
+      } else {
+        shard.pendingEvaluation.add(subAlarmStats);
+      }
+    }
+    // Only slide once all are evaluated, a shared window must not move under the others
+    for (SubAlarmStats subAlarmStats : evaluating) {
+      final long nextSlideTimestamp = subAlarmStats.getNextSlideTimestamp();
+      subAlarmStats.slideWindow(newWindowTimestamp);
+      if (subAlarmStats.getNextSlideTimestamp() != nextSlideTimestamp) {
+        slid++;
+        windowSlid(shard, subAlarmStats);
       }
     }
-    if (!upToDate) {
-      logger.info("Did not evaluate SubAlarms because Metrics are not up to date");
-      upToDate = true;
+
+    // Nothing has changed for the others since they were last evaluated, so only the window is slid
+    final Set<SubAlarmStats> due = shard.due;
+    shard.slideWheel.advanceTo(newWindowTimestamp, due);
+    for (SubAlarmStats subAlarmStats : due) {
+      if (!isActive(subAlarmStats)) {
+        continue;
+      }
+      if (subAlarmStats.getNextSlideTimestamp() > newWindowTimestamp) {
+        if (subAlarmStats.getNextSlideTimestamp() <= shard.slideWheel.getCurrentTime()) {
+          // The clock went backwards, so the TimingWheel returned it early
+          shard.slideWheel.schedule(subAlarmStats.getNextSlideTimestamp(), subAlarmStats);
+        }
+        // Otherwise it already slid and the next window is scheduled
+        continue;
+      }
+      subAlarmStats.slideWindow(newWindowTimestamp);
+      slid++;
+      windowSlid(shard, subAlarmStats);
+    }
+    due.clear();
+    evaluating.clear();
+
+    tickMetric.update(System.nanoTime() - startNanos, evaluated, slid);
+    logger.debug("Evaluated {} and slid {} of {} SubAlarms", evaluated, slid,
+        subAlarmStatsSet.size());
+
+    if (checkpoint != null) {
+      final long now = currentTimeSeconds();
+      if (now >= nextCheckpointTimestamp) {
+        nextCheckpointTimestamp = now + aggregationConfig.checkpointIntervalSeconds;
+        writeCheckpoint(now, aggregationConfig.checkpointMaxWindows);
+      }
+    }
+  }
+
+  /**
+   * Slides the windows as soon as the event time moves, rather than at the next tick, so a
+   * backlog of Metrics doesn't run past the future slots of the windows
+   */
+  private void handleWatermark(int sourceTask, long sourceWatermark) {
+    if (watermark == null) {
+      return;
+    }
+    watermark.update(sourceTask, sourceWatermark, currentTimeSeconds());
+    final long previous = eventTime;
+    if (advanceEventTime() && eventTime != previous) {
+      for (Shard shard : shards) {
+        slideToEventTime(shard, eventTime);
+      }
+    }
+  }
+
+  private void evaluate(Shard shard, SubAlarmStats subAlarmStats) {
+    logger.debug("Evaluating {}", subAlarmStats);
+    if (subAlarmStats.evaluateWindow()) {
+      logger.debug("Alarm state changed for {}", subAlarmStats);
+      collector.emit(new Values(subAlarmStats.getSubAlarm().getAlarmId(), subAlarmStats
+          .getSubAlarm()));
+    }
+    if (subAlarmStats.isEvaluationPending()) {
+      shard.pendingEvaluation.add(subAlarmStats);
+    }
+  }
+
+  /**
+   * Evaluates and slides the windows of the {@code shard} whose boundaries the event
+   * {@code time} has passed. Each window is evaluated at each of its boundaries before it slides
+   * past it, so catching up on a backlog of Metrics gives the states they would have given as
+   * they arrived.
+   */
+  private void slideToEventTime(Shard shard, long time) {
+    final PriorityQueue<SubAlarmStats> behind = shard.behind;
+    shard.slideWheel.advanceTo(time, shard.due);
+    for (SubAlarmStats subAlarmStats : shard.due) {
+      if (isActive(subAlarmStats) && subAlarmStats.getNextSlideTimestamp() <= time) {
+        behind.add(subAlarmStats);
+      }
+    }
+    shard.due.clear();
+    final List<SubAlarmStats> atBoundary = shard.atBoundary;
+    while (!behind.isEmpty()) {
+      // The SubAlarms sharing a window have the same boundary, so they are all evaluated before
+      // the window slides
+      final long boundary = behind.peek().getNextSlideTimestamp();
+      while (!behind.isEmpty() && behind.peek().getNextSlideTimestamp() == boundary) {
+        atBoundary.add(behind.poll());
+      }
+      for (SubAlarmStats subAlarmStats : atBoundary) {
+        tickMetric.evaluated++;
+        evaluate(shard, subAlarmStats);
+      }
+      for (SubAlarmStats subAlarmStats : atBoundary) {
+        subAlarmStats.slideWindow(boundary);
+        tickMetric.slid++;
+        if (subAlarmStats.getNextSlideTimestamp() <= time) {
+          behind.add(subAlarmStats);
+        } else {
+          windowSlid(shard, subAlarmStats);
+        }
+      }
+      atBoundary.clear();
     }
   }
 
+  /**
+   * Moves the event time to the low watermark of the MetricFilteringBolts less the lateness. The
+   * first time it is known the SubAlarmStats created so far are moved to it
+   *
+   * @return true if the event time is known
+   */
+  private boolean advanceEventTime() {
+    final long low = watermark.get(currentTimeSeconds());
+    if (low == LowWatermark.NONE) {
+      return false;
+    }
+    final long newEventTime = low - aggregationConfig.watermarkLatenessSeconds;
+    if (eventTime == LowWatermark.NONE) {
+      startEventTime(newEventTime);
+    }
+    eventTime = Math.max(eventTime, newEventTime);
+    return true;
+  }
+
+  /**
+   * The SubAlarmStats created before the event time was known have views ending by the clock.
+   * Empty ones are moved to end one period after the event time and all are scheduled on new
+   * TimingWheels starting at the event time
+   */
+  private void startEventTime(long newEventTime) {
+    logger.info("Event time is {}, {} seconds behind the clock", newEventTime,
+        currentTimeSeconds() - newEventTime);
+    eventTime = newEventTime;
+    for (int i = 0; i < shards.length; i++) {
+      final Shard shard = new Shard(newEventTime);
+      shard.pendingEvaluation.addAll(shards[i].pendingEvaluation);
+      shards[i] = shard;
+    }
+    for (SubAlarmStats subAlarmStats : subAlarmStatsSet) {
+      subAlarmStats.alignEmptyWindow(newEventTime
+          + subAlarmStats.getSubAlarm().getExpression().getPeriod());
+      windowSlid(shardFor(subAlarmStats), subAlarmStats);
+    }
+  }
+
+  private void writeCheckpoint(long now, int maxWindows) {
+    final long startNanos = System.nanoTime();
+    try {
+      final int written = checkpoint.checkpoint(now, maxWindows);
+      tickMetric.checkpointed(System.nanoTime() - startNanos, written);
+      logger.debug("Checkpointed {} windows", written);
+    } catch (IOException e) {
+      logger.error("Failed to checkpoint windows, not checkpointing any more", e);
+      closeCheckpoint();
+    }
+  }
+
+  private void closeCheckpoint() {
+    try {
+      checkpoint.close();
+    } catch (IOException e) {
+      logger.error("Failed to close checkpoint", e);
+    }
+    checkpoint = null;
+  }
+
+  /**
+   * Gives the {@code subAlarmStats} the window that was checkpointed for it, if any, with the view
+   * slid to the current time, and checkpoints its window from now on
+   */
+  private void restoreWindow(SubAlarmStats subAlarmStats) {
+    if (checkpoint == null || subAlarmStats.getNumericStats() == null) {
+      return;
+    }
+    final String subAlarmId = subAlarmStats.getSubAlarm().getId();
+    final DoubleWindowStats restored =
+        checkpoint.restore(subAlarmId, subAlarmStats.getNumericStats());
+    if (restored != null) {
+      subAlarmStats.useWindow(restored);
+      if (!aggregationConfig.eventTime || eventTime != LowWatermark.NONE) {
+        subAlarmStats.slideWindow(now());
+      }
+      tickMetric.restored++;
+      logger.debug("Restored window {} for SubAlarm {}", restored, subAlarmId);
+    }
+    checkpoint.track(subAlarmId, subAlarmStats);
+  }
+
+  /**
+   * The view has changed, so the SubAlarm has to be evaluated in the next round
+   */
+  private void windowSlid(Shard shard, SubAlarmStats subAlarmStats) {
+    shard.slideWheel.schedule(subAlarmStats.getNextSlideTimestamp(), subAlarmStats);
+    shard.pendingEvaluation.add(subAlarmStats);
+  }
+
+  private Shard shardFor(SubAlarmStats subAlarmStats) {
+    return shardFor(subAlarmHomes.get(subAlarmStats.getSubAlarm().getId()));
+  }
+
+  /**
+   * SubAlarms are sharded by metric so the SubAlarms sharing a window are evaluated and slid by
+   * the same tick
+   */
+  private Shard shardFor(MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
+    if (shards.length == 1 || metricDefinitionAndTenantId == null) {
+      return shards[0];
+    }
+    final int hash = metricDefinitionAndTenantId.hashCode() & Integer.MAX_VALUE;
+    return shards[hash % shards.length];
+  }
+
+  private SubAlarmStatsRepository homeRepoOf(SubAlarmStats subAlarmStats) {
+    final MetricDefinitionAndTenantId home = subAlarmHomes.get(subAlarmStats.getSubAlarm().getId());
+    return home == null ? null : metricDefToSubAlarmStatsRepos.get(home);
+  }
+
+  /**
+   * The SubAlarmStats can't be removed from the TimingWheel when the SubAlarm is deleted or the
+   * window is reinitialized, so this checks the SubAlarmStats is still used
+   */
+  private boolean isActive(SubAlarmStats subAlarmStats) {
+    return subAlarmToSubAlarmStats.get(subAlarmStats.getSubAlarm().getId()) == subAlarmStats;
+  }
+
+  /**
+   * Returns the time the windows are slid by, the event time if it is used and known
+   */
+  private long now() {
+    return eventTime == LowWatermark.NONE ? currentTimeSeconds() : eventTime;
+  }
+
   /**
    * Only used for testing.
    *
@@ -260,6 +695,7 @@ public class MetricAggregationBolt extends BaseRichBolt {
 
     final SubAlarm oldSubAlarm = oldSubAlarmStats.getSubAlarm();
     oldSubAlarm.setNoState(true); // Have it send its state again so the Alarm can be evaluated
+    shardFor(oldSubAlarmStats).pendingEvaluation.add(oldSubAlarmStats);
     logger.info("Forcing SubAlarm {} to send state at next evaluation", oldSubAlarm);
   }
 
@@ -282,19 +718,31 @@ public class MetricAggregationBolt extends BaseRichBolt {
 
   private void addSubAlarm(MetricDefinitionAndTenantId metricDefinitionAndTenantId,
       SubAlarm subAlarm) {
+    SubAlarmStatsRepository subAlarmStatsRepo = metricDefToSubAlarmStatsRepos.get(metricDefinitionAndTenantId);
+    if (subAlarmStatsRepo == null) {
+      subAlarmStatsRepo = new SubAlarmStatsRepository();
+      metricDefToSubAlarmStatsRepos.put(metricDefinitionAndTenantId, subAlarmStatsRepo);
+    }
     SubAlarmStats subAlarmStats = subAlarmToSubAlarmStats.get(subAlarm.getId());
     if (subAlarmStats == null) {
-      long viewEndTimestamp = currentTimeSeconds() + subAlarm.getExpression().getPeriod();
+      long viewEndTimestamp = now() + subAlarm.getExpression().getPeriod();
       subAlarmStats = new SubAlarmStats(subAlarm, viewEndTimestamp);
+      restoreWindow(subAlarmStats);
       subAlarmToSubAlarmStats.put(subAlarm.getId(), subAlarmStats);
       subAlarmStatsSet.add(subAlarmStats);
+      subAlarmHomes.put(subAlarm.getId(), metricDefinitionAndTenantId);
+      subAlarmStatsRepo.add(subAlarm.getId(), subAlarmStats);
+      // Sharing may move the end of the view, so it has to happen before the slide is scheduled
+      subAlarmStatsRepo.shareWindow(subAlarmStats);
+      windowSlid(shardFor(subAlarmStats), subAlarmStats);
+    } else if (subAlarmStatsRepo.get(subAlarm.getId()) == null) {
+      // The window now gets values from more than one metric so it can't be shared any more
+      final SubAlarmStatsRepository homeRepo = homeRepoOf(subAlarmStats);
+      if (homeRepo != null) {
+        homeRepo.unshareWindow(subAlarmStats);
+      }
+      subAlarmStatsRepo.add(subAlarm.getId(), subAlarmStats);
     }
-    SubAlarmStatsRepository subAlarmStatsRepo = metricDefToSubAlarmStatsRepos.get(metricDefinitionAndTenantId);
-    if (subAlarmStatsRepo == null) {
-      subAlarmStatsRepo = new SubAlarmStatsRepository();
-      metricDefToSubAlarmStatsRepos.put(metricDefinitionAndTenantId, subAlarmStatsRepo);
-    }
-    subAlarmStatsRepo.add(subAlarm.getId(), subAlarmStats);
   }
 
   protected boolean subAlarmRemoved(final String subAlarmId, MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
@@ -325,8 +773,23 @@ public class MetricAggregationBolt extends BaseRichBolt {
     int updated = 0;
     for (final SubAlarmStats subAlarmStats : subAlarmStatsSet) {
       if (subAlarmStats.getSubAlarm().getAlarmSubExpressionId().equals(subExpression.getId())) {
-        long viewEndTimestamp = currentTimeSeconds() + subExpression.getAlarmSubExpression().getPeriod();
+        long viewEndTimestamp = now() + subExpression.getAlarmSubExpression().getPeriod();
+        final long nextSlideTimestamp = subAlarmStats.getNextSlideTimestamp();
+        // An incompatible expression gets a new window, which may be shared with other SubAlarms
+        final SubAlarmStatsRepository homeRepo = homeRepoOf(subAlarmStats);
+        final boolean reshare =
+            homeRepo != null
+                && !subAlarmStats.getSubAlarm().isCompatible(subExpression.getAlarmSubExpression())
+                && homeRepo.unshareWindow(subAlarmStats);
         subAlarmStats.updateSubAlarm(subExpression.getAlarmSubExpression(), viewEndTimestamp);
+        if (reshare) {
+          homeRepo.shareWindow(subAlarmStats);
+        }
+        final Shard shard = shardFor(subAlarmStats);
+        if (subAlarmStats.getNextSlideTimestamp() != nextSlideTimestamp) {
+          shard.slideWheel.schedule(subAlarmStats.getNextSlideTimestamp(), subAlarmStats);
+        }
+        shard.pendingEvaluation.add(subAlarmStats);
         updated++;
       }
     }
@@ -349,6 +812,104 @@ public class MetricAggregationBolt extends BaseRichBolt {
     final SubAlarmStats subAlarmStats = subAlarmToSubAlarmStats.remove(subAlarmId);
     if (subAlarmStats != null) {
       subAlarmStatsSet.remove(subAlarmStats);
+      shardFor(subAlarmStats).pendingEvaluation.remove(subAlarmStats);
+      subAlarmHomes.remove(subAlarmId);
+      if (checkpoint != null) {
+        checkpoint.untrack(subAlarmId);
+      }
+    }
+  }
+
+  /**
+   * The SubAlarmStats evaluated by one tick of a round
+   */
+  private static class Shard {
+    /** SubAlarmStats to evaluate in the next round */
+    private Set<SubAlarmStats> pendingEvaluation = new HashSet<>();
+    private Set<SubAlarmStats> evaluating = new HashSet<>();
+    private final Set<SubAlarmStats> due = new HashSet<>();
+    /** SubAlarmStats with boundaries the event time has passed, by boundary */
+    private final PriorityQueue<SubAlarmStats> behind = new PriorityQueue<>(11, BY_NEXT_SLIDE);
+    private final List<SubAlarmStats> atBoundary = new ArrayList<>();
+    private final TimingWheel<SubAlarmStats> slideWheel;
+
+    private Shard(long startTime) {
+      slideWheel = new TimingWheel<>(startTime);
+    }
+  }
+
+  /**
+   * Reports how long the ticks took and how much work they did
+   */
+  private class TickMetric implements IMetric {
+    private long ticks;
+    private long lastLatencyNanos;
+    private long maxLatencyNanos;
+    private long totalLatencyNanos;
+    private long evaluated;
+    private long slid;
+    private long checkpoints;
+    private long lastCheckpointNanos;
+    private long maxCheckpointNanos;
+    private long checkpointedWindows;
+    private long restored;
+
+    private void update(long latencyNanos, int evaluatedThisTick, int slidThisTick) {
+      ticks++;
+      lastLatencyNanos = latencyNanos;
+      maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+      totalLatencyNanos += latencyNanos;
+      evaluated += evaluatedThisTick;
+      slid += slidThisTick;
+    }
+
+    private void checkpointed(long latencyNanos, int windows) {
+      checkpoints++;
+      lastCheckpointNanos = latencyNanos;
+      maxCheckpointNanos = Math.max(maxCheckpointNanos, latencyNanos);
+      checkpointedWindows += windows;
+    }
+
+    @Override
+    public Object getValueAndReset() {
+      final Map<String, Object> result = new HashMap<>();
+      result.put("ticks", ticks);
+      result.put("lastLatencyMs", lastLatencyNanos / 1000000.0);
+      result.put("maxLatencyMs", maxLatencyNanos / 1000000.0);
+      result.put("meanLatencyMs", ticks == 0 ? 0.0 : totalLatencyNanos / 1000000.0 / ticks);
+      result.put("evaluated", evaluated);
+      result.put("slid", slid);
+      result.put("subAlarms", subAlarmStatsSet.size());
+      int scheduled = 0;
+      for (Shard shard : shards) {
+        scheduled += shard.slideWheel.size();
+      }
+      result.put("scheduled", scheduled);
+      result.put("shards", shards.length);
+      int sharedWindows = 0;
+      for (SubAlarmStatsRepository repo : metricDefToSubAlarmStatsRepos.values()) {
+        sharedWindows += repo.getSharedWindows().size();
+      }
+      result.put("sharedWindows", sharedWindows);
+      if (checkpoint != null) {
+        result.put("checkpoints", checkpoints);
+        result.put("lastCheckpointMs", lastCheckpointNanos / 1000000.0);
+        result.put("maxCheckpointMs", maxCheckpointNanos / 1000000.0);
+        result.put("checkpointedWindows", checkpointedWindows);
+        result.put("checkpointRecords", checkpoint.size());
+        result.put("checkpointFileBytes", checkpoint.getFileBytes());
+        result.put("restoredWindows", restored);
+      }
+      checkpoints = 0;
+      maxCheckpointNanos = 0;
+      checkpointedWindows = 0;
+      restored = 0;
+      ticks = 0;
+      maxLatencyNanos = 0;
+      totalLatencyNanos = 0;
+      evaluated = 0;
+      slid = 0;
+      return result;
     }
   }
 }
@@ -24,8 +24,11 @@ import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.metric.Metric;
 import monasca.common.streaming.storm.Logging;
 import monasca.common.streaming.storm.Streams;
+import monasca.common.streaming.storm.Tuples;
 import monasca.common.util.Injector;
 
+import backtype.storm.Config;
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
@@ -34,6 +37,8 @@ import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
 
+import monasca.thresh.MetricAggregationConfig;
+import monasca.thresh.MetricFilterConfig;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
@@ -41,14 +46,17 @@ import monasca.thresh.domain.model.MetricDefinitionAndTenantIdMatcher;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.domain.model.TenantIdAndMetricNameFilter;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.domain.service.LowWatermark;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -75,13 +83,24 @@ import java.util.concurrent.ConcurrentHashMap;
  * Bolts sharing the same alreadyFound and the matcher. The amount of adds and deletes will be
  * very small compared to the number of Metrics so it shouldn't block the Metric handling.
  *
+ * Most Metrics don't match any AlarmDefinition, so a Bloom filter keyed on tenant id and metric
+ * name, also shared by the worker, is checked first. It is only changed under SENTINAL and is
+ * replaced by a new one when an AlarmDefinition is deleted or it has grown past its size.
+ *
+ * When the windows are slid by event time, the Bolt tracks the low watermark of the timestamps of
+ * the Metrics it got from each upstream task and sends it to every MetricAggregationBolt whenever
+ * it moves and once a second. A timestamp later than the time the API received the Metric counts
+ * as that time. Metrics the MetricSpout filtered out count through its progress stream.
+ *
  * <ul>
  * <li>Input: MetricDefinition metricDefinition, Metric metric
+ * <li>Input metric-spout-progress: Long apiTimeStamp, Long eventTime
  * <li>Input metric-alarm-events: String eventType, MetricDefinitionAndTenantId
  * metricDefinitionAndTenantId, String alarmId
  * <li>Input metric-sub-alarm-events: String eventType, MetricDefinitionAndTenantId
  * metricDefinitionAndTenantId, SubAlarm subAlarm
  * <li>Output: MetricDefinitionAndTenantId metricDefinitionAndTenantId, Metric metric
+ * <li>Output watermark: Long watermark
  * </ul>
  */
 public class MetricFilteringBolt extends BaseRichBolt {
@@ -109,8 +128,15 @@ public class MetricFilteringBolt extends BaseRichBolt {
   private static final ExistingHolder alreadyFound = new ExistingHolder();
   private static final Object SENTINAL = new Object();
   private static final Map<String, AlarmDefinition> alarmDefinitions = new ConcurrentHashMap<>();
+  private static volatile TenantIdAndMetricNameFilter filter;
   private transient Logger logger;
   private DataSourceFactory dbConfig;
+  private final MetricFilterConfig filterConfig;
+  private final MetricAggregationConfig aggregationConfig;
+  /** Low watermark of the Metric timestamps, only kept when the windows slide by event time */
+  private transient LowWatermark watermark;
+  private transient long lastWatermarkSent;
+  private transient FilterMetric filterMetric;
   private transient AlarmDAO alarmDAO;
   private transient AlarmDefinitionDAO alarmDefDAO;
   private OutputCollector collector;
@@ -118,14 +144,34 @@ public class MetricFilteringBolt extends BaseRichBolt {
   private long lastMinLagMessageSent = 0;
   private long minLagMessageSent = 0;
   private boolean lagging = true;
+  /** Reused to look up each Metric so the common already known case does not allocate */
+  private transient MetricDefinitionAndTenantId lookupKey;
 
   public MetricFilteringBolt(DataSourceFactory dbConfig) {
+    this(dbConfig, new MetricFilterConfig());
+  }
+
+  public MetricFilteringBolt(DataSourceFactory dbConfig, MetricFilterConfig filterConfig) {
+    this(dbConfig, filterConfig, new MetricAggregationConfig());
+  }
+
+  public MetricFilteringBolt(DataSourceFactory dbConfig, MetricFilterConfig filterConfig,
+      MetricAggregationConfig aggregationConfig) {
     this.dbConfig = dbConfig;
+    this.filterConfig = filterConfig;
+    this.aggregationConfig = aggregationConfig;
   }
 
   public MetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO) {
+    this(alarmDefDAO, alarmDAO, new MetricAggregationConfig());
+  }
+
+  public MetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO,
+      MetricAggregationConfig aggregationConfig) {
     this.alarmDefDAO = alarmDefDAO;
     this.alarmDAO = alarmDAO;
+    this.filterConfig = new MetricFilterConfig();
+    this.aggregationConfig = aggregationConfig;
   }
 
   @Override
@@ -137,24 +183,40 @@ public class MetricFilteringBolt extends BaseRichBolt {
         MetricAggregationBolt.METRIC_AGGREGATION_CONTROL_FIELDS));
     declarer.declareStream(AlarmCreationBolt.ALARM_CREATION_STREAM, new Fields(
         AlarmCreationBolt.ALARM_CREATION_FIELDS));
+    declarer.declareStream(MetricAggregationBolt.WATERMARK_STREAM, new Fields(
+        MetricAggregationBolt.WATERMARK_FIELDS));
+  }
+
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    if (!aggregationConfig.eventTime) {
+      return null;
+    }
+    final Map<String, Object> conf = new HashMap<>();
+    conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+    return conf;
   }
 
   @Override
   public void execute(Tuple tuple) {
     logger.debug("tuple: {}", tuple);
     try {
-      if (Streams.DEFAULT_STREAM_ID.equals(tuple.getSourceStreamId())) {
+      if (Tuples.isTickTuple(tuple)) {
+        sendWatermark(true);
+      } else if (Streams.DEFAULT_STREAM_ID.equals(tuple.getSourceStreamId())) {
         final TenantIdAndMetricName timn = (TenantIdAndMetricName)tuple.getValue(0);
         final Long timestamp = (Long) tuple.getValue(1);
         final Metric metric = (Metric) tuple.getValue(2);
-        final MetricDefinitionAndTenantId metricDefinitionAndTenantId =
-            new MetricDefinitionAndTenantId(metric.definition(), timn.getTenantId());
-        checkLag(timestamp);
+        lookupKey.metricDefinition = metric.definition();
+        lookupKey.tenantId = timn.getTenantId();
+        trackProgress(tuple.getSourceTask(), timestamp, eventTime(metric.timestamp, timestamp));
 
-        logger.debug("metric definition and tenant id: {}", metricDefinitionAndTenantId);
-        if (checkForMatch(metricDefinitionAndTenantId)) {
+        logger.debug("metric definition and tenant id: {}", lookupKey);
+        if (checkForMatch(lookupKey)) {
           collector.emit(new Values(timn, metric));
         }
+      } else if (MetricSpout.PROGRESS_STREAM.equals(tuple.getSourceStreamId())) {
+        trackProgress(tuple.getSourceTask(), tuple.getLong(0), tuple.getLong(1));
       } else {
         String eventType = tuple.getString(0);
 
@@ -209,6 +271,9 @@ public class MetricFilteringBolt extends BaseRichBolt {
         for (final MetricDefinitionAndTenantId mtid : getAllMetricDefinitions(alarmDefinition)) {
           matcher.remove(mtid, alarmDefinition.getId());
         }
+        if (filter != null) {
+          rebuildFilter(filter.getExpectedInsertions());
+        }
       }
     }
   }
@@ -229,30 +294,85 @@ public class MetricFilteringBolt extends BaseRichBolt {
 
   private void newAlarmDefinition(final AlarmDefinition alarmDefinition) {
     alarmDefinitions.put(alarmDefinition.getId(), alarmDefinition);
+    final TenantIdAndMetricNameFilter currentFilter = filter;
     for (final MetricDefinitionAndTenantId mtid : getAllMetricDefinitions(alarmDefinition)) {
       matcher.add(mtid, alarmDefinition.getId());
+      if (currentFilter != null) {
+        currentFilter.add(mtid.tenantId, mtid.metricDefinition.name);
+      }
+    }
+    if (currentFilter != null && currentFilter.isOverCapacity()) {
+      rebuildFilter(currentFilter.getExpectedInsertions() * 2);
     }
   }
 
+  /**
+   * Must be called under SENTINAL. Replaces the filter with one built from all of the current
+   * AlarmDefinitions. The old filter is used by the other Bolts until the new one is complete
+   */
+  private void rebuildFilter(int expectedInsertions) {
+    final TenantIdAndMetricNameFilter newFilter =
+        new TenantIdAndMetricNameFilter(expectedInsertions,
+            filterConfig.falsePositiveProbability);
+    for (final AlarmDefinition alarmDefinition : alarmDefinitions.values()) {
+      for (final MetricDefinitionAndTenantId mtid : getAllMetricDefinitions(alarmDefinition)) {
+        newFilter.add(mtid.tenantId, mtid.metricDefinition.name);
+      }
+    }
+    if (newFilter.isOverCapacity()) {
+      rebuildFilter(expectedInsertions * 2);
+      return;
+    }
+    logger.debug("Rebuilt filter with {} entries using {} bytes", newFilter.getInsertions(),
+        newFilter.getMemoryBytes());
+    filter = newFilter;
+  }
+
+  /**
+   * The MetricDefinitionAndTenantId passed in may be reused by the caller so a copy must be made of
+   * it before it is stored or emitted
+   */
   private boolean checkForMatch(MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
+    final TenantIdAndMetricNameFilter currentFilter = filter;
+    if (currentFilter != null
+        && !currentFilter.mightContain(metricDefinitionAndTenantId.tenantId,
+            metricDefinitionAndTenantId.metricDefinition.name)) {
+      filterMetric.dropped++;
+      return false;
+    }
+    final Set<String> existing = alreadyFound.matches(metricDefinitionAndTenantId);
+    // Fast path for the common case of a Metric that is already known for every AlarmDefinition
+    // that it matches. No Set is allocated here, see matchesOnly
+    if (existing != null && matcher.matchesOnly(metricDefinitionAndTenantId, existing)) {
+      return true;
+    }
     final Set<String> alarmDefinitionIds = matcher.match(metricDefinitionAndTenantId);
     if (alarmDefinitionIds.isEmpty()) {
+      // Only the filter's mistake if no AlarmDefinition uses the metric name, not when just the
+      // dimensions didn't match
+      if (currentFilter != null
+          && !matcher.hasMetricName(metricDefinitionAndTenantId.tenantId,
+              metricDefinitionAndTenantId.metricDefinition.name)) {
+        filterMetric.falsePositives++;
+      }
       return false;
     }
-    final Set<String> existing = alreadyFound.matches(metricDefinitionAndTenantId);
     if (existing != null) {
       alarmDefinitionIds.removeAll(existing);
     }
 
     if (!alarmDefinitionIds.isEmpty()) {
+      final MetricDefinitionAndTenantId newMetricDefinitionAndTenantId =
+          new MetricDefinitionAndTenantId(metricDefinitionAndTenantId.metricDefinition,
+              metricDefinitionAndTenantId.tenantId);
       for (final String alarmDefinitionId : alarmDefinitionIds) {
         final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarmDefinitionId);
         logger.info("Add metric {} for Alarm Definition id = {} name = {}",
-            metricDefinitionAndTenantId, alarmDefinitionId, alarmDefinition.getName());
+            newMetricDefinitionAndTenantId, alarmDefinitionId, alarmDefinition.getName());
         collector.emit(NEW_METRIC_FOR_ALARM_DEFINITION_STREAM,
-            new Values(metricDefinitionAndTenantId, alarmDefinitionId));
+            new Values(newMetricDefinitionAndTenantId, alarmDefinitionId));
         synchronized (SENTINAL) {
-          alreadyFound.add(metricDefinitionAndTenantId, alarmDefinitionId);
+          alreadyFound.add(newMetricDefinitionAndTenantId, alarmDefinitionId);
         }
       }
     }
@@ -289,6 +409,49 @@ public class MetricFilteringBolt extends BaseRichBolt {
     }
   }
 
+  /**
+   * Feeds the lag check and the watermark with a Metric from the {@code sourceTask}, or with the
+   * latest of the Metrics it filtered out
+   */
+  private void trackProgress(int sourceTask, Long apiTimeStamp, long eventTime) {
+    checkLag(apiTimeStamp);
+    if (watermark != null) {
+      watermark.update(sourceTask, eventTime, getCurrentTime());
+      if (eventTime > lastWatermarkSent) {
+        // The watermark may have moved, send it now so a backlog doesn't have to wait for ticks
+        sendWatermark(false);
+      }
+    }
+  }
+
+  /**
+   * Returns the event time of a Metric with the {@code timestamp}. A Metric can't be from later
+   * than the time the API received it, so a clock running ahead doesn't move the watermark past
+   * the other Metrics
+   */
+  static long eventTime(long timestamp, Long apiTimeStamp) {
+    if (apiTimeStamp != null && apiTimeStamp.longValue() > 0
+        && apiTimeStamp.longValue() < timestamp) {
+      return apiTimeStamp.longValue();
+    }
+    return timestamp;
+  }
+
+  /**
+   * Sends the watermark if it moved. A heartbeat sends it anyway, so the MetricAggregationBolts
+   * know this Bolt is alive even when it gets no Metrics
+   */
+  private void sendWatermark(boolean heartbeat) {
+    if (watermark == null) {
+      return;
+    }
+    final long low = watermark.get(getCurrentTime());
+    if (low != LowWatermark.NONE && (heartbeat || low > lastWatermarkSent)) {
+      collector.emit(MetricAggregationBolt.WATERMARK_STREAM, new Values(low));
+      lastWatermarkSent = low;
+    }
+  }
+
   private void removeAlarm(MetricDefinitionAndTenantId metricDefinitionAndTenantId,
       String alarmDefinitionId) {
     final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarmDefinitionId);
@@ -305,6 +468,16 @@ public class MetricFilteringBolt extends BaseRichBolt {
     logger = LoggerFactory.getLogger(Logging.categoryFor(getClass(), context));
     logger.info("Preparing");
     this.collector = collector;
+    lookupKey = new MetricDefinitionAndTenantId(null, null);
+    filterMetric = new FilterMetric();
+    context.registerMetric("metric-filter", filterMetric, filterConfig.metricsTimeBucketSeconds);
+    if (aggregationConfig.eventTime) {
+      final int metricSources =
+          MetricAggregationBolt.countSourceTasks(context, Streams.DEFAULT_STREAM_ID);
+      watermark =
+          new LowWatermark(metricSources, aggregationConfig.watermarkIdleSeconds, getCurrentTime());
+      lastWatermarkSent = LowWatermark.NONE;
+    }
 
     if (alarmDefDAO == null) {
       Injector.registerIfNotBound(AlarmDefinitionDAO.class, new PersistenceModule(dbConfig));
@@ -314,6 +487,7 @@ public class MetricFilteringBolt extends BaseRichBolt {
     if (alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
+      ConnectionPoolMetric.register(context);
     }
 
     // DCL
@@ -324,30 +498,13 @@ public class MetricFilteringBolt extends BaseRichBolt {
             newAlarmDefinition(alarmcDef);
           }
 
-          // Load the existing Alarms
-          for (Alarm alarm : alarmDAO.listAll()) {
-            final AlarmDefinition alarmDefinition =
-                alarmDefinitions.get(alarm.getAlarmDefinitionId());
-            if (alarmDefinition == null) {
-              logger.error("AlarmDefinition {} does not exist for Alarm {}, ignoring",
-                  alarm.getAlarmDefinitionId(), alarm.getId());
-              continue;
-            }
-            for (final MetricDefinitionAndTenantId mtid : alarm.getAlarmedMetrics()) {
-              alreadyFound.add(mtid, alarm.getAlarmDefinitionId());
-              for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
-                if (AlarmCreationBolt.metricFitsInAlarmSubExpr(subAlarm.getExpression(),
-                    mtid.metricDefinition)) {
-                  final TenantIdAndMetricName timn = new TenantIdAndMetricName(mtid);
-                  final Values values =
-                      new Values(EventProcessingBolt.CREATED, timn, mtid,
-                          alarm.getAlarmDefinitionId(), subAlarm);
-                  logger.debug("Emitting new SubAlarm {}", values);
-                  collector.emit(AlarmCreationBolt.ALARM_CREATION_STREAM, values);
-                }
-              }
+          // Load the existing Alarms one at a time as they are read
+          alarmDAO.streamAll(new AlarmDAO.AlarmHandler() {
+            @Override
+            public void handle(Alarm alarm) {
+              loadExistingAlarm(alarm);
             }
-          }
+          });
 
           logger.info("Found {} Alarmed Metrics", alreadyFound.size());
           // Just output these here so they are only output once per JVM
@@ -357,9 +514,41 @@ public class MetricFilteringBolt extends BaseRichBolt {
         }
       }
     }
+    if (filterConfig.enabled && (filter == null)) {
+      synchronized (SENTINAL) {
+        if (filter == null) {
+          rebuildFilter(filterConfig.expectedInsertions);
+          logger.info("Metric filter sized for {} entries with false positive probability {}",
+              filter.getExpectedInsertions(), filterConfig.falsePositiveProbability);
+        }
+      }
+    }
     lastMinLagMessageSent = 0;
   }
 
+  private void loadExistingAlarm(Alarm alarm) {
+    final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarm.getAlarmDefinitionId());
+    if (alarmDefinition == null) {
+      logger.error("AlarmDefinition {} does not exist for Alarm {}, ignoring",
+          alarm.getAlarmDefinitionId(), alarm.getId());
+      return;
+    }
+    for (final MetricDefinitionAndTenantId mtid : alarm.getAlarmedMetrics()) {
+      alreadyFound.add(mtid, alarm.getAlarmDefinitionId());
+      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+        if (AlarmCreationBolt.metricFitsInAlarmSubExpr(subAlarm.getExpression(),
+            mtid.metricDefinition)) {
+          final TenantIdAndMetricName timn = new TenantIdAndMetricName(mtid);
+          final Values values =
+              new Values(EventProcessingBolt.CREATED, timn, mtid, alarm.getAlarmDefinitionId(),
+                  subAlarm);
+          logger.debug("Emitting new SubAlarm {}", values);
+          collector.emit(AlarmCreationBolt.ALARM_CREATION_STREAM, values);
+        }
+      }
+    }
+  }
+
   /**
    * Allow override of current time for testing.
    */
@@ -367,6 +556,15 @@ public class MetricFilteringBolt extends BaseRichBolt {
     return System.currentTimeMillis() / 1000;
   }
 
+  /**
+   * Returns the filter shared by the worker. It is null until a MetricFilteringBolt with the filter
+   * enabled has been prepared in this worker. Any pair added to the matcher has been added to the
+   * filter, so a Metric the filter doesn't contain can't match
+   */
+  static TenantIdAndMetricNameFilter getFilter() {
+    return filter;
+  }
+
   /**
    * Only use for testing.
    */
@@ -374,6 +572,7 @@ public class MetricFilteringBolt extends BaseRichBolt {
     alreadyFound.clear();
     matcher.clear();
     alarmDefinitions.clear();
+    filter = null;
   }
 
   /**
@@ -383,6 +582,35 @@ public class MetricFilteringBolt extends BaseRichBolt {
     return alreadyFound.size();
   }
 
+  /**
+   * Reports the filter statistics. The counts are for this Bolt only while the rest describe the
+   * filter shared by the worker. falsePositives counts the Metrics the filter let through although
+   * no AlarmDefinition of their tenant uses their metric name, and falsePositiveRate is their
+   * fraction of all such Metrics.
+   */
+  private static class FilterMetric implements IMetric {
+    private long dropped;
+    private long falsePositives;
+
+    @Override
+    public Object getValueAndReset() {
+      final Map<String, Object> result = new HashMap<>();
+      final TenantIdAndMetricNameFilter currentFilter = filter;
+      if (currentFilter != null) {
+        result.put("entries", currentFilter.getInsertions());
+        result.put("memoryBytes", currentFilter.getMemoryBytes());
+        result.put("expectedFalsePositiveRate", currentFilter.getExpectedFalsePositiveRate());
+      }
+      result.put("dropped", dropped);
+      result.put("falsePositives", falsePositives);
+      final long unmatched = dropped + falsePositives;
+      result.put("falsePositiveRate", unmatched == 0 ? 0.0 : (double) falsePositives / unmatched);
+      dropped = 0;
+      falsePositives = 0;
+      return result;
+    }
+  }
+
   private static class ExistingHolder {
     private final Map<MetricDefinitionAndTenantId, Set<String>> metricDefs =
         new ConcurrentHashMap<>();
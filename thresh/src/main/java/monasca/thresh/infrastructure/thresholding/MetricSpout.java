@@ -17,20 +17,38 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
-import monasca.common.model.metric.MetricEnvelope;
-import monasca.common.model.metric.MetricEnvelopes;
+import monasca.common.model.metric.Metric;
 
+import backtype.storm.metric.api.CountMetric;
 import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Values;
 
 import monasca.thresh.MetricSpoutConfig;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.infrastructure.thresholding.deserializer.MetricEnvelopeDecoder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
+
+/**
+ * Emits the Metrics read from Kafka.
+ *
+ * If filterUnalarmedMetrics is set, Metrics whose tenant id and metric name are not used by any
+ * AlarmDefinition, according to the filter of the MetricFilteringBolts in this worker, are dropped
+ * here instead. The MetricFilteringBolts still need their creation and event times for the lag
+ * check and the watermark, so the latest of those is sent to every MetricFilteringBolt on the
+ * progress stream, at most once a second.
+ *
+ * <ul>
+ * <li>Output: TenantIdAndMetricName tenantIdAndMetricName, Long apiTimeStamp, Metric metric
+ * <li>Output metric-spout-progress: Long apiTimeStamp, Long eventTime
+ * </ul>
+ */
 public class MetricSpout extends KafkaSpout {
   private static final Logger logger = LoggerFactory.getLogger(MetricSpout.class);
 
@@ -38,35 +56,85 @@ public class MetricSpout extends KafkaSpout {
 
   public static final String[] FIELDS = new String[] {"tenantIdAndMetricName",
       "apiTimeStamp", "metric"};
+  public static final String PROGRESS_STREAM = "metric-spout-progress";
+  public static final String[] PROGRESS_FIELDS = new String[] {"apiTimeStamp", "eventTime"};
   public static final String DEFAULT_TENANT_ID = "TENANT_ID_NOT_SET";
+  private static final int METRICS_TIME_BUCKET_SECONDS = 60;
+
+  private final MetricSpoutConfig metricSpoutConfig;
+  private transient MetricEnvelopeDecoder decoder;
+  private transient CountMetric filteredCount;
+  /** Latest creation and event time of the Metrics filtered out since the last progress */
+  private transient long filteredApiTimeStamp;
+  private transient long filteredEventTime;
+  private transient long lastProgressSent;
 
   public MetricSpout(MetricSpoutConfig metricSpoutConfig) {
     super(metricSpoutConfig);
+    this.metricSpoutConfig = metricSpoutConfig;
     logger.info("Created");
   }
 
+  @Override
+  public void open(Map conf, TopologyContext context, SpoutOutputCollector collector) {
+    super.open(conf, context, collector);
+    decoder = new MetricEnvelopeDecoder(metricSpoutConfig.payloadFormat);
+    if (metricSpoutConfig.filterUnalarmedMetrics) {
+      filteredCount = new CountMetric();
+      context.registerMetric("metric-spout-filtered", filteredCount, METRICS_TIME_BUCKET_SECONDS);
+      logger.info("Filtering Metrics not used by any Alarm Definition");
+    }
+  }
+
   @Override
   protected void processMessage(byte[] message, SpoutOutputCollector collector) {
-    final MetricEnvelope metricEnvelope;
+    final Metric metric;
     try {
-      metricEnvelope = MetricEnvelopes.fromJson(message);
-      logger.debug("metric envelope: {}", metricEnvelope);
+      // The filter is null until a MetricFilteringBolt with the filter enabled is prepared
+      metric =
+          decoder.decode(message, filteredCount == null ? null : MetricFilteringBolt.getFilter());
+      logger.debug("metric: {}", metric);
     } catch (RuntimeException re) {
       logger.warn("Error parsing MetricEnvelope", re);
       return;
     }
-    String tenantId = (String) metricEnvelope.meta.get("tenantId");
+    if (metric == null) {
+      filteredCount.incr();
+      sendProgress(collector);
+      return;
+    }
+    String tenantId = decoder.getTenantId();
     if (tenantId == null) {
       logger.error("No tenantId so using default tenantId {} for Metric {}", DEFAULT_TENANT_ID,
-          metricEnvelope.metric);
+          metric);
       tenantId = DEFAULT_TENANT_ID;
     }
-    collector.emit(new Values(new TenantIdAndMetricName(tenantId, metricEnvelope.metric
-        .definition().name), metricEnvelope.creationTime, metricEnvelope.metric));
+    collector.emit(new Values(new TenantIdAndMetricName(tenantId, metric.name),
+        decoder.getCreationTime(), metric));
+  }
+
+  /**
+   * Records the times of the Metric just filtered out and sends the latest ones on the progress
+   * stream if none were sent this second. All AlarmDefinition events go to every
+   * MetricFilteringBolt, so the one that would have received the Metric would have dropped it too
+   */
+  private void sendProgress(SpoutOutputCollector collector) {
+    filteredApiTimeStamp = Math.max(filteredApiTimeStamp, decoder.getCreationTime());
+    filteredEventTime =
+        Math.max(filteredEventTime,
+            MetricFilteringBolt.eventTime(decoder.getTimestamp(), decoder.getCreationTime()));
+    final long now = System.currentTimeMillis() / 1000;
+    if (now > lastProgressSent) {
+      collector.emit(PROGRESS_STREAM, new Values(filteredApiTimeStamp, filteredEventTime));
+      lastProgressSent = now;
+      filteredApiTimeStamp = 0;
+      filteredEventTime = 0;
+    }
   }
 
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {
     declarer.declare(new Fields(FIELDS));
+    declarer.declareStream(PROGRESS_STREAM, new Fields(PROGRESS_FIELDS));
   }
 }
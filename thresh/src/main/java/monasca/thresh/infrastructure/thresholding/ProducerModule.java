@@ -18,19 +18,27 @@
 package monasca.thresh.infrastructure.thresholding;
 
 import monasca.common.configuration.KafkaProducerConfiguration;
+import monasca.thresh.AlarmThresholdingConfig;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 
 public class ProducerModule extends AbstractModule {
   private KafkaProducerConfiguration config;
+  private AlarmThresholdingConfig thresholdingConfig;
   private AlarmEventForwarder alarmEventForwarder;
 
   @Override
   protected void configure() {}
 
   public ProducerModule(KafkaProducerConfiguration config) {
+    this(config, new AlarmThresholdingConfig());
+  }
+
+  public ProducerModule(KafkaProducerConfiguration config,
+      AlarmThresholdingConfig thresholdingConfig) {
     this.config = config;
+    this.thresholdingConfig = thresholdingConfig;
   }
 
   public ProducerModule(AlarmEventForwarder alarmEventForwarder) {
@@ -39,6 +47,13 @@ public class ProducerModule extends AbstractModule {
 
   @Provides
   AlarmEventForwarder alarmEventForwarder() {
-    return alarmEventForwarder == null ? new KafkaAlarmEventForwarder(config) : alarmEventForwarder;
+    if (alarmEventForwarder != null) {
+      return alarmEventForwarder;
+    }
+    if (thresholdingConfig.eventQueueSize > 0) {
+      return new AsyncKafkaAlarmEventForwarder(config, thresholdingConfig.eventQueueSize,
+          thresholdingConfig.eventBatchSize);
+    }
+    return new KafkaAlarmEventForwarder(config);
   }
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.thresh.domain.model.DoubleWindowStats;
+import monasca.thresh.domain.model.SubAlarmStats;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checkpoints the numeric windows of the SubAlarmStats to a memory mapped file, so a restarted
+ * MetricAggregationBolt can continue with the values it had instead of empty windows.
+ *
+ * The file is a header followed by records of a fixed size, one for each SubAlarm. A checkpoint
+ * only rewrites the records of the windows that changed since they were last written, and no more
+ * than a given number of them, continuing where the last checkpoint stopped. A record is marked
+ * unused while it is written, so a worker dying in the middle of a checkpoint loses that window
+ * but never restores a torn one. The writes go to the page cache, which survives the worker
+ * process, and are only forced to disk when the checkpoint is closed.
+ *
+ * CONCAT windows and windows with more slots than the records hold are not checkpointed. Not
+ * thread safe.
+ */
+public class WindowCheckpoint implements Closeable {
+  private static final int MAGIC = 0x4d415743;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int MAX_ID_BYTES = 64;
+  private static final byte UNUSED = 0;
+  private static final byte USED = 1;
+  /** used, function, id length, id, slot width, view slots, slots */
+  private static final int RECORD_HEADER_SIZE = 1 + 1 + 2 + MAX_ID_BYTES + 8 + 4 + 4;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int maxSlots;
+  private final int recordSize;
+  private MappedByteBuffer buffer;
+  private int capacity;
+  private final BitSet usedRecords = new BitSet();
+  /** Records found in the file that no SubAlarm has claimed yet */
+  private final Map<String, Integer> restorable = new HashMap<>();
+  private final Map<String, Tracked> trackedById = new HashMap<>();
+  private final List<Tracked> tracked = new ArrayList<>();
+  /** Index in tracked where the next checkpoint starts */
+  private int cursor;
+
+  private WindowCheckpoint(File path, int maxSlots) throws IOException {
+    this.maxSlots = maxSlots;
+    this.recordSize = RECORD_HEADER_SIZE + DoubleWindowStats.getSerializedSize(maxSlots);
+    this.file = new RandomAccessFile(path, "rw");
+    this.channel = file.getChannel();
+  }
+
+  /**
+   * Opens the checkpoint in {@code path}, creating it if needed. Records written with a different
+   * maximum number of slots are discarded
+   */
+  public static WindowCheckpoint open(File path, int maxSlots) throws IOException {
+    final WindowCheckpoint checkpoint = new WindowCheckpoint(path, maxSlots);
+    try {
+      checkpoint.load();
+    } catch (IOException | RuntimeException e) {
+      checkpoint.close();
+      throw e;
+    }
+    return checkpoint;
+  }
+
+  private void load() throws IOException {
+    int existing = 0;
+    if (channel.size() >= HEADER_SIZE) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      header.flip();
+      if (header.getInt() == MAGIC && header.getInt() == VERSION
+          && header.getInt() == recordSize) {
+        existing = (int) Math.min(header.getInt(), (channel.size() - HEADER_SIZE) / recordSize);
+      }
+    }
+    // An unknown or empty file starts over
+    map(Math.max(existing, INITIAL_CAPACITY), existing);
+    for (int record = 0; record < existing; record++) {
+      if (buffer.get(offset(record)) == USED) {
+        usedRecords.set(record);
+        final Integer duplicate = restorable.put(readId(record), record);
+        if (duplicate != null) {
+          free(duplicate);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a window like {@code like} with the values checkpointed for the {@code subAlarmId},
+   * or null if there are none or the window had a different function or size. The view ends
+   * where it did when the checkpoint was written
+   */
+  public DoubleWindowStats restore(String subAlarmId, DoubleWindowStats like) {
+    final Integer record = restorable.remove(subAlarmId);
+    if (record == null) {
+      return null;
+    }
+    final int offset = offset(record);
+    final ByteBuffer view = recordBuffer(offset);
+    view.position(offset + 1 + 1 + 2 + MAX_ID_BYTES);
+    if (buffer.get(offset + 1) != like.getFunction().ordinal()
+        || view.getLong() != like.getSlotWidth() || view.getInt() != like.getNumViewSlots()
+        || view.getInt() != like.getNumSlots()) {
+      free(record);
+      return null;
+    }
+    final DoubleWindowStats restored = like.copy();
+    try {
+      restored.readFrom(view);
+    } catch (IllegalArgumentException e) {
+      free(record);
+      return null;
+    }
+    // Keep the record for the SubAlarm
+    final Tracked claimed = new Tracked(subAlarmId, null);
+    claimed.record = record;
+    trackedById.put(subAlarmId, claimed);
+    return restored;
+  }
+
+  /**
+   * Starts checkpointing the window of the {@code stats}. Does nothing for CONCAT
+   */
+  public void track(String subAlarmId, SubAlarmStats stats) {
+    if (stats.getNumericStats() == null) {
+      return;
+    }
+    Tracked entry = trackedById.get(subAlarmId);
+    if (entry == null) {
+      entry = new Tracked(subAlarmId, stats);
+      trackedById.put(subAlarmId, entry);
+    } else if (entry.stats != null) {
+      entry.stats = stats;
+      return;
+    }
+    entry.stats = stats;
+    entry.index = tracked.size();
+    tracked.add(entry);
+  }
+
+  /**
+   * Stops checkpointing the window of the SubAlarm and frees its record
+   */
+  public void untrack(String subAlarmId) {
+    final Tracked entry = trackedById.remove(subAlarmId);
+    if (entry == null) {
+      return;
+    }
+    if (entry.record >= 0) {
+      free(entry.record);
+    }
+    if (entry.index >= 0) {
+      final Tracked last = tracked.remove(tracked.size() - 1);
+      if (last != entry) {
+        tracked.set(entry.index, last);
+        last.index = entry.index;
+      }
+    }
+  }
+
+  /**
+   * Writes the windows that changed since they were last written, at most {@code maxWindows} of
+   * them. Records found in the file that weren't claimed and whose windows would have slid out
+   * completely by {@code now} are freed
+   *
+   * @return the number of windows written
+   */
+  public int checkpoint(long now, int maxWindows) throws IOException {
+    int written = 0;
+    for (int visited = 0; visited < tracked.size() && written < maxWindows; visited++) {
+      if (cursor >= tracked.size()) {
+        cursor = 0;
+      }
+      final Tracked entry = tracked.get(cursor++);
+      final DoubleWindowStats window = entry.stats.getNumericStats();
+      if (window == null || window.getNumSlots() > maxSlots) {
+        continue;
+      }
+      if (window == entry.window && window.getVersion() == entry.version) {
+        continue;
+      }
+      if (entry.record < 0) {
+        entry.record = allocate();
+      }
+      write(entry.record, entry.id, window);
+      entry.window = window;
+      entry.version = window.getVersion();
+      written++;
+    }
+    freeExpired(now);
+    return written;
+  }
+
+  private void freeExpired(long now) {
+    for (Iterator<Integer> it = restorable.values().iterator(); it.hasNext();) {
+      final int record = it.next();
+      final ByteBuffer view = recordBuffer(offset(record));
+      view.position(offset(record) + 1 + 1 + 2 + MAX_ID_BYTES);
+      final long slotWidth = view.getLong();
+      view.getInt();
+      final int numSlots = view.getInt();
+      view.getInt();
+      final long viewEndTimestamp = view.getLong();
+      if (now >= viewEndTimestamp + numSlots * slotWidth) {
+        free(record);
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of records in use
+   */
+  public int size() {
+    return usedRecords.cardinality();
+  }
+
+  /**
+   * Returns the size of the file in bytes
+   */
+  public long getFileBytes() {
+    return HEADER_SIZE + (long) capacity * recordSize;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (buffer != null) {
+        buffer.force();
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  private void write(int record, String subAlarmId, DoubleWindowStats window) {
+    final int offset = offset(record);
+    buffer.put(offset, UNUSED);
+    final ByteBuffer view = recordBuffer(offset);
+    view.position(offset + 1);
+    view.put((byte) window.getFunction().ordinal());
+    final byte[] id = subAlarmId.getBytes(StandardCharsets.UTF_8);
+    final int idLength = Math.min(id.length, MAX_ID_BYTES);
+    view.putShort((short) idLength);
+    view.put(id, 0, idLength);
+    view.position(offset + 1 + 1 + 2 + MAX_ID_BYTES);
+    view.putLong(window.getSlotWidth());
+    view.putInt(window.getNumViewSlots());
+    view.putInt(window.getNumSlots());
+    window.writeTo(view);
+    buffer.put(offset, USED);
+  }
+
+  private String readId(int record) {
+    final int offset = offset(record);
+    final int idLength = Math.min(buffer.getShort(offset + 2), MAX_ID_BYTES);
+    final byte[] id = new byte[Math.max(idLength, 0)];
+    final ByteBuffer view = recordBuffer(offset);
+    view.position(offset + 4);
+    view.get(id);
+    return new String(id, StandardCharsets.UTF_8);
+  }
+
+  private int allocate() throws IOException {
+    int record = usedRecords.nextClearBit(0);
+    if (record >= capacity) {
+      map(capacity * 2, capacity);
+    }
+    usedRecords.set(record);
+    return record;
+  }
+
+  private void free(int record) {
+    buffer.put(offset(record), UNUSED);
+    usedRecords.clear(record);
+  }
+
+  /**
+   * Maps the file for {@code newCapacity} records. The records from {@code keep} on are marked
+   * unused
+   */
+  private void map(int newCapacity, int keep) throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        HEADER_SIZE + (long) newCapacity * recordSize);
+    capacity = newCapacity;
+    for (int record = keep; record < capacity; record++) {
+      buffer.put(offset(record), UNUSED);
+    }
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, recordSize);
+    buffer.putInt(12, capacity);
+  }
+
+  private int offset(int record) {
+    return HEADER_SIZE + record * recordSize;
+  }
+
+  private ByteBuffer recordBuffer(int offset) {
+    final ByteBuffer view = buffer.duplicate();
+    view.limit(offset + recordSize);
+    return view;
+  }
+
+  private static class Tracked {
+    private final String id;
+    private SubAlarmStats stats;
+    private int record = -1;
+    /** Position in tracked, or -1 if only claimed */
+    private int index = -1;
+    /** The window and its version when last written */
+    private DoubleWindowStats window;
+    private long version;
+
+    private Tracked(String id, SubAlarmStats stats) {
+      this.id = id;
+      this.stats = stats;
+    }
+  }
+}
@@ -32,7 +32,8 @@ import java.util.Collections;
 import java.util.List;
 
 /**
- * Deserializes events using registered serialization types.
+ * Deserializes events using registered serialization types. Events encoded as Smile are converted
+ * to JSON first.
  *
  * <ul>
  * <li>Output: Object event
@@ -42,6 +43,8 @@ public class EventDeserializer implements TupleDeserializer, Serializable {
   private static final long serialVersionUID = -1306620481933667305L;
   private static final Fields FIELDS = new Fields("event");
 
+  private final PayloadFormat payloadFormat;
+
   static {
     // Register event types
     Serialization.registerTarget(AlarmDefinitionUpdatedEvent.class);
@@ -51,11 +54,19 @@ public class EventDeserializer implements TupleDeserializer, Serializable {
     Serialization.registerTarget(AlarmDeletedEvent.class);
   }
 
+  public EventDeserializer() {
+    this(PayloadFormat.JSON);
+  }
+
+  public EventDeserializer(PayloadFormat payloadFormat) {
+    this.payloadFormat = payloadFormat;
+  }
+
   @Override
   public List<List<?>> deserialize(byte[] tuple) {
     try {
       return Collections.<List<?>>singletonList(Collections.singletonList(Serialization
-          .fromJson(tuple)));
+          .fromJson(payloadFormat.toJson(tuple))));
     } catch (Exception ignore) {
       return null;
     }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding.deserializer;
+
+import monasca.common.model.metric.Metric;
+import monasca.thresh.domain.model.TenantIdAndMetricNameFilter;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes a JSON or Smile MetricEnvelope straight into a Metric with the streaming parser. Only the
+ * tenantId is read from the meta, the rest of it is skipped without building a Map.
+ *
+ * Dimension names are read as field names, which the parser factory canonicalizes and interns,
+ * so they are shared by all Metrics. The metric name, dimension values and tenant id repeat a lot
+ * too, so they are looked up in a small cache indexed by the hash of the parser's characters and
+ * a new String is only built on a miss.
+ *
+ * The message is read once into reused fields and the Metric is only built at the end, so a
+ * filter can reject it by tenant id and metric name without allocating its dimensions.
+ *
+ * Not thread safe. Each spout keeps its own instance and reads the tenant id, creation time and
+ * timestamp after calling decode.
+ */
+public class MetricEnvelopeDecoder {
+  private static final int STRING_CACHE_SIZE = 4096;
+
+  private final PayloadFormat payloadFormat;
+  private final String[] stringCache = new String[STRING_CACHE_SIZE];
+  private String tenantId;
+  private long creationTime;
+  private boolean hasMetric;
+  private String metricName;
+  private long timestamp;
+  private double metricValue;
+  /** -1 if the Metric had no dimensions, otherwise the number read into the arrays below */
+  private int dimensionCount;
+  private String[] dimensionNames = new String[8];
+  private String[] dimensionValues = new String[8];
+
+  public MetricEnvelopeDecoder(PayloadFormat payloadFormat) {
+    this.payloadFormat = payloadFormat;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the message is not a valid MetricEnvelope
+   */
+  public Metric decode(final byte[] message) {
+    return decode(message, null);
+  }
+
+  /**
+   * Decodes the message, unless the {@code filter} is not null and says no AlarmDefinition uses
+   * its tenant id and metric name. Then null is returned without building the Metric, and only
+   * the tenant id, creation time and timestamp are kept. A message without a tenant id is always
+   * decoded
+   *
+   * @throws IllegalArgumentException if the message is not a valid MetricEnvelope
+   */
+  public Metric decode(final byte[] message, final TenantIdAndMetricNameFilter filter) {
+    tenantId = null;
+    creationTime = 0;
+    hasMetric = false;
+    metricName = null;
+    timestamp = 0;
+    metricValue = 0;
+    dimensionCount = -1;
+    try (final JsonParser parser = payloadFormat.createParser(message)) {
+      expect(parser.nextToken(), JsonToken.START_OBJECT, "envelope");
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        final JsonToken value = parser.nextToken();
+        if ("metric".equals(field)) {
+          expect(value, JsonToken.START_OBJECT, field);
+          readMetric(parser);
+        } else if ("meta".equals(field) && value == JsonToken.START_OBJECT) {
+          readMeta(parser);
+        } else if ("creation_time".equals(field) && value.isNumeric()) {
+          creationTime = parser.getLongValue();
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to parse MetricEnvelope", e);
+    }
+    if (!hasMetric) {
+      throw new IllegalArgumentException("MetricEnvelope has no metric");
+    }
+    if (metricName == null) {
+      throw new IllegalArgumentException("Metric has no name");
+    }
+    if (filter != null && tenantId != null && !filter.mightContain(tenantId, metricName)) {
+      return null;
+    }
+    Map<String, String> dimensions = null;
+    if (dimensionCount >= 0) {
+      dimensions = new HashMap<>();
+      for (int i = 0; i < dimensionCount; i++) {
+        dimensions.put(dimensionNames[i], dimensionValues[i]);
+      }
+    }
+    return new Metric(metricName, dimensions, timestamp, metricValue);
+  }
+
+  /**
+   * Returns the tenantId from the meta of the last decoded MetricEnvelope or null if it had none
+   */
+  public String getTenantId() {
+    return tenantId;
+  }
+
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  /**
+   * Returns the timestamp of the Metric in the last decoded MetricEnvelope, also if it was
+   * filtered out
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  private void readMetric(final JsonParser parser) throws IOException {
+    hasMetric = true;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+      if ("name".equals(field) && token == JsonToken.VALUE_STRING) {
+        metricName = cachedText(parser);
+      } else if ("dimensions".equals(field) && token == JsonToken.START_OBJECT) {
+        readDimensions(parser);
+      } else if ("timestamp".equals(field) && token.isNumeric()) {
+        timestamp = parser.getLongValue();
+      } else if ("value".equals(field) && token.isNumeric()) {
+        metricValue = parser.getDoubleValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void readDimensions(final JsonParser parser) throws IOException {
+    dimensionCount = 0;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String key = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.VALUE_STRING) {
+        if (dimensionCount == dimensionNames.length) {
+          dimensionNames = Arrays.copyOf(dimensionNames, dimensionCount * 2);
+          dimensionValues = Arrays.copyOf(dimensionValues, dimensionCount * 2);
+        }
+        dimensionNames[dimensionCount] = key;
+        dimensionValues[dimensionCount] = cachedText(parser);
+        dimensionCount++;
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void readMeta(final JsonParser parser) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.VALUE_STRING && "tenantId".equals(field)) {
+        tenantId = cachedText(parser);
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * Returns the current String value, reusing the String from the last decode with the same
+   * characters when there is one
+   */
+  private String cachedText(final JsonParser parser) throws IOException {
+    final char[] chars = parser.getTextCharacters();
+    final int offset = parser.getTextOffset();
+    final int length = parser.getTextLength();
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + chars[offset + i];
+    }
+    final int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+    final String cached = stringCache[slot];
+    if (cached != null && sameChars(cached, chars, offset, length)) {
+      return cached;
+    }
+    final String result = new String(chars, offset, length);
+    stringCache[slot] = result;
+    return result;
+  }
+
+  private static boolean sameChars(final String string, final char[] chars, final int offset,
+      final int length) {
+    if (string.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (string.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void expect(final JsonToken actual, final JsonToken expected, final String what) {
+    if (actual != expected) {
+      throw new IllegalArgumentException(String.format("Expected %s for %s but found %s",
+          expected, what, actual));
+    }
+  }
+}
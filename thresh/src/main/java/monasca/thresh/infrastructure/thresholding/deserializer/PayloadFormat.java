@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding.deserializer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileConstants;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoding of the messages read from Kafka. Smile is Jackson's binary form of JSON. It holds the
+ * same data model as JSON, so everything that reads a JsonParser can read either one, but it is
+ * smaller and much cheaper to parse. Smile messages start with the header ":)\n", and JSON can't
+ * start with ':', so AUTO can tell them apart by looking at the first byte.
+ */
+public enum PayloadFormat {
+  JSON {
+    @Override
+    public JsonParser createParser(final byte[] payload) throws IOException {
+      return JSON_FACTORY.createParser(payload);
+    }
+  },
+  SMILE {
+    @Override
+    public JsonParser createParser(final byte[] payload) throws IOException {
+      return SMILE_FACTORY.createParser(payload);
+    }
+  },
+  /** Smile if the message starts with the Smile header, JSON otherwise */
+  AUTO {
+    @Override
+    public JsonParser createParser(final byte[] payload) throws IOException {
+      return isSmile(payload) ? SMILE.createParser(payload) : JSON.createParser(payload);
+    }
+  };
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+
+  public abstract JsonParser createParser(byte[] payload) throws IOException;
+
+  /**
+   * Returns the message as JSON for code that can only read JSON. JSON messages are returned as
+   * is, Smile messages are converted
+   */
+  public byte[] toJson(final byte[] payload) throws IOException {
+    if (this == JSON || (this == AUTO && !isSmile(payload))) {
+      return payload;
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 2);
+    try (final JsonParser parser = createParser(payload);
+        final JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+      parser.nextToken();
+      generator.copyCurrentStructure(parser);
+    }
+    return out.toByteArray();
+  }
+
+  public static boolean isSmile(final byte[] payload) {
+    return payload.length > 0 && payload[0] == SmileConstants.HEADER_BYTE_1;
+  }
+}
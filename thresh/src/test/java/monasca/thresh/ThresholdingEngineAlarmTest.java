@@ -71,6 +71,7 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -405,11 +406,25 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
       return alarms;
     }
 
+    @Override
+    public void streamAll(AlarmHandler handler) {
+      for (final Alarm alarm : alarms) {
+        handler.handle(alarm);
+      }
+    }
+
     @Override
     public void updateState(String id, AlarmState state) {
       findById(id).setState(state);
     }
 
+    @Override
+    public void updateStates(Map<String, AlarmState> states) {
+      for (final Map.Entry<String, AlarmState> entry : states.entrySet()) {
+        updateState(entry.getKey(), entry.getValue());
+      }
+    }
+
     @Override
     public void addAlarmedMetric(String id, MetricDefinitionAndTenantId metricDefinition) {
       findById(id).addAlarmedMetric(metricDefinition);
@@ -420,6 +435,11 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
       alarms.add(newAlarm);
     }
 
+    @Override
+    public void createAlarms(Collection<Alarm> newAlarms) {
+      alarms.addAll(newAlarms);
+    }
+
     @Override
     public int updateSubAlarmExpressions(String alarmSubExpressionId,
         AlarmSubExpression alarmSubExpression) {
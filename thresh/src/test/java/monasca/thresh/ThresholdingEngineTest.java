@@ -161,7 +161,14 @@ public class ThresholdingEngineTest extends TopologyTestCase {
     final Alarm alarm = new Alarm(alarmDefinition, AlarmState.UNDETERMINED);
     alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(cpuMetricDef, TEST_ALARM_TENANT_ID));
     alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(memMetricDef, TEST_ALARM_TENANT_ID));
-    when(alarmDAO.listAll()).thenReturn(Arrays.asList(alarm));
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        final AlarmDAO.AlarmHandler handler = (AlarmDAO.AlarmHandler) invocation.getArguments()[0];
+        handler.handle(alarm);
+        return null;
+      }
+    }).when(alarmDAO).streamAll((AlarmDAO.AlarmHandler) any());
     when(alarmDAO.findById(alarm.getId())).thenReturn(alarm);
     when(alarmDAO.findForAlarmDefinitionId(alarmDefinition.getId())).thenReturn(Arrays.asList(alarm));
     shouldThreshold(alarm.getId(), true);  
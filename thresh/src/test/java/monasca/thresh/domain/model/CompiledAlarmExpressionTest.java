@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmSubExpression;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+@Test
+public class CompiledAlarmExpressionTest {
+
+  @DataProvider
+  public Object[][] expressions() {
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i <= CompiledAlarmExpression.MAX_TABLE_SLOTS; i++) {
+      if (large.length() > 0) {
+        large.append(i % 3 == 0 ? " OR " : " AND ");
+      }
+      large.append(String.format("avg(cpu{device=%d}) > 90", i));
+    }
+    return new Object[][] {
+        {"avg(cpu) > 90"},
+        {"avg(cpu) > 90 AND max(mem) > 80"},
+        {"avg(cpu) > 90 OR max(mem) > 80 AND sum(disk) > 1000"},
+        {"(avg(cpu) > 90 OR max(mem) > 80) AND sum(disk) > 1000"},
+        {"avg(cpu) > 90 AND (max(mem) > 80 OR avg(cpu) > 90)"},
+        {large.toString()}};
+  }
+
+  @Test(dataProvider = "expressions")
+  public void shouldEvaluateLikeAlarmExpression(String expressionString) {
+    final AlarmExpression expression = new AlarmExpression(expressionString);
+    final CompiledAlarmExpression compiled = new CompiledAlarmExpression(expression);
+    final int slotCount = compiled.getSlotCount();
+    assertEquals(Long.bitCount(compiled.getAllSlots()), slotCount);
+
+    final Map<AlarmSubExpression, Boolean> values = new HashMap<>();
+    for (long trueSlots = 0; trueSlots < (1L << slotCount); trueSlots++) {
+      for (final AlarmSubExpression subExpression : expression.getSubExpressions()) {
+        final int slot = compiled.slotOf(subExpression);
+        assertTrue(slot >= 0);
+        values.put(subExpression, (trueSlots & (1L << slot)) != 0);
+      }
+      assertEquals(compiled.evaluate(trueSlots), expression.evaluate(values), expressionString
+          + " with true slots " + Long.toBinaryString(trueSlots));
+    }
+  }
+
+  public void shouldGiveEqualSubExpressionsTheSameSlot() {
+    final CompiledAlarmExpression compiled =
+        new CompiledAlarmExpression(new AlarmExpression(
+            "avg(cpu) > 90 AND (max(mem) > 80 OR avg(cpu) > 90)"));
+    assertEquals(compiled.getSlotCount(), 2);
+    assertEquals(compiled.slotOf(new AlarmExpression("avg(cpu) > 90").getSubExpressions().get(0)),
+        0);
+    assertEquals(compiled.slotOf(new AlarmExpression("avg(cpu) > 80").getSubExpressions().get(0)),
+        -1);
+  }
+
+  public void shouldCompileAlarmDefinitionExpressionOnce() {
+    final AlarmDefinition alarmDefinition =
+        new AlarmDefinition("42", "Test Def", "", new AlarmExpression(
+            "avg(cpu) > 90 OR max(mem) > 80"), "LOW", true, new ArrayList<String>(0));
+    final CompiledAlarmExpression compiled = alarmDefinition.getCompiledExpression();
+    assertSame(alarmDefinition.getCompiledExpression(), compiled);
+
+    alarmDefinition.setExpression("avg(cpu) > 90 AND max(mem) > 80");
+    assertNotSame(alarmDefinition.getCompiledExpression(), compiled);
+    assertFalse(alarmDefinition.getCompiledExpression().evaluate(1));
+    assertTrue(alarmDefinition.getCompiledExpression().evaluate(3));
+  }
+
+  public void shouldEvaluateAlarmWithAlarmDefinition() {
+    final AlarmDefinition alarmDefinition =
+        new AlarmDefinition("42", "Test Def", "", new AlarmExpression(
+            "avg(cpu) > 90 AND max(mem) > 80"), "LOW", true, new ArrayList<String>(0));
+    final Alarm alarm = new Alarm(alarmDefinition, AlarmState.UNDETERMINED);
+    for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+      subAlarm.setState(AlarmState.ALARM);
+    }
+    assertTrue(alarm.evaluate(alarmDefinition));
+    assertEquals(alarm.getState(), AlarmState.ALARM);
+    assertFalse(alarm.evaluate(alarmDefinition));
+
+    // Replaced as the AlarmThresholdingBolt does when a SubAlarm changes state
+    final SubAlarm first = alarm.getSubAlarms().iterator().next();
+    final SubAlarm okSubAlarm =
+        new SubAlarm(first.getId(), alarm.getId(), new SubExpression(
+            first.getAlarmSubExpressionId(), first.getExpression()), AlarmState.OK);
+    alarm.updateSubAlarm(okSubAlarm);
+    assertTrue(alarm.evaluate(alarmDefinition));
+    assertEquals(alarm.getState(), AlarmState.OK);
+  }
+}
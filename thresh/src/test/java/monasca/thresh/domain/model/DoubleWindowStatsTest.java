@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AggregateFunction;
+import monasca.common.util.stats.SlidingWindowStats;
+import monasca.common.util.stats.Statistic;
+import monasca.common.util.time.TimeResolution;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+@Test
+public class DoubleWindowStatsTest {
+  private static final Logger logger = LoggerFactory.getLogger(DoubleWindowStatsTest.class);
+
+  public void shouldAggregateEachFunction() {
+    assertEquals(aggregate(AggregateFunction.AVG), 4.0);
+    assertEquals(aggregate(AggregateFunction.SUM), 12.0);
+    assertEquals(aggregate(AggregateFunction.MIN), 1.0);
+    assertEquals(aggregate(AggregateFunction.MAX), 8.0);
+    assertEquals(aggregate(AggregateFunction.COUNT), 3.0);
+  }
+
+  private static double aggregate(AggregateFunction function) {
+    final DoubleWindowStats stats = new DoubleWindowStats(function, 60, 3, 2, 180);
+    assertTrue(stats.addValue(3, 120));
+    assertTrue(stats.addValue(8, 150));
+    assertTrue(stats.addValue(1, 179));
+    return stats.getValue(120);
+  }
+
+  public void shouldTrackEmptySlots() {
+    final DoubleWindowStats stats = new DoubleWindowStats(AggregateFunction.AVG, 60, 3, 2, 180);
+    assertTrue(stats.addValue(5, 60));
+    assertTrue(stats.isViewSlotEmpty(0));
+    assertFalse(stats.isViewSlotEmpty(1));
+    assertTrue(stats.isViewSlotEmpty(2));
+    assertTrue(Double.isNaN(stats.getViewValue(0)));
+    assertEquals(stats.getViewValue(1), 5.0);
+
+    assertFalse(stats.addValue(5, -1));
+    assertFalse(stats.addValue(5, 300));
+    assertTrue(stats.addValue(7, 299));
+
+    // The value for 60 moves to the oldest view slot and the future value into the view
+    stats.slideViewTo(181);
+    assertEquals(stats.getViewValue(0), 5.0);
+    assertTrue(stats.isViewSlotEmpty(2));
+    stats.slideViewTo(241);
+    assertEquals(stats.getViewValue(2), 7.0);
+
+    // Sliding past the whole window empties it
+    stats.slideViewTo(10000);
+    for (int i = 0; i < stats.getNumViewSlots(); i++) {
+      assertTrue(stats.isViewSlotEmpty(i));
+    }
+    assertTrue(stats.addValue(1, 10000));
+  }
+
+  /**
+   * DoubleWindowStats has to place, aggregate and slide values exactly like SlidingWindowStats
+   */
+  @SuppressWarnings("unchecked")
+  public void shouldMatchSlidingWindowStats() {
+    final Random random = new Random(12);
+    for (AggregateFunction function : AggregateFunction.values()) {
+      if (function == AggregateFunction.CONCAT) {
+        continue;
+      }
+      for (int periods = 1; periods <= 70; periods += 23) {
+        final long start = 1400000000L;
+        final SlidingWindowStats<Double> expected =
+            new SlidingWindowStats<Double>(
+                (Class<? extends Statistic<Double>>) function.toStatistic(),
+                TimeResolution.MINUTES, 60, periods, 2, start);
+        final DoubleWindowStats actual = new DoubleWindowStats(function, 60, periods, 2, start);
+        long now = start - 60;
+        for (int i = 0; i < 5000; i++) {
+          if (random.nextInt(10) == 0) {
+            now += random.nextInt(random.nextInt(20) == 0 ? 10000 : 120);
+            expected.slideViewTo(now);
+            actual.slideViewTo(now);
+          } else {
+            final long timestamp = now - 60 * periods + random.nextInt(60 * (periods + 3));
+            final double value = random.nextInt(1000) / 10.0;
+            assertEquals(actual.addValue(value, timestamp), expected.addValue(value, timestamp));
+          }
+          assertEquals(actual.getWindowValues(), expected.getWindowValues(), function + " "
+              + periods);
+        }
+      }
+    }
+  }
+
+  /**
+   * Compares the memory and evaluation time of monasca-common's SlidingWindowStats with Object
+   * values parsed as Strings, which is how SubAlarmStats used to evaluate, against
+   * DoubleWindowStats. The bytes are heap deltas after System.gc(), so they are only estimates.
+   */
+  @Test(groups = "performance")
+  @SuppressWarnings("unchecked")
+  public void benchmarkMemoryAndEvaluation() {
+    final int count = 100000;
+    final int periods = 3;
+    for (int run = 0; run < 3; run++) {
+      final long baseline = usedMemory();
+      final SlidingWindowStats<Double>[] oldStats = new SlidingWindowStats[count];
+      for (int i = 0; i < count; i++) {
+        oldStats[i] =
+            new SlidingWindowStats<Double>(
+                (Class<? extends Statistic<Double>>) AggregateFunction.AVG.toStatistic(),
+                TimeResolution.MINUTES, 60, periods, 2, 180);
+        oldStats[i].addValue(i, 130);
+      }
+      final long oldBytes = (usedMemory() - baseline) / count;
+      final DoubleWindowStats[] newStats = new DoubleWindowStats[count];
+      for (int i = 0; i < count; i++) {
+        newStats[i] = new DoubleWindowStats(AggregateFunction.AVG, 60, periods, 2, 180);
+        newStats[i].addValue(i, 130);
+      }
+      final long newBytes = (usedMemory() - baseline) / count - oldBytes;
+
+      double sum = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        for (Object value : oldStats[i].getViewValues()) {
+          final double parsed = Double.parseDouble(value.toString());
+          if (!Double.isNaN(parsed)) {
+            sum += parsed;
+          }
+        }
+      }
+      final long oldNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        final DoubleWindowStats stats = newStats[i];
+        for (int slot = 0; slot < stats.getNumViewSlots(); slot++) {
+          final double value = stats.getViewValue(slot);
+          if (!Double.isNaN(value)) {
+            sum -= value;
+          }
+        }
+      }
+      final long newNanos = System.nanoTime() - start;
+      assertEquals(sum, 0.0);
+      logger.info("SlidingWindowStats {} bytes, {} ns/evaluation; "
+          + "DoubleWindowStats {} bytes, {} ns/evaluation", oldBytes, oldNanos / count,
+          newBytes, newNanos / count);
+    }
+  }
+
+  private static long usedMemory() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -17,7 +17,9 @@
 
 package monasca.thresh.domain.model;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertEqualsNoOrder;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import monasca.common.model.metric.MetricDefinition;
@@ -25,15 +27,23 @@ import monasca.common.model.metric.MetricDefinition;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantIdMatcher.DimensionPair;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantIdMatcher.DimensionSet;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.SkipException;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 @Test
 public class MetricDefinitionAndTenantIdMatcherTest {
+  private static final Logger logger =
+      LoggerFactory.getLogger(MetricDefinitionAndTenantIdMatcherTest.class);
 
   private static final String HOST = "host";
   private static final String LOAD_BALANCER_GROUP = "loadBalancerGroup";
@@ -86,6 +96,21 @@ public class MetricDefinitionAndTenantIdMatcherTest {
     assertTrue(matcher.isEmpty());
   }
 
+  public void shouldKnowMetricNamesOfTenant() {
+    final MetricDefinitionAndTenantId toMatch =
+        new MetricDefinitionAndTenantId(metricDef, tenantId);
+    final String toMatchId = getNextId();
+    assertFalse(matcher.hasMetricName(tenantId, CPU_METRIC_NAME));
+
+    matcher.add(toMatch, toMatchId);
+    assertTrue(matcher.hasMetricName(tenantId, CPU_METRIC_NAME));
+    assertFalse(matcher.hasMetricName(tenantId, "NotCpu"));
+    assertFalse(matcher.hasMetricName("Different", CPU_METRIC_NAME));
+
+    matcher.remove(toMatch, toMatchId);
+    assertFalse(matcher.hasMetricName(tenantId, CPU_METRIC_NAME));
+  }
+
   private void verifyNoMatch(final MetricDefinitionAndTenantId toMatch) {
     verifyMatch(toMatch);
   }
@@ -172,6 +197,96 @@ public class MetricDefinitionAndTenantIdMatcherTest {
     verifyNoMatch(toMatch);
   }
 
+  public void shouldMatchOnlyKnown() {
+    final MetricDefinitionAndTenantId toMatch =
+        new MetricDefinitionAndTenantId(metricDef, tenantId);
+    final Set<String> known = new HashSet<>();
+    assertFalse(matcher.matchesOnly(toMatch, known));
+
+    final Map<String, String> hostDimensions = new HashMap<>();
+    hostDimensions.put(HOST, dimensions.get(HOST));
+    final MetricDefinitionAndTenantId hostMatch =
+        new MetricDefinitionAndTenantId(new MetricDefinition(CPU_METRIC_NAME, hostDimensions),
+            tenantId);
+    final String hostMatchId = getNextId();
+    matcher.add(hostMatch, hostMatchId);
+    assertFalse(matcher.matchesOnly(toMatch, known));
+
+    known.add(hostMatchId);
+    assertTrue(matcher.matchesOnly(toMatch, known));
+
+    final MetricDefinitionAndTenantId noMatch =
+        new MetricDefinitionAndTenantId(new MetricDefinition(CPU_METRIC_NAME,
+            new HashMap<String, String>()), tenantId);
+    final String noMatchId = getNextId();
+    matcher.add(noMatch, noMatchId);
+    assertFalse(matcher.matchesOnly(toMatch, known));
+
+    known.addAll(Arrays.asList(noMatchId, getNextId()));
+    assertTrue(matcher.matchesOnly(toMatch, known));
+
+    matcher.add(toMatch, getNextId());
+    assertFalse(matcher.matchesOnly(toMatch, known));
+  }
+
+  /**
+   * Measures the bytes allocated by the current thread for matchesOnly, the fast path of the
+   * MetricFilteringBolt for already known Metrics, and for match, which it replaces
+   */
+  @Test(groups = "performance")
+  public void benchmarkMatchAllocation() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      throw new SkipException("Thread allocation counters are not supported by this JVM");
+    }
+    final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threadBean.isThreadAllocatedMemorySupported()) {
+      throw new SkipException("Thread allocation counters are not supported by this JVM");
+    }
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    final Set<String> known = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      final Map<String, String> hostDimensions = new HashMap<>();
+      hostDimensions.put(HOST, "host" + i);
+      final String id = getNextId();
+      matcher.add(new MetricDefinitionAndTenantId(new MetricDefinition(CPU_METRIC_NAME,
+          hostDimensions), tenantId), id);
+      known.add(id);
+    }
+    final Map<String, String> hostDimensions = new HashMap<>(dimensions);
+    hostDimensions.put(HOST, "host42");
+    final MetricDefinitionAndTenantId toMatch =
+        new MetricDefinitionAndTenantId(new MetricDefinition(CPU_METRIC_NAME, hostDimensions),
+            tenantId);
+
+    final int calls = 1000000;
+    final long threadId = Thread.currentThread().getId();
+    for (int run = 0; run < 5; run++) {
+      long matched = 0;
+      long start = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < calls; i++) {
+        if (matcher.matchesOnly(toMatch, known)) {
+          matched++;
+        }
+      }
+      final long matchesOnlyBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+      start = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < calls; i++) {
+        matched += matcher.match(toMatch).size();
+      }
+      final long matchBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+      assertEquals(matched, 2L * calls);
+      logger.info("Bytes allocated per call: matchesOnly {}, match {}",
+          (double) matchesOnlyBytes / calls, (double) matchBytes / calls);
+      // The first runs include the allocations of the interpreter before the JIT compiles the loop
+      if (run == 4) {
+        assertTrue(matchesOnlyBytes < calls, "matchesOnly allocated " + matchesOnlyBytes
+            + " bytes for " + calls + " calls");
+      }
+    }
+  }
+
   public void shouldCreatePossiblePairs() {
     final Map<String, String> dimensions = new HashMap<>();
     DimensionSet[] actual =
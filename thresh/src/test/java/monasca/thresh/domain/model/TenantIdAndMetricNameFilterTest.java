@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class TenantIdAndMetricNameFilterTest {
+
+  public void shouldContainAdded() {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add("tenant" + (i % 10), "metric" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain("tenant" + (i % 10), "metric" + i));
+    }
+    // A new pair whose bits were all set already is not counted
+    assertTrue(filter.getInsertions() > 990, "Insertions " + filter.getInsertions());
+    assertTrue(filter.getInsertions() <= 1000, "Insertions " + filter.getInsertions());
+    assertFalse(filter.isOverCapacity());
+    for (int i = 0; !filter.isOverCapacity(); i++) {
+      assertTrue(i < 100, "Still not over capacity after " + i + " more pairs");
+      filter.add("tenant", "one.too.many." + i);
+    }
+  }
+
+  public void shouldNotCountRepeatedAdds() {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(10, 0.01);
+    assertTrue(filter.add("tenant", "cpu.idle_perc"));
+    for (int i = 0; i < 100; i++) {
+      // As for each AlarmDefinition on the same metric name
+      assertFalse(filter.add("tenant", "cpu.idle_perc"));
+    }
+    assertEquals(filter.getInsertions(), 1);
+    assertFalse(filter.isOverCapacity());
+  }
+
+  public void shouldHaveFewFalsePositives() {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add("tenant", "cpu.idle_perc." + i);
+    }
+    int falsePositives = 0;
+    final int probes = 100000;
+    for (int i = 0; i < probes; i++) {
+      if (filter.mightContain("tenant", "mem.free_mb." + i)) {
+        falsePositives++;
+      }
+    }
+    // Expected is about 1%, allow for some variation
+    assertTrue(falsePositives < probes * 0.02, "False positives " + falsePositives);
+    assertEquals(filter.getExpectedFalsePositiveRate(), 0.01, 0.005);
+  }
+
+  public void shouldUseTenantId() {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(100, 0.001);
+    filter.add("tenant1", "cpu.idle_perc");
+    assertTrue(filter.mightContain("tenant1", "cpu.idle_perc"));
+    assertFalse(filter.mightContain("tenant2", "cpu.idle_perc"));
+    assertFalse(filter.mightContain("tenant1", "cpu.user_perc"));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectBadProbability() {
+    new TenantIdAndMetricNameFilter(100, 1.0);
+  }
+}
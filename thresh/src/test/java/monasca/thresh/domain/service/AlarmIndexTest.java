@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+@Test
+public class AlarmIndexTest {
+  private static final String TENANT_ID = "42";
+
+  public void shouldFindAlarmsByMatchByValues() {
+    final AlarmDefinition alarmDefinition =
+        alarmDefinition("max(cpu) > 90 and max(disk.io) > 10", "hostname", "dev");
+    final Alarm eleanore = alarm(alarmDefinition, metric("cpu", "hostname", "eleanore"),
+        metric("disk.io", "hostname", "eleanore", "dev", "sda"));
+    final Alarm vivi = alarm(alarmDefinition, metric("cpu", "hostname", "vivi"),
+        metric("disk.io", "hostname", "vivi", "dev", "sda"));
+    final AlarmIndex index = new AlarmIndex(alarmDefinition, Arrays.asList(eleanore, vivi));
+
+    assertEquals(index.size(), 2);
+    assertEquals(index.findAlarms(definition("disk.io", "hostname", "vivi", "dev", "sda")),
+        Arrays.asList(vivi));
+    assertTrue(index.findAlarms(definition("disk.io", "hostname", "vivi", "dev", "sdb")).isEmpty());
+    // Without all of the match by dimensions every Alarm has to be checked
+    assertEquals(new HashSet<>(index.findAlarms(definition("cpu", "dev", "sda"))), new HashSet<>(
+        Arrays.asList(eleanore, vivi)));
+
+    // The cpu metric of eleanore can be reused for another device
+    final Alarm sdb = alarm(alarmDefinition, metric("disk.io", "hostname", "eleanore", "dev", "sdb"));
+    assertEquals(index.findMetrics(sdb), Arrays.asList(metric("cpu", "hostname", "eleanore")));
+  }
+
+  public void shouldReindexAlarmWhenMetricIsAdded() {
+    final AlarmDefinition alarmDefinition =
+        alarmDefinition("max(cpu) > 90 or max(disk.io) > 10", "hostname", "dev");
+    final Alarm alarm = alarm(alarmDefinition, metric("cpu", "hostname", "eleanore"));
+    final AlarmIndex index = new AlarmIndex(alarmDefinition, Collections.singletonList(alarm));
+    assertEquals(index.findAlarms(definition("disk.io", "hostname", "eleanore", "dev", "sdb")),
+        Arrays.asList(alarm));
+
+    final MetricDefinitionAndTenantId sda =
+        metric("disk.io", "hostname", "eleanore", "dev", "sda");
+    index.addAlarmedMetric(alarm, sda);
+    assertTrue(alarm.getAlarmedMetrics().contains(sda));
+    assertTrue(index.contains(sda));
+    assertEquals(index.findAlarms(definition("disk.io", "hostname", "eleanore", "dev", "sda")),
+        Arrays.asList(alarm));
+    assertTrue(index.findAlarms(definition("disk.io", "hostname", "eleanore", "dev", "sdb"))
+        .isEmpty());
+  }
+
+  public void shouldKeepSharedMetricsUntilLastAlarmIsRemoved() {
+    final AlarmDefinition alarmDefinition = alarmDefinition("max(cpu) > 90 and max(disk.io) > 10");
+    final MetricDefinitionAndTenantId cpu = metric("cpu", "hostname", "eleanore");
+    final Alarm first = alarm(alarmDefinition, cpu, metric("disk.io", "dev", "sda"));
+    final Alarm second = alarm(alarmDefinition, cpu, metric("disk.io", "dev", "sdb"));
+    final AlarmIndex index = new AlarmIndex(alarmDefinition, Arrays.asList(first, second));
+    // Without match by every Alarm fits
+    assertEquals(index.findAlarms(definition("cpu")).size(), 2);
+
+    assertEquals(index.remove(first.getId()), first);
+    assertTrue(index.contains(cpu));
+    assertFalse(index.contains(metric("disk.io", "dev", "sda")));
+    assertEquals(index.remove(second.getId()), second);
+    assertFalse(index.contains(cpu));
+    assertTrue(index.isEmpty());
+    assertTrue(index.findAlarms(definition("cpu")).isEmpty());
+  }
+
+  private static AlarmDefinition alarmDefinition(String expression, String... matchBy) {
+    return new AlarmDefinition(TENANT_ID, "Test", "", new AlarmExpression(expression), "LOW",
+        true, Arrays.asList(matchBy));
+  }
+
+  private static Alarm alarm(AlarmDefinition alarmDefinition,
+      MetricDefinitionAndTenantId... metrics) {
+    final Alarm alarm = new Alarm(alarmDefinition, AlarmState.UNDETERMINED);
+    for (final MetricDefinitionAndTenantId metric : metrics) {
+      alarm.addAlarmedMetric(metric);
+    }
+    return alarm;
+  }
+
+  private static MetricDefinitionAndTenantId metric(String name, String... dimensions) {
+    return new MetricDefinitionAndTenantId(definition(name, dimensions), TENANT_ID);
+  }
+
+  private static MetricDefinition definition(String name, String... dimensions) {
+    final Map<String, String> dimensionsMap = new HashMap<>();
+    for (int i = 0; i < dimensions.length; i += 2) {
+      dimensionsMap.put(dimensions[i], dimensions[i + 1]);
+    }
+    return new MetricDefinition(name, dimensionsMap);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+@Test
+public class LowWatermarkTest {
+  private static final long START = 1400000000L;
+
+  public void shouldWaitForEverySource() {
+    final LowWatermark watermark = new LowWatermark(2, 60, START);
+    watermark.update(1, START - 100, START);
+    assertEquals(watermark.get(START + 1), LowWatermark.NONE);
+    watermark.update(2, START - 200, START + 1);
+    assertEquals(watermark.get(START + 1), START - 200);
+    watermark.update(2, START - 50, START + 2);
+    assertEquals(watermark.get(START + 2), START - 100);
+  }
+
+  public void shouldStartWithoutMissingSourcesAfterIdleTime() {
+    final LowWatermark watermark = new LowWatermark(2, 60, START);
+    assertEquals(watermark.get(START + 30), LowWatermark.NONE);
+    watermark.update(1, START - 100, START + 50);
+    assertEquals(watermark.get(START + 59), LowWatermark.NONE);
+    assertEquals(watermark.get(START + 60), START - 100);
+  }
+
+  public void shouldLeaveOutIdleSources() {
+    final LowWatermark watermark = new LowWatermark(2, 60, START);
+    watermark.update(1, START - 100, START);
+    watermark.update(2, START - 200, START);
+    assertEquals(watermark.get(START), START - 200);
+    watermark.update(1, START - 10, START + 70);
+    assertEquals(watermark.get(START + 70), START - 10);
+    // Every source is idle, so it follows the clock
+    assertEquals(watermark.get(START + 200), START + 200);
+  }
+
+  public void shouldNeverMoveBackwards() {
+    final LowWatermark watermark = new LowWatermark(0, 60, START);
+    watermark.update(1, START - 100, START);
+    assertEquals(watermark.get(START), START - 100);
+    watermark.update(1, START - 300, START + 1);
+    watermark.update(2, START - 500, START + 1);
+    assertEquals(watermark.get(START + 1), START - 100);
+  }
+}
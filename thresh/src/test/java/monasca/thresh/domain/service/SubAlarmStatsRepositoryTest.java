@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubAlarmStats;
+import monasca.thresh.domain.model.SubExpression;
+import monasca.thresh.domain.service.SubAlarmStatsRepository.SharedWindow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@Test
+public class SubAlarmStatsRepositoryTest {
+  private static final Logger logger = LoggerFactory.getLogger(SubAlarmStatsRepositoryTest.class);
+  private static final long VIEW_END = 1400000000L;
+
+  public void shouldShareWindowOfSameFunctionAndPeriod() {
+    final SubAlarmStatsRepository repo = new SubAlarmStatsRepository();
+    final SubAlarmStats high = add(repo, "1", "avg(cpu{id=5}, 60) > 90 times 3");
+    final SubAlarmStats low = add(repo, "2", "avg(cpu{id=5}, 60) < 10 times 3");
+    final SubAlarmStats max = add(repo, "3", "max(cpu{id=5}, 60) > 90 times 3");
+    final SubAlarmStats concat = add(repo, "4", "concat(log{id=5}, 60) LIKE \"error\"");
+
+    assertEquals(repo.getSharedWindows().size(), 2);
+    assertSame(high.getNumericStats(), low.getNumericStats());
+    assertNotSame(high.getNumericStats(), max.getNumericStats());
+    assertTrue(repo.isSharingWindow(low));
+    assertFalse(repo.isSharingWindow(concat));
+    assertEquals(repo.getNotSharing(), Collections.singleton(concat));
+
+    for (SharedWindow shared : repo.getSharedWindows()) {
+      shared.getWindow().addValue(50, VIEW_END - 10);
+      shared.getWindow().addValue(95, VIEW_END - 10);
+    }
+    assertEquals(high.getStats().getValue(VIEW_END - 10), 72.5);
+    assertEquals(low.getStats().getValue(VIEW_END - 10), 72.5);
+    assertEquals(max.getStats().getValue(VIEW_END - 10), 95.0);
+  }
+
+  public void shouldKeepValuesWhenUnsharing() {
+    final SubAlarmStatsRepository repo = new SubAlarmStatsRepository();
+    final SubAlarmStats first = add(repo, "1", "sum(cpu{id=5}, 60) > 90");
+    final SubAlarmStats second = add(repo, "2", "sum(cpu{id=5}, 60) > 50");
+    repo.getSharedWindows().iterator().next().getWindow().addValue(70, VIEW_END - 10);
+
+    assertTrue(repo.unshareWindow(second));
+    assertFalse(repo.unshareWindow(second));
+    assertNotSame(first.getNumericStats(), second.getNumericStats());
+    assertEquals(second.getStats().getValue(VIEW_END - 10), 70.0);
+    assertEquals(repo.getSharedWindows().iterator().next().getUsers(), Arrays.asList(first));
+    assertEquals(repo.getNotSharing(), Collections.singleton(second));
+
+    // The copy doesn't change with the shared window any more
+    first.getStats().addValue(5, VIEW_END - 10);
+    assertEquals(first.getStats().getValue(VIEW_END - 10), 75.0);
+    assertEquals(second.getStats().getValue(VIEW_END - 10), 70.0);
+  }
+
+  public void shouldReleaseWindowWhenLastUserIsRemoved() {
+    final SubAlarmStatsRepository repo = new SubAlarmStatsRepository();
+    final SubAlarmStats first = add(repo, "1", "count(cpu{id=5}, 60) > 90");
+    add(repo, "2", "count(cpu{id=5}, 60) > 50");
+
+    repo.remove("2");
+    assertEquals(repo.getSharedWindows().size(), 1);
+    assertTrue(repo.isSharingWindow(first));
+    repo.remove("1");
+    assertTrue(repo.getSharedWindows().isEmpty());
+    assertTrue(repo.isEmpty());
+    assertTrue(repo.getNotSharing().isEmpty());
+  }
+
+  public void shouldJoinTheViewOfTheSharedWindow() {
+    final SubAlarmStatsRepository repo = new SubAlarmStatsRepository();
+    final SubAlarmStats first = add(repo, "1", "avg(cpu{id=5}, 60) > 90");
+    first.slideWindow(VIEW_END + 61);
+    final SubAlarmStats late =
+        new SubAlarmStats(subAlarm("2", "avg(cpu{id=5}, 60) > 50"), VIEW_END + 30);
+    repo.add("2", late);
+    repo.shareWindow(late);
+    assertEquals(late.getNextSlideTimestamp(), first.getNextSlideTimestamp());
+  }
+
+  /**
+   * Compares aggregating the values of a metric into a window per SubAlarm with aggregating them
+   * once into the shared window, for many SubAlarms on one metric that only differ by threshold
+   */
+  @Test(groups = "performance")
+  public void benchmarkSharedWindows() {
+    final int subAlarmsPerMetric = 50;
+    final int values = 200000;
+    for (int run = 0; run < 3; run++) {
+      final SubAlarmStatsRepository separate = new SubAlarmStatsRepository();
+      final SubAlarmStatsRepository shared = new SubAlarmStatsRepository();
+      long separateBytes = 0;
+      for (int i = 0; i < subAlarmsPerMetric; i++) {
+        final String expression = "avg(cpu{id=5}, 60) > " + i + " times 5";
+        final SubAlarmStats stats = new SubAlarmStats(subAlarm(String.valueOf(i), expression),
+            VIEW_END);
+        separate.add(String.valueOf(i), stats);
+        separateBytes += stats.getNumericStats().getMemoryBytes();
+        add(shared, String.valueOf(i), expression);
+      }
+      long sharedBytes = 0;
+      for (SharedWindow window : shared.getSharedWindows()) {
+        sharedBytes += window.getWindow().getMemoryBytes();
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < values; i++) {
+        for (SubAlarmStats stats : separate.get()) {
+          stats.getStats().addValue(i, VIEW_END - 1 - i % 300);
+        }
+      }
+      final long separateNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < values; i++) {
+        for (SubAlarmStats stats : shared.getNotSharing()) {
+          stats.getStats().addValue(i, VIEW_END - 1 - i % 300);
+        }
+        for (SharedWindow window : shared.getSharedWindows()) {
+          window.getWindow().addValue(i, VIEW_END - 1 - i % 300);
+        }
+      }
+      final long sharedNanos = System.nanoTime() - start;
+      logger.info(String.format("%d SubAlarms per metric: separate windows %d bytes, %d ns/value; "
+          + "shared window %d bytes, %d ns/value", subAlarmsPerMetric, separateBytes,
+          separateNanos / values, sharedBytes, sharedNanos / values));
+    }
+  }
+
+  private static SubAlarmStats add(SubAlarmStatsRepository repo, String id, String expression) {
+    final SubAlarmStats stats = new SubAlarmStats(subAlarm(id, expression), VIEW_END);
+    repo.add(id, stats);
+    repo.shareWindow(stats);
+    return stats;
+  }
+
+  private static SubAlarm subAlarm(String id, String expression) {
+    return new SubAlarm(id, "1", new SubExpression(id, AlarmSubExpression.of(expression)),
+        AlarmState.UNDETERMINED);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@Test
+public class TimingWheelTest {
+  private static final Logger logger = LoggerFactory.getLogger(TimingWheelTest.class);
+
+  public void shouldReturnItemsWhenDue() {
+    final TimingWheel<String> wheel = new TimingWheel<>(1000);
+    wheel.schedule(1060, "a");
+    wheel.schedule(1001, "b");
+    wheel.schedule(1060, "c");
+    assertEquals(wheel.size(), 3);
+
+    final List<String> due = new ArrayList<>();
+    assertEquals(wheel.advanceTo(1000, due), 0);
+    assertEquals(wheel.advanceTo(1059, due), 1);
+    assertEquals(due, Collections.singletonList("b"));
+
+    due.clear();
+    assertEquals(wheel.advanceTo(1060, due), 2);
+    Collections.sort(due);
+    assertEquals(due.toString(), "[a, c]");
+    assertEquals(wheel.size(), 0);
+  }
+
+  public void shouldReturnPastItemsAtNextAdvance() {
+    final TimingWheel<String> wheel = new TimingWheel<>(1000);
+    wheel.schedule(1000, "now");
+    wheel.schedule(10, "past");
+
+    final List<String> due = new ArrayList<>();
+    assertEquals(wheel.advanceTo(900, due), 2);
+    assertEquals(wheel.getCurrentTime(), 1000);
+    assertEquals(wheel.size(), 0);
+  }
+
+  public void shouldMatchSortedScheduleOverLongRanges() {
+    final Random random = new Random(4);
+    final long start = 1400000000L;
+    final TimingWheel<Long> wheel = new TimingWheel<>(start);
+    final List<Long> times = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      // Spread over every level and the overflow
+      final long delay = (long) Math.pow(2, random.nextInt(27)) + random.nextInt(64);
+      times.add(start + delay);
+      wheel.schedule(start + delay, start + delay);
+    }
+    Collections.sort(times);
+
+    final List<Long> due = new ArrayList<>();
+    int next = 0;
+    long now = start;
+    while (next < times.size()) {
+      now += 1 + random.nextInt(4000);
+      due.clear();
+      wheel.advanceTo(now, due);
+      for (Long time : due) {
+        assertTrue(time <= now);
+      }
+      int expected = 0;
+      while (next < times.size() && times.get(next) <= now) {
+        expected++;
+        next++;
+      }
+      assertEquals(due.size(), expected, "at " + now);
+    }
+    assertEquals(wheel.size(), 0);
+  }
+
+  @Test(groups = "performance")
+  public void benchmarkTicks() {
+    final int items = 500000;
+    final long start = 1400000000L;
+    final int[] periods = {60, 300, 600, 3600};
+    final Random random = new Random(5);
+    final TimingWheel<Integer> wheel = new TimingWheel<>(start);
+    for (int i = 0; i < items; i++) {
+      wheel.schedule(start + 1 + random.nextInt(periods[i % periods.length]), i);
+    }
+
+    final List<Integer> due = new ArrayList<>();
+    final int ticks = 60;
+    long maxNanos = 0;
+    long totalDue = 0;
+    final long startNanos = System.nanoTime();
+    for (int tick = 1; tick <= ticks; tick++) {
+      final long tickStart = System.nanoTime();
+      due.clear();
+      wheel.advanceTo(start + tick * 60, due);
+      for (Integer item : due) {
+        wheel.schedule(start + tick * 60 + periods[item % periods.length], item);
+      }
+      totalDue += due.size();
+      maxNanos = Math.max(maxNanos, System.nanoTime() - tickStart);
+    }
+    logger.info(String.format("%,d items, %,d due per tick, mean tick %.2f ms, max tick %.2f ms",
+        items, totalDue / ticks, (System.nanoTime() - startNanos) / 1000000.0 / ticks,
+        maxNanos / 1000000.0));
+  }
+}
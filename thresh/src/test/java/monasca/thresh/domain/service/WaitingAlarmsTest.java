@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+@Test
+public class WaitingAlarmsTest {
+  private static final String TENANT_ID = "42";
+  private static final long START = 1400000000L;
+
+  private final AlarmDefinition alarmDefinition = new AlarmDefinition(TENANT_ID, "Test", "",
+      new AlarmExpression("max(cpu) > 90 and max(load) > 5"), "LOW", true,
+      Arrays.asList("hostname"));
+
+  public void shouldFindWaitingAlarmsByMatchByValues() {
+    final WaitingAlarms waitingAlarms = new WaitingAlarms(100, 60);
+    final Alarm eleanore = waiting(waitingAlarms, "eleanore", START);
+    final Alarm vivi = waiting(waitingAlarms, "vivi", START);
+
+    assertEquals(waitingAlarms.findAlarms(alarmDefinition.getId(), definition("load", "eleanore")),
+        Arrays.asList(eleanore));
+    assertEquals(waitingAlarms.findAlarms(alarmDefinition.getId(), definition("load", "vivi")),
+        Arrays.asList(vivi));
+    assertTrue(waitingAlarms.findAlarms("other", definition("load", "vivi")).isEmpty());
+    assertTrue(waitingAlarms.contains(alarmDefinition.getId(), metric("cpu", "vivi")));
+
+    final MetricDefinitionAndTenantId load = metric("load", "vivi");
+    waitingAlarms.addAlarmedMetric(vivi, load);
+    assertTrue(waitingAlarms.contains(alarmDefinition.getId(), load));
+
+    assertTrue(waitingAlarms.remove(vivi));
+    assertFalse(waitingAlarms.remove(vivi));
+    assertFalse(waitingAlarms.contains(alarmDefinition.getId(), load));
+    assertEquals(waitingAlarms.count(alarmDefinition.getId()), Integer.valueOf(1));
+
+    assertEquals(waitingAlarms.removeAlarmDefinition(alarmDefinition.getId()), 1);
+    assertNull(waitingAlarms.count(alarmDefinition.getId()));
+    assertEquals(waitingAlarms.size(), 0);
+  }
+
+  public void shouldEvictOldestWhenFull() {
+    final WaitingAlarms waitingAlarms = new WaitingAlarms(2, 60);
+    waiting(waitingAlarms, "eleanore", START);
+    final Alarm vivi = waiting(waitingAlarms, "vivi", START + 1);
+    final Alarm maddyie = waiting(waitingAlarms, "maddyie", START + 2);
+
+    assertEquals(waitingAlarms.size(), 2);
+    assertEquals(waitingAlarms.getEvicted(), 1);
+    assertTrue(waitingAlarms.findAlarms(alarmDefinition.getId(), definition("load", "eleanore"))
+        .isEmpty());
+    assertEquals(waitingAlarms.findAlarms(alarmDefinition.getId(), definition("load", "vivi")),
+        Arrays.asList(vivi));
+    assertEquals(waitingAlarms.findAlarms(alarmDefinition.getId(), definition("load", "maddyie")),
+        Arrays.asList(maddyie));
+  }
+
+  public void shouldExpireOldAlarms() {
+    final WaitingAlarms waitingAlarms = new WaitingAlarms(100, 60);
+    waiting(waitingAlarms, "eleanore", START);
+    waiting(waitingAlarms, "vivi", START + 30);
+
+    assertEquals(waitingAlarms.expire(START + 59), 0);
+    assertEquals(waitingAlarms.expire(START + 60), 1);
+    assertEquals(waitingAlarms.count(alarmDefinition.getId()), Integer.valueOf(1));
+    assertEquals(waitingAlarms.expire(START + 90), 1);
+    assertNull(waitingAlarms.count(alarmDefinition.getId()));
+    assertEquals(waitingAlarms.getExpired(), 2);
+  }
+
+  private Alarm waiting(WaitingAlarms waitingAlarms, String hostname, long now) {
+    final Alarm alarm = new Alarm(alarmDefinition, AlarmState.UNDETERMINED);
+    alarm.addAlarmedMetric(metric("cpu", hostname));
+    waitingAlarms.add(alarmDefinition, alarm, now);
+    return alarm;
+  }
+
+  private static MetricDefinitionAndTenantId metric(String name, String hostname) {
+    return new MetricDefinitionAndTenantId(definition(name, hostname), TENANT_ID);
+  }
+
+  private static MetricDefinition definition(String name, String hostname) {
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", hostname);
+    return new MetricDefinition(name, dimensions);
+  }
+}
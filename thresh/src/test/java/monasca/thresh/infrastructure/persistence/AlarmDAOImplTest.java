@@ -35,9 +35,12 @@ import monasca.thresh.domain.service.AlarmDAO;
 
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.nio.charset.Charset;
@@ -49,6 +52,7 @@ import java.util.Map;
 
 @Test
 public class AlarmDAOImplTest {
+  private static final Logger logger = LoggerFactory.getLogger(AlarmDAOImplTest.class);
   private static final String TENANT_ID = "bob";
   private static String ALARM_NAME = "90% CPU";
   private static String ALARM_DESCR = "Description for " + ALARM_NAME;
@@ -181,6 +185,22 @@ public class AlarmDAOImplTest {
     assertEquals(dao.findById(newAlarm.getId()).getState(), AlarmState.ALARM);
   }
 
+  public void shouldUpdateStates() {
+    final Alarm first = new Alarm(alarmDef, AlarmState.OK);
+    final Alarm second = new Alarm(alarmDef, AlarmState.OK);
+    final Alarm unchanged = new Alarm(alarmDef, AlarmState.OK);
+    dao.createAlarms(Arrays.asList(first, second, unchanged));
+
+    final Map<String, AlarmState> states = new HashMap<>();
+    states.put(first.getId(), AlarmState.ALARM);
+    states.put(second.getId(), AlarmState.UNDETERMINED);
+    dao.updateStates(states);
+
+    assertEquals(dao.findById(first.getId()).getState(), AlarmState.ALARM);
+    assertEquals(dao.findById(second.getId()).getState(), AlarmState.UNDETERMINED);
+    assertEquals(dao.findById(unchanged.getId()).getState(), AlarmState.OK);
+  }
+
   public void shouldUpdate() {
     final Alarm newAlarm = new Alarm(alarmDef, AlarmState.OK);
     dao.createAlarm(newAlarm);
@@ -203,6 +223,130 @@ public class AlarmDAOImplTest {
     assertEquals(dao.findById(newAlarm.getId()), newAlarm);
   }
 
+  public void shouldCreateAlarmIdempotently() {
+    final Alarm alarm = new Alarm(alarmDef, AlarmState.UNDETERMINED);
+    alarm.addAlarmedMetric(newMetric);
+    dao.createAlarm(alarm);
+    // As if a creation bolt was restarted and created it again
+    dao.createAlarm(alarm);
+    dao.addAlarmedMetric(alarm.getId(), newMetric);
+
+    assertEquals(dao.findById(alarm.getId()), alarm);
+    assertEquals(handle.select("select * from alarm").size(), 1);
+    assertEquals(handle.select("select * from sub_alarm").size(), alarm.getSubAlarms().size());
+    assertEquals(handle.select("select * from alarm_metric").size(), 1);
+  }
+
+  public void shouldCreateAlarms() {
+    final List<Alarm> alarms = new ArrayList<>();
+    for (final String hostname : Arrays.asList("vivi", "eleanore")) {
+      final Alarm alarm = new Alarm(alarmDef, AlarmState.UNDETERMINED);
+      final Map<String, String> dimensions = new HashMap<String, String>(newMetric.metricDefinition.dimensions);
+      dimensions.put("hostname", hostname);
+      alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition("load",
+          dimensions), TENANT_ID));
+      alarm.addAlarmedMetric(newMetric);
+      alarms.add(alarm);
+    }
+    dao.createAlarms(alarms);
+
+    verifyAlarmList(dao.listAll(), alarms.toArray(new Alarm[alarms.size()]));
+    assertEquals(handle.select("select * from sub_alarm").size(),
+        2 * alarmDef.getSubExpressions().size());
+    assertEquals(handle.select("select * from alarm_metric").size(), 4);
+    assertEquals(handle.select("select * from metric_definition").size(), 1);
+    assertEquals(handle.select("select * from metric_definition_dimensions").size(), 3);
+    assertEquals(handle.select("select * from metric_dimension").size(), 2 + 3 + 3);
+  }
+
+  public void shouldLoadAlarmsOfAlarmDefinition() {
+    final AlarmDefinition secondAlarmDef =
+        new AlarmDefinition(TENANT_ID, "Second", null, new AlarmExpression(
+            "avg(load{first=first_value}) > 10"), "LOW", true, new ArrayList<String>());
+    final Alarm first = new Alarm(alarmDef, AlarmState.OK);
+    first.addAlarmedMetric(newMetric);
+    final Alarm second = new Alarm(secondAlarmDef, AlarmState.ALARM);
+    // Both Alarms have the same metric
+    second.addAlarmedMetric(newMetric);
+    final Alarm third = new Alarm(secondAlarmDef, AlarmState.OK);
+    dao.createAlarms(Arrays.asList(first, second, third));
+
+    final List<Alarm> found = dao.findForAlarmDefinitionId(secondAlarmDef.getId());
+    verifyAlarmList(found, second, third);
+    for (final Alarm alarm : found) {
+      assertEquals(alarm.getSubAlarms().size(), 1);
+    }
+    verifyAlarmList(dao.listAll(), first, second, third);
+  }
+
+  public void shouldStreamAlarms() {
+    final List<Alarm> created = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      final Alarm alarm = new Alarm(alarmDef, AlarmState.OK);
+      alarm.addAlarmedMetric(newMetric);
+      created.add(alarm);
+    }
+    dao.createAlarms(created);
+    // Rows of an Alarm that is not in the alarm table must be skipped
+    handle.insert("insert into sub_alarm (id, alarm_id, sub_expression_id, expression, created_at, updated_at) "
+        + "values ('orphan', '00000000-0000-0000-0000-000000000000', 'orphan', 'max(cpu) > 90', NOW(), NOW())");
+
+    final List<Alarm> streamed = new ArrayList<>();
+    dao.streamAll(new AlarmDAO.AlarmHandler() {
+      @Override
+      public void handle(Alarm alarm) {
+        streamed.add(alarm);
+      }
+    });
+    verifyAlarmList(streamed, created.toArray(new Alarm[created.size()]));
+  }
+
+  @Test(groups = "performance", dataProvider = "alarmCounts")
+  public void benchmarkListAll(int alarmCount) throws Exception {
+    final DBI benchmarkDb = new DBI("jdbc:h2:mem:benchmark;MODE=MySQL");
+    final Handle benchmarkHandle = benchmarkDb.open();
+    try {
+      benchmarkHandle.execute(Resources.toString(getClass().getResource("alarm.sql"),
+          Charset.defaultCharset()));
+      final AlarmDAO benchmarkDao = new AlarmDAOImpl(benchmarkDb);
+      final AlarmDefinition benchmarkAlarmDef =
+          new AlarmDefinition(TENANT_ID, ALARM_NAME, ALARM_DESCR, new AlarmExpression(
+              "avg(load{service=monitoring}) > 10 and max(cpu{service=monitoring}) > 90"), "LOW",
+              ALARM_ENABLED, Arrays.asList("hostname"));
+      final List<Alarm> batch = new ArrayList<>();
+      for (int i = 0; i < alarmCount; i++) {
+        final Alarm alarm = new Alarm(benchmarkAlarmDef, AlarmState.OK);
+        for (final String metricName : Arrays.asList("load", "cpu")) {
+          final Map<String, String> dimensions = new HashMap<>();
+          dimensions.put("service", "monitoring");
+          dimensions.put("hostname", "host" + i);
+          alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition(metricName,
+              dimensions), TENANT_ID));
+        }
+        batch.add(alarm);
+        if (batch.size() == 1000) {
+          benchmarkDao.createAlarms(batch);
+          batch.clear();
+        }
+      }
+      benchmarkDao.createAlarms(batch);
+
+      final long startNanos = System.nanoTime();
+      final List<Alarm> alarms = benchmarkDao.listAll();
+      assertEquals(alarms.size(), alarmCount);
+      logger.info("{} alarms loaded in {} ms", alarmCount,
+          (System.nanoTime() - startNanos) / 1000000);
+    } finally {
+      benchmarkHandle.execute("drop all objects");
+      benchmarkHandle.close();
+    }
+  }
+
+  @DataProvider
+  public Object[][] alarmCounts() {
+    return new Object[][] { {10000}, {100000}, {1000000}};
+  }
+
   public void validateNoDuplicates() {
     final Alarm alarm1 = new Alarm(alarmDef, AlarmState.OK);
     alarm1.addAlarmedMetric(newMetric);
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.persistence;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import monasca.thresh.infrastructure.thresholding.DataSourceFactory;
+
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.testng.annotations.Test;
+
+import java.util.Properties;
+
+@Test
+public class ConnectionPoolTest {
+
+  public void shouldParseDurations() {
+    assertEquals(ConnectionPool.parseDurationMillis("1s", 5), 1000);
+    assertEquals(ConnectionPool.parseDurationMillis("500ms", 5), 500);
+    assertEquals(ConnectionPool.parseDurationMillis("2 minutes", 5), 120000);
+    assertEquals(ConnectionPool.parseDurationMillis("250", 5), 250);
+    assertEquals(ConnectionPool.parseDurationMillis(null, 5), 5);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectUnknownUnits() {
+    ConnectionPool.parseDurationMillis("1 fortnight", 5);
+  }
+
+  public void shouldConfigurePool() {
+    final DataSourceFactory dbConfig = createConfig("jdbc:mysql://localhost:3306/mon");
+    dbConfig.setMinSize("8");
+    dbConfig.setMaxSize("41");
+    dbConfig.setMaxWaitForConnection("2s");
+    dbConfig.setValidationQuery("SELECT 1");
+    final Properties properties = new Properties();
+    properties.put("ssl", Boolean.FALSE);
+    properties.put("prepStmtCacheSize", "100");
+    dbConfig.setProperties(properties);
+
+    final PoolProperties poolProperties = ConnectionPool.poolProperties(dbConfig);
+    assertEquals(poolProperties.getMinIdle(), 8);
+    assertEquals(poolProperties.getMaxActive(), 41);
+    assertEquals(poolProperties.getMaxWait(), 2000);
+    assertEquals(poolProperties.getValidationQuery(), "SELECT 1");
+    assertTrue(poolProperties.isTestOnBorrow());
+
+    final Properties dbProperties = poolProperties.getDbProperties();
+    assertEquals(dbProperties.getProperty("cachePrepStmts"), "true");
+    assertEquals(dbProperties.getProperty("useServerPrepStmts"), "true");
+    assertEquals(dbProperties.getProperty("useCursorFetch"), "true");
+    assertEquals(dbProperties.getProperty("prepStmtCacheSize"), "100");
+    assertEquals(dbProperties.getProperty("ssl"), "false");
+  }
+
+  public void shouldOnlyCacheStatementsForMySQL() {
+    final Properties dbProperties =
+        ConnectionPool.connectionProperties(createConfig("jdbc:h2:mem:pool"));
+    assertNull(dbProperties.getProperty("cachePrepStmts"));
+  }
+
+  public void shouldReuseConnections() {
+    final DataSourceFactory dbConfig = createConfig("jdbc:h2:mem:pool;MODE=MySQL");
+    dbConfig.setMinSize("1");
+    dbConfig.setMaxSize("2");
+    final ConnectionPool pool = new ConnectionPool(dbConfig);
+    try {
+      final DBI db = new DBI(pool);
+      for (int i = 0; i < 3; i++) {
+        final Handle h = db.open();
+        try {
+          assertEquals(pool.getActive(), 1);
+          h.select("select 1");
+        } finally {
+          h.close();
+        }
+      }
+      assertEquals(pool.getActive(), 0);
+      assertEquals(pool.getIdle(), 1);
+      assertEquals(pool.getConnectionCount(), 3);
+    } finally {
+      pool.close();
+    }
+  }
+
+  private DataSourceFactory createConfig(String url) {
+    final DataSourceFactory dbConfig = new DataSourceFactory();
+    dbConfig.setDriverClass(url.startsWith("jdbc:h2") ? "org.h2.Driver" : "com.mysql.jdbc.Driver");
+    dbConfig.setUrl(url);
+    dbConfig.setUser("thresh");
+    dbConfig.setPassword("password");
+    return dbConfig;
+  }
+}
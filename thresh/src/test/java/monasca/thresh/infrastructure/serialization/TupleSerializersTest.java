@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.serialization;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.event.AlarmDefinitionCreatedEvent;
+import monasca.common.model.event.AlarmDefinitionDeletedEvent;
+import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
+import monasca.common.model.event.AlarmDeletedEvent;
+import monasca.common.model.event.AlarmUpdatedEvent;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+
+import backtype.storm.Config;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Test
+public class TupleSerializersTest {
+  private static final Logger logger = LoggerFactory.getLogger(TupleSerializersTest.class);
+  private static final String TENANT_ID = "42";
+  private Kryo kryo;
+  private MetricDefinition metricDefinition;
+  private Map<String, AlarmSubExpression> subExpressions;
+
+  @BeforeClass(alwaysRun = true)
+  @SuppressWarnings("unchecked")
+  protected void beforeClass() throws Exception {
+    // Register the serializers the same way Storm does from the configuration
+    final Config config = new Config();
+    TupleSerializers.register(config);
+    kryo = new Kryo();
+    for (final Map<String, String> registration : (List<Map<String, String>>) config
+        .get(Config.TOPOLOGY_KRYO_REGISTER)) {
+      for (final Map.Entry<String, String> entry : registration.entrySet()) {
+        kryo.register(Class.forName(entry.getKey()),
+            (Serializer<?>) Class.forName(entry.getValue()).newInstance());
+      }
+    }
+
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", "devstack");
+    dimensions.put("service", "monitoring");
+    metricDefinition = new MetricDefinition("cpu.idle_perc", dimensions);
+    subExpressions = new HashMap<>();
+    subExpressions.put("111", AlarmSubExpression.of("avg(cpu.idle_perc{hostname=devstack}) < 10"));
+    subExpressions.put("222", AlarmSubExpression.of("max(mem.free_mb, 120) <= 1024 times 3"));
+  }
+
+  public void shouldRoundTripTenantIdAndMetricName() {
+    roundTrip(new TenantIdAndMetricName(TENANT_ID, "cpu.idle_perc"));
+  }
+
+  public void shouldRoundTripMetricDefinitionAndTenantId() {
+    roundTrip(new MetricDefinitionAndTenantId(metricDefinition, TENANT_ID));
+    roundTrip(new MetricDefinitionAndTenantId(new MetricDefinition("no.dims", null), TENANT_ID));
+  }
+
+  public void shouldRoundTripMetric() {
+    final Metric metric =
+        (Metric) roundTrip(new Metric(metricDefinition, 1405630174123L, 95.5));
+    assertEquals(metric.timestamp, 1405630174123L);
+    assertEquals(metric.value, 95.5);
+  }
+
+  public void shouldRoundTripMetricDefinition() {
+    roundTrip(metricDefinition);
+    roundTrip(new MetricDefinition("empty.dims", new HashMap<String, String>()));
+  }
+
+  public void shouldRoundTripAlarmSubExpression() {
+    for (final AlarmSubExpression subExpression : subExpressions.values()) {
+      roundTrip(subExpression);
+    }
+  }
+
+  public void shouldRoundTripAlarmDefinitionCreatedEvent() {
+    roundTrip(new AlarmDefinitionCreatedEvent(TENANT_ID, "123", "An Alarm", "A Description",
+        "avg(cpu.idle_perc{hostname=devstack}) < 10 or max(mem.free_mb, 120) <= 1024 times 3",
+        subExpressions, Arrays.asList("hostname")));
+    roundTrip(new AlarmDefinitionCreatedEvent(TENANT_ID, "123", "An Alarm", null,
+        "avg(cpu.idle_perc) < 10", null, null));
+  }
+
+  public void shouldRoundTripAlarmDefinitionDeletedEvent() {
+    final Map<String, MetricDefinition> metricDefinitions = new HashMap<>();
+    metricDefinitions.put("111", metricDefinition);
+    roundTrip(new AlarmDefinitionDeletedEvent("123", metricDefinitions));
+  }
+
+  public void shouldRoundTripAlarmDefinitionUpdatedEvent() {
+    final Map<String, AlarmSubExpression> empty = new HashMap<>();
+    roundTrip(new AlarmDefinitionUpdatedEvent(TENANT_ID, "123", "An Alarm", "A Description",
+        "avg(cpu.idle_perc{hostname=devstack}) < 10 or max(mem.free_mb, 120) <= 1024 times 3",
+        Arrays.asList("hostname", "service"), true, "HIGH", subExpressions, empty, subExpressions,
+        empty));
+  }
+
+  public void shouldRoundTripAlarmDeletedEvent() {
+    roundTrip(new AlarmDeletedEvent(TENANT_ID, "456", Arrays.asList(metricDefinition), "123",
+        subExpressions));
+  }
+
+  public void shouldRoundTripAlarmUpdatedEvent() {
+    roundTrip(new AlarmUpdatedEvent("456", "123", TENANT_ID, Arrays.asList(metricDefinition),
+        subExpressions, AlarmState.ALARM, AlarmState.OK));
+    roundTrip(new AlarmUpdatedEvent("456", "123", TENANT_ID, null, null, null, null));
+  }
+
+  /**
+   * Reports the bytes and time per tuple of the metrics stream compared to Java serialization,
+   * which is what Storm used for these classes before
+   */
+  @Test(groups = "performance")
+  public void benchmarkMetricTuple() throws IOException, ClassNotFoundException {
+    final Object[] tuple = new Object[] {new TenantIdAndMetricName(TENANT_ID, "cpu.idle_perc"),
+        new Metric(metricDefinition, 1405630174123L, 95.5)};
+    final int count = 200000;
+    final Output output = new Output(4096, -1);
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      int kryoBytes = 0;
+      for (int i = 0; i < count; i++) {
+        output.clear();
+        for (final Object value : tuple) {
+          kryo.writeClassAndObject(output, value);
+        }
+        kryoBytes = output.position();
+        final Input input = new Input(output.getBuffer(), 0, output.position());
+        for (int j = 0; j < tuple.length; j++) {
+          kryo.readClassAndObject(input);
+        }
+      }
+      final long kryoNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int javaBytes = 0;
+      for (int i = 0; i < count; i++) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+          for (final Object value : tuple) {
+            out.writeObject(value);
+          }
+        }
+        javaBytes = bytes.size();
+        try (final ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+          for (int j = 0; j < tuple.length; j++) {
+            in.readObject();
+          }
+        }
+      }
+      final long javaNanos = System.nanoTime() - start;
+      logger.info("Kryo {} bytes {} ns/tuple, Java serialization {} bytes {} ns/tuple",
+          kryoBytes, kryoNanos / count, javaBytes, javaNanos / count);
+    }
+  }
+
+  private Object roundTrip(final Object object) {
+    final Output output = new Output(1024, -1);
+    kryo.writeClassAndObject(output, object);
+    final Object result = kryo.readClassAndObject(new Input(output.toBytes()));
+    assertNotSame(result, object);
+    assertEquals(result, object);
+    return result;
+  }
+}
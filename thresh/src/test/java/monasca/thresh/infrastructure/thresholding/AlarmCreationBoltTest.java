@@ -18,8 +18,11 @@
 package monasca.thresh.infrastructure.thresholding;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -29,7 +32,9 @@ import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
+import backtype.storm.Constants;
 import backtype.storm.Testing;
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.testing.MkTupleParam;
@@ -40,7 +45,9 @@ import monasca.common.model.alarm.AlarmExpression;
 import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.event.AlarmDefinitionDeletedEvent;
+import monasca.common.model.event.AlarmDeletedEvent;
 import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.AlarmCreationConfig;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
@@ -50,12 +57,14 @@ import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -271,6 +280,41 @@ public class AlarmCreationBoltTest {
     assertNull(bolt.countWaitingAlarms(alarmDefinition.getId()));
   }
   
+  public void testAlarmsIndexedOnce() {
+    final AlarmDefinition alarmDefinition =
+        createAlarmDefinition("max(cpu{service=2}) > 90", "hostname");
+    final List<String> hostnames = Arrays.asList("eleanore", "vivi", "maddyie");
+    for (final String hostname : hostnames) {
+      final MetricDefinition metric = build("cpu", "hostname", hostname, "service", "2");
+      sendNewMetric(new MetricDefinitionAndTenantId(metric, TENANT_ID), alarmDefinition.getId());
+    }
+
+    assertEquals(this.createdAlarms.size(), hostnames.size());
+    assertEquals(bolt.countIndexedAlarms(alarmDefinition.getId()),
+        Integer.valueOf(hostnames.size()));
+    verify(alarmDAO, times(1)).findForAlarmDefinitionId(alarmDefinition.getId());
+
+    // Delete one of the Alarms, a new metric for its host must create a new Alarm
+    final Alarm deleted = this.createdAlarms.get(0);
+    final AlarmDeletedEvent event =
+        new AlarmDeletedEvent(TENANT_ID, deleted.getId(), null, alarmDefinition.getId(), null);
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setFields(EventProcessingBolt.ALARM_EVENT_STREAM_FIELDS);
+    tupleParam.setStream(EventProcessingBolt.ALARM_EVENT_STREAM_ID);
+    bolt.execute(Testing.testTuple(
+        Arrays.asList(EventProcessingBolt.DELETED, deleted.getId(), event), tupleParam));
+    assertEquals(bolt.countIndexedAlarms(alarmDefinition.getId()),
+        Integer.valueOf(hostnames.size() - 1));
+
+    this.createdAlarms.clear();
+    final MetricDefinition metric = build("cpu", "hostname", "eleanore", "service", "2");
+    sendNewMetric(new MetricDefinitionAndTenantId(metric, TENANT_ID), alarmDefinition.getId());
+    assertEquals(this.createdAlarms.size(), 1);
+
+    sendAlarmDefinitionDeleted(alarmDefinition);
+    assertNull(bolt.countIndexedAlarms(alarmDefinition.getId()));
+  }
+
   private void sendAlarmDefinitionDeleted(final AlarmDefinition alarmDefinition) {
     final Map<String, MetricDefinition> subAlarmMetricDefinitions = new HashMap<>();
     for (final AlarmSubExpression subExpr : alarmDefinition.getAlarmExpression().getSubExpressions()) {
@@ -290,6 +334,11 @@ public class AlarmCreationBoltTest {
 
   private void sendNewMetric(MetricDefinitionAndTenantId metricDefinitionAndTenantId,
                              String alarmDefinitionId) {
+    sendNewMetric(bolt, metricDefinitionAndTenantId, alarmDefinitionId);
+  }
+
+  private void sendNewMetric(AlarmCreationBolt bolt,
+      MetricDefinitionAndTenantId metricDefinitionAndTenantId, String alarmDefinitionId) {
     final MkTupleParam tupleParam = new MkTupleParam();
     tupleParam.setFields(MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_FIELDS);
     tupleParam.setStream(MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM);
@@ -437,6 +486,83 @@ public class AlarmCreationBoltTest {
     verifyCreatedAlarm(this.createdAlarms.get(0), alarmDefinition, collector, cpuMtid, loadAvgMtid);
   }
 
+  @SuppressWarnings("unchecked")
+  public void testAlarmsCreatedInBatches() {
+    final AlarmCreationConfig config = new AlarmCreationConfig();
+    config.creationBatchMillis = 1000;
+    config.maxCreationBatchSize = 2;
+    final long[] currentTimeMillis = {0};
+    final AlarmCreationBolt batchingBolt = new AlarmCreationBolt(alarmDefDAO, alarmDAO, config) {
+      @Override
+      protected long getCurrentTimeMillis() {
+        return currentTimeMillis[0];
+      }
+    };
+    final OutputCollector batchingCollector = mock(OutputCollector.class);
+    batchingBolt.prepare(new HashMap<String, String>(), mock(TopologyContext.class),
+        batchingCollector);
+    assertNotNull(batchingBolt.getComponentConfiguration());
+
+    final AlarmDefinition alarmDefinition =
+        createAlarmDefinition("max(cpu{service=2}) > 90", "hostname");
+    final List<MetricDefinitionAndTenantId> metrics = new LinkedList<>();
+    for (final String hostname : Arrays.asList("eleanore", "vivi", "maddyie")) {
+      metrics.add(new MetricDefinitionAndTenantId(build("cpu", "hostname", hostname, "service",
+          "2"), TENANT_ID));
+    }
+
+    sendNewMetric(batchingBolt, metrics.get(0), alarmDefinition.getId());
+    verify(alarmDAO, never()).createAlarms((Collection<Alarm>) any());
+    verify(batchingCollector, never()).emit(any(String.class), any(List.class));
+    assertEquals(batchingBolt.countIndexedAlarms(alarmDefinition.getId()), Integer.valueOf(1));
+
+    // The batch is full
+    sendNewMetric(batchingBolt, metrics.get(1), alarmDefinition.getId());
+    verify(alarmDAO, times(1)).createAlarms((Collection<Alarm>) any());
+    verify(batchingCollector, times(2)).emit(any(String.class), any(List.class));
+
+    // The batch is old enough at the next tick
+    sendNewMetric(batchingBolt, metrics.get(2), alarmDefinition.getId());
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setComponent(Constants.SYSTEM_COMPONENT_ID);
+    tupleParam.setStream(Constants.SYSTEM_TICK_STREAM_ID);
+    batchingBolt.execute(Testing.testTuple(Arrays.asList(), tupleParam));
+    verify(alarmDAO, times(1)).createAlarms((Collection<Alarm>) any());
+
+    currentTimeMillis[0] = config.creationBatchMillis;
+    batchingBolt.execute(Testing.testTuple(Arrays.asList(), tupleParam));
+    verify(alarmDAO, times(2)).createAlarms((Collection<Alarm>) any());
+    verify(batchingCollector, times(3)).emit(any(String.class), any(List.class));
+    assertEquals(batchingBolt.countIndexedAlarms(alarmDefinition.getId()), Integer.valueOf(3));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testReportsEvictedWaitingAlarms() {
+    final AlarmCreationConfig config = new AlarmCreationConfig();
+    config.maxWaitingAlarms = 1;
+    final AlarmCreationBolt evictingBolt = new AlarmCreationBolt(alarmDefDAO, alarmDAO, config);
+    final TopologyContext context = mock(TopologyContext.class);
+    evictingBolt.prepare(new HashMap<String, String>(), context, mock(OutputCollector.class));
+    final ArgumentCaptor<IMetric> metric = ArgumentCaptor.forClass(IMetric.class);
+    verify(context).registerMetric(eq("waiting-alarms"), metric.capture(), anyInt());
+
+    final AlarmDefinition alarmDefinition =
+        createAlarmDefinition("max(cpu{service=2}) > 90 and max(load_avg{service=2}) > 10",
+            "hostname");
+    for (final String hostname : Arrays.asList("eleanore", "vivi")) {
+      sendNewMetric(evictingBolt, new MetricDefinitionAndTenantId(build("cpu", "hostname",
+          hostname, "service", "2"), TENANT_ID), alarmDefinition.getId());
+    }
+    assertEquals(evictingBolt.countWaitingAlarms(alarmDefinition.getId()), Integer.valueOf(1));
+
+    Map<String, Object> values = (Map<String, Object>) metric.getValue().getValueAndReset();
+    assertEquals(values.get("waiting"), 1);
+    assertEquals(values.get("evicted"), 1L);
+    assertEquals(values.get("expired"), 0L);
+    values = (Map<String, Object>) metric.getValue().getValueAndReset();
+    assertEquals(values.get("evicted"), 0L);
+  }
+
   private AlarmDefinition createAlarmDefinition(final String expression, final String... matchBy) {
     final AlarmExpression alarmExpression = new AlarmExpression(expression);
 
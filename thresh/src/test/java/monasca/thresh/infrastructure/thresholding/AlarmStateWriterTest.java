@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class AlarmStateWriterTest {
+  private static final long LONG_INTERVAL_MILLIS = 60000;
+
+  public void shouldWriteLatestStateOnce() {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final AlarmStateWriter writer = new AlarmStateWriter(alarmDAO, LONG_INTERVAL_MILLIS, 100, 1000);
+    writer.start();
+
+    writer.write("a", AlarmState.OK);
+    writer.write("b", AlarmState.OK);
+    writer.write("a", AlarmState.ALARM);
+    verify(alarmDAO, never()).updateStates(anyMap());
+    writer.close();
+
+    final Map<String, AlarmState> expected = new HashMap<>();
+    expected.put("a", AlarmState.ALARM);
+    expected.put("b", AlarmState.OK);
+    verify(alarmDAO, times(1)).updateStates(expected);
+
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> metrics = (Map<String, Object>) writer.getValueAndReset();
+    assertEquals(metrics.get("writes"), 3L);
+    assertEquals(metrics.get("coalesced"), 1L);
+    assertEquals(metrics.get("flushes"), 1L);
+    assertEquals(metrics.get("flushedAlarms"), 2L);
+    assertEquals(metrics.get("pending"), 0);
+  }
+
+  public void shouldNotWriteRemovedState() {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final AlarmStateWriter writer = new AlarmStateWriter(alarmDAO, LONG_INTERVAL_MILLIS, 100, 1000);
+    writer.start();
+
+    writer.write("a", AlarmState.ALARM);
+    writer.write("b", AlarmState.OK);
+    assertFalse(writer.remove("a"));
+    writer.close();
+
+    verify(alarmDAO, times(1)).updateStates(Collections.singletonMap("b", AlarmState.OK));
+  }
+
+  public void shouldWaitForStateBeingWrittenWhenRemoved() throws Exception {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final CountDownLatch writeStarted = new CountDownLatch(1);
+    final CountDownLatch writeAllowed = new CountDownLatch(1);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        writeStarted.countDown();
+        writeAllowed.await(5, TimeUnit.SECONDS);
+        throw new RuntimeException("Database is down");
+      }
+    }).when(alarmDAO).updateStates(Collections.singletonMap("a", AlarmState.ALARM));
+    final AlarmStateWriter writer = new AlarmStateWriter(alarmDAO, 10, 1, 1000);
+    writer.start();
+
+    writer.write("a", AlarmState.ALARM);
+    assertTrue(writeStarted.await(5, TimeUnit.SECONDS));
+    new Thread() {
+      @Override
+      public void run() {
+        // Let the write fail once remove is waiting for it
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        writeAllowed.countDown();
+      }
+    }.start();
+    // Waits for the failed write, which is then not retried
+    assertTrue(writer.remove("a"));
+    writer.close();
+
+    verify(alarmDAO, times(1)).updateStates(anyMap());
+  }
+
+  public void shouldWriteFullBatchBeforeInterval() {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final AlarmStateWriter writer = new AlarmStateWriter(alarmDAO, LONG_INTERVAL_MILLIS, 2, 10);
+    writer.start();
+
+    writer.write("a", AlarmState.ALARM);
+    writer.write("b", AlarmState.OK);
+
+    final Map<String, AlarmState> expected = new HashMap<>();
+    expected.put("a", AlarmState.ALARM);
+    expected.put("b", AlarmState.OK);
+    verify(alarmDAO, timeout(5000)).updateStates(expected);
+    writer.close();
+  }
+
+  public void shouldRetryFailedWrite() {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final Map<String, AlarmState> expected = new HashMap<>();
+    expected.put("a", AlarmState.ALARM);
+    doThrow(new RuntimeException("Database is down")).doNothing().when(alarmDAO)
+        .updateStates(expected);
+    final AlarmStateWriter writer = new AlarmStateWriter(alarmDAO, 10, 100, 1000);
+    writer.start();
+
+    writer.write("a", AlarmState.ALARM);
+    verify(alarmDAO, timeout(5000).times(2)).updateStates(expected);
+    writer.close();
+
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> metrics = (Map<String, Object>) writer.getValueAndReset();
+    assertEquals(metrics.get("failedFlushes"), 1L);
+    assertEquals(metrics.get("flushedAlarms"), 1L);
+  }
+
+  public void shouldNotKeepFailedStateOfChangedAlarm() throws Exception {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final Map<String, AlarmState> first = new HashMap<>();
+    first.put("a", AlarmState.ALARM);
+    final Map<String, AlarmState> second = new HashMap<>();
+    second.put("a", AlarmState.OK);
+    doThrow(new RuntimeException("Database is down")).when(alarmDAO).updateStates(first);
+    doNothing().when(alarmDAO).updateStates(second);
+    final AlarmStateWriter writer = new AlarmStateWriter(alarmDAO, 10, 1, 1000);
+    writer.start();
+
+    writer.write("a", AlarmState.ALARM);
+    verify(alarmDAO, timeout(5000)).updateStates(first);
+    writer.write("a", AlarmState.OK);
+    verify(alarmDAO, timeout(5000)).updateStates(second);
+    writer.close();
+  }
+}
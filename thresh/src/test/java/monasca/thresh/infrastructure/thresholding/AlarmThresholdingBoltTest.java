@@ -17,13 +17,19 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
+import monasca.thresh.AlarmThresholdingConfig;
 import monasca.thresh.ThresholdingConfiguration;
 import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
 import monasca.common.model.event.AlarmUpdatedEvent;
@@ -50,6 +56,7 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -71,6 +78,8 @@ public class AlarmThresholdingBoltTest {
   private AlarmDefinitionDAO alarmDefinitionDAO;
   private AlarmThresholdingBolt bolt;
   private OutputCollector collector;
+  private Map<String, String> config;
+  private TopologyContext context;
   private final String[] subExpressions = {"avg(cpu{instance_id=123,device=42}, 1) > 5",
       "max(load{instance_id=123,device=42}, 1) > 8",
       "sum(diskio{instance_id=123,device=42}, 1) > 5000"};
@@ -97,10 +106,10 @@ public class AlarmThresholdingBoltTest {
     alarmDefinitionDAO = mock(AlarmDefinitionDAO.class);
     bolt = new MockAlarmThreshholdBolt(alarmDAO, alarmDefinitionDAO, alarmEventForwarder);
     collector = mock(OutputCollector.class);
-    final Map<String, String> config = new HashMap<>();
+    config = new HashMap<>();
     config.put(ThresholdingConfiguration.ALERTS_EXCHANGE, ALERTS_EXCHANGE);
     config.put(ThresholdingConfiguration.ALERTS_ROUTING_KEY, ALERT_ROUTING_KEY);
-    final TopologyContext context = mock(TopologyContext.class);
+    context = mock(TopologyContext.class);
     bolt.prepare(config, context, collector);
   }
 
@@ -151,6 +160,53 @@ public class AlarmThresholdingBoltTest {
     verify(alarmDAO, times(1)).updateState(alarmId, AlarmState.OK);
   }
 
+  public void shouldWriteStateBehind() {
+    final String alarmId = triggerAlarmWithStateWriter();
+
+    bolt.cleanup();
+    verify(alarmDAO, times(1)).updateStates(
+        Collections.singletonMap(alarmId, AlarmState.ALARM));
+  }
+
+  public void shouldNotWriteStateBehindAlarmUpdate() {
+    final String alarmId = triggerAlarmWithStateWriter();
+
+    // The state set through the API must not be overwritten by the pending one
+    final AlarmUpdatedEvent event =
+        EventProcessingBoltTest.createAlarmUpdatedEvent(alarmDefinition, alarm, AlarmState.OK);
+    final Tuple updateTuple = createAlarmUpdateTuple(event);
+    bolt.execute(updateTuple);
+    verify(collector, times(1)).ack(updateTuple);
+
+    bolt.cleanup();
+    verify(alarmDAO, never()).updateStates(anyMap());
+    verify(alarmDAO, never()).updateState(eq(alarmId), any(AlarmState.class));
+  }
+
+  /**
+   * Puts the Alarm in ALARM state with a bolt that writes the state changes behind it
+   */
+  private String triggerAlarmWithStateWriter() {
+    final AlarmThresholdingConfig thresholdingConfig = new AlarmThresholdingConfig();
+    thresholdingConfig.stateFlushIntervalMillis = 60000;
+    bolt =
+        new MockAlarmThreshholdBolt(alarmDAO, alarmDefinitionDAO, alarmEventForwarder,
+            thresholdingConfig);
+    bolt.prepare(config, context, collector);
+
+    final String alarmId = alarm.getId();
+    when(alarmDAO.findById(alarmId)).thenReturn(alarm);
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+    emitSubAlarmStateChange(alarmId, subAlarms.get(0), AlarmState.ALARM);
+    for (int i = 1; i < subAlarms.size(); i++) {
+      emitSubAlarmStateChange(alarmId, subAlarms.get(i), AlarmState.OK);
+    }
+    verify(alarmEventForwarder, times(1)).send(eq(ALERTS_EXCHANGE), eq(ALERT_ROUTING_KEY),
+        anyString());
+    verify(alarmDAO, never()).updateState(anyString(), any(AlarmState.class));
+    return alarmId;
+  }
+
   public void simpleAlarmUpdate() {
     // Now send an AlarmUpdatedEvent
     final AlarmState newState = AlarmState.OK;
@@ -307,6 +363,11 @@ public class AlarmThresholdingBoltTest {
       super(alarmDAO, alarmDefinitionDAO, alarmEventForwarder);
     }
 
+    public MockAlarmThreshholdBolt(AlarmDAO alarmDAO, AlarmDefinitionDAO alarmDefinitionDAO,
+        AlarmEventForwarder alarmEventForwarder, AlarmThresholdingConfig thresholdingConfig) {
+      super(alarmDAO, alarmDefinitionDAO, alarmEventForwarder, thresholdingConfig);
+    }
+
     @Override
     protected long getTimestamp() {
       // Have to keep the time stamp constant so JSON comparison works
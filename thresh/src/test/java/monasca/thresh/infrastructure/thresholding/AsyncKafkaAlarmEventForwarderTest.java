@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class AsyncKafkaAlarmEventForwarderTest {
+  private static final String TOPIC = "alarm-state-transitions";
+
+  private Producer<String, String> producer;
+  private List<List<String>> sentBatches;
+  private volatile CountDownLatch sendAllowed;
+  private volatile boolean failSend;
+
+  @BeforeMethod
+  @SuppressWarnings("unchecked")
+  protected void beforeMethod() {
+    producer = mock(Producer.class);
+    sentBatches = Collections.synchronizedList(new ArrayList<List<String>>());
+    sendAllowed = new CountDownLatch(0);
+    failSend = false;
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        sendAllowed.await(5, TimeUnit.SECONDS);
+        if (failSend) {
+          throw new RuntimeException("No broker");
+        }
+        // The forwarder reuses the list, so copy it
+        final List<String> batch = new ArrayList<>();
+        for (final KeyedMessage<String, String> message : (List<KeyedMessage<String, String>>) invocation
+            .getArguments()[0]) {
+          assertEquals(message.topic(), TOPIC);
+          batch.add(message.message());
+        }
+        sentBatches.add(batch);
+        return null;
+      }
+    }).when(producer).send(Matchers.<List<KeyedMessage<String, String>>>any());
+  }
+
+  public void shouldSendQueuedEventsInBatches() {
+    sendAllowed = new CountDownLatch(1);
+    final AsyncKafkaAlarmEventForwarder forwarder =
+        new AsyncKafkaAlarmEventForwarder(producer, TOPIC, 100, 3);
+    for (int i = 0; i < 7; i++) {
+      forwarder.send("exchange", "key", "event" + i);
+    }
+    sendAllowed.countDown();
+    forwarder.close();
+
+    final List<String> sent = new ArrayList<>();
+    for (final List<String> batch : sentBatches) {
+      assertTrue(batch.size() <= 3);
+      sent.addAll(batch);
+    }
+    assertEquals(sent.size(), 7);
+    for (int i = 0; i < 7; i++) {
+      assertEquals(sent.get(i), "event" + i);
+    }
+    verify(producer).close();
+
+    final Map<String, Object> metrics = getMetrics(forwarder);
+    assertEquals(metrics.get("sent"), 7L);
+    assertEquals(metrics.get("dropped"), 0L);
+    assertEquals(metrics.get("queued"), 0);
+  }
+
+  public void shouldDropEventsWhenQueueIsFull() {
+    sendAllowed = new CountDownLatch(1);
+    final AsyncKafkaAlarmEventForwarder forwarder =
+        new AsyncKafkaAlarmEventForwarder(producer, TOPIC, 1, 1);
+    forwarder.send("exchange", "key", "sending");
+    // Wait for the first event to be taken from the queue
+    verify(producer, timeout(5000)).send(Matchers.<List<KeyedMessage<String, String>>>any());
+    forwarder.send("exchange", "key", "queued");
+    forwarder.send("exchange", "key", "dropped");
+    sendAllowed.countDown();
+    forwarder.close();
+
+    assertEquals(sentBatches.size(), 2);
+    assertEquals(sentBatches.get(0), Collections.singletonList("sending"));
+    assertEquals(sentBatches.get(1), Collections.singletonList("queued"));
+    final Map<String, Object> metrics = getMetrics(forwarder);
+    assertEquals(metrics.get("sent"), 2L);
+    assertEquals(metrics.get("dropped"), 1L);
+  }
+
+  public void shouldCountFailedEvents() {
+    failSend = true;
+    final AsyncKafkaAlarmEventForwarder forwarder =
+        new AsyncKafkaAlarmEventForwarder(producer, TOPIC, 100, 10);
+    forwarder.send("exchange", "key", "event");
+    forwarder.close();
+
+    final Map<String, Object> metrics = getMetrics(forwarder);
+    assertEquals(metrics.get("sent"), 0L);
+    assertEquals(metrics.get("failed"), 1L);
+    assertEquals(metrics.get("failedBatches"), 1L);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> getMetrics(AsyncKafkaAlarmEventForwarder forwarder) {
+    return (Map<String, Object>) forwarder.getValueAndReset();
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.locks.LockSupport;
+
+@Test
+public class MessageRingBufferTest {
+
+  public void shouldRoundCapacityToPowerOfTwo() {
+    assertEquals(new MessageRingBuffer<Integer>(1).capacity(), 1);
+    assertEquals(new MessageRingBuffer<Integer>(3).capacity(), 4);
+    assertEquals(new MessageRingBuffer<Integer>(1024).capacity(), 1024);
+    assertEquals(new MessageRingBuffer<Integer>(1025).capacity(), 2048);
+  }
+
+  public void shouldBeFirstInFirstOut() {
+    final MessageRingBuffer<Integer> buffer = new MessageRingBuffer<>(4);
+    assertTrue(buffer.isEmpty());
+    assertNull(buffer.poll());
+    // Go around the ring a few times
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(buffer.offer(round * 10 + i));
+      }
+      assertFalse(buffer.offer(-1));
+      assertEquals(buffer.size(), 4);
+      for (int i = 0; i < 4; i++) {
+        assertEquals(buffer.poll(), Integer.valueOf(round * 10 + i));
+      }
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  public void shouldPassAllMessagesBetweenThreads() throws Exception {
+    final MessageRingBuffer<Integer> buffer = new MessageRingBuffer<>(16);
+    final int count = 100000;
+    final Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          while (!buffer.offer(i)) {
+            Thread.yield();
+          }
+        }
+      }
+    };
+    producer.start();
+    for (int expected = 0; expected < count;) {
+      final Integer message = buffer.poll();
+      if (message == null) {
+        Thread.yield();
+      } else {
+        assertEquals(message.intValue(), expected++);
+      }
+    }
+    producer.join();
+    assertTrue(buffer.isEmpty());
+  }
+
+  public void shouldPassAllMessagesFromManyProducers() throws Exception {
+    final MessageRingBuffer<Integer> buffer = new MessageRingBuffer<>(16);
+    final int producers = 4;
+    final int count = 50000;
+    final Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      threads[p] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < count; i++) {
+            while (!buffer.offer(producer * count + i)) {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      threads[p].start();
+    }
+    // Messages from each producer must stay in order
+    final int[] next = new int[producers];
+    for (int received = 0; received < producers * count;) {
+      final Integer message = buffer.poll();
+      if (message == null) {
+        Thread.yield();
+      } else {
+        final int producer = message / count;
+        assertEquals(message % count, next[producer]++);
+        received++;
+      }
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(buffer.isEmpty());
+  }
+
+  /**
+   * Compares the one message at a time monitor handoff KafkaSpout used to have with the ring
+   * buffer drained in batches
+   */
+  @Test(groups = "performance")
+  public void benchmarkHandoff() throws Exception {
+    final int count = 5000000;
+    for (int run = 0; run < 3; run++) {
+      final long monitorNanos = runMonitorHandoff(count);
+      final long ringNanos = runRingBufferHandoff(count, 100);
+      System.out.printf("monitor handoff %,d msgs/sec, ring buffer %,d msgs/sec%n",
+          count * 1000000000L / monitorNanos, count * 1000000000L / ringNanos);
+    }
+  }
+
+  private static long runMonitorHandoff(final int count) throws InterruptedException {
+    final MonitorHandoff handoff = new MonitorHandoff();
+    final byte[] message = new byte[100];
+    final Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          handoff.put(message);
+        }
+      }
+    };
+    final long start = System.nanoTime();
+    producer.start();
+    for (int received = 0; received < count;) {
+      if (handoff.take() != null) {
+        received++;
+      }
+    }
+    producer.join();
+    return System.nanoTime() - start;
+  }
+
+  private static long runRingBufferHandoff(final int count, final int batchSize)
+      throws InterruptedException {
+    final MessageRingBuffer<byte[]> buffer = new MessageRingBuffer<>(1024);
+    final byte[] message = new byte[100];
+    final Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          while (!buffer.offer(message)) {
+            LockSupport.parkNanos(1000);
+          }
+        }
+      }
+    };
+    final long start = System.nanoTime();
+    producer.start();
+    for (int received = 0; received < count;) {
+      int batch = 0;
+      while (batch < batchSize && buffer.poll() != null) {
+        batch++;
+      }
+      if (batch == 0) {
+        LockSupport.parkNanos(1000);
+      }
+      received += batch;
+    }
+    producer.join();
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Same handoff as the old KafkaSpout.run() and getMessage()
+   */
+  private static class MonitorHandoff {
+    private byte[] message;
+    private boolean waiting;
+
+    synchronized void put(byte[] newMessage) {
+      this.message = newMessage;
+      if (this.waiting) {
+        notify();
+      }
+      while (this.message != null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    synchronized byte[] take() {
+      byte[] result = this.message;
+      if (result == null) {
+        this.waiting = true;
+        try {
+          wait(100);
+        } catch (InterruptedException e) {
+          return null;
+        }
+        this.waiting = false;
+        result = this.message;
+      }
+      if (result != null) {
+        this.message = null;
+        notify();
+      }
+      return result;
+    }
+  }
+}
@@ -17,11 +17,13 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
@@ -33,7 +35,9 @@ import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.metric.Metric;
 import monasca.common.model.metric.MetricDefinition;
 import monasca.common.streaming.storm.Streams;
+import monasca.thresh.MetricAggregationConfig;
 
+import backtype.storm.Config;
 import backtype.storm.Constants;
 import backtype.storm.Testing;
 import backtype.storm.task.OutputCollector;
@@ -49,16 +53,25 @@ import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.SubAlarmStatsRepository;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 @Test
 public class MetricAggregationBoltTest {
+  private static final Logger logger = LoggerFactory.getLogger(MetricAggregationBoltTest.class);
   private static final String TENANT_ID = "42";
   private static final String ALARM_ID_1 = "123";
   private MockMetricAggregationBolt bolt;
@@ -208,6 +221,136 @@ public class MetricAggregationBoltTest {
     verify(collector, times(2)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
   }
 
+  public void shouldShareWindowOfSameMetric() {
+    long t1 = 1400000000L;
+    bolt.setCurrentTime(t1);
+    sendSubAlarmCreated(metricDef2, subAlarm2);
+    bolt.execute(createMetricTuple(metricDef2, new Metric(metricDef2, t1 + 30, 94)));
+    // subAlarm3 starts with the values subAlarm2 already has
+    sendSubAlarmCreated(metricDef3, subAlarm3);
+
+    final SubAlarmStatsRepository repo =
+        bolt.getOrCreateSubAlarmStatsRepo(new MetricDefinitionAndTenantId(metricDef2, TENANT_ID));
+    assertEquals(repo.getSharedWindows().size(), 1);
+    assertTrue(repo.get(subAlarm2.getId()).getNumericStats() == repo.get(subAlarm3.getId())
+        .getNumericStats());
+
+    bolt.setCurrentTime(t1 + 60);
+    bolt.execute(createTickTuple());
+    assertEquals(subAlarm2.getState(), AlarmState.ALARM);
+    assertEquals(subAlarm3.getState(), AlarmState.OK);
+
+    // Getting values from a second metric gives subAlarm3 a window of its own
+    sendSubAlarmCreated(metricDef1, subAlarm3);
+    assertFalse(repo.isSharingWindow(repo.get(subAlarm3.getId())));
+    assertEquals(repo.getSharedWindows().iterator().next().getUsers(),
+        Arrays.asList(repo.get(subAlarm2.getId())));
+    bolt.execute(createMetricTuple(metricDef2, new Metric(metricDef2, t1 + 30, 98)));
+    assertEquals(repo.get(subAlarm2.getId()).getStats().getValue(t1 + 30), 96.0);
+    assertEquals(repo.get(subAlarm3.getId()).getStats().getValue(t1 + 30), 96.0);
+
+    sendSubAlarmMsg(EventProcessingBolt.DELETED, metricDef2, subAlarm2);
+    assertTrue(repo.getSharedWindows().isEmpty());
+  }
+
+  public void shouldRestoreCheckpointedWindowsAfterRestart() throws IOException {
+    final File directory = Files.createTempDirectory("thresh").toFile();
+    final MetricAggregationConfig config = new MetricAggregationConfig();
+    config.checkpointDirectory = directory.getPath();
+    final long t1 = 1400000000L;
+    final MockMetricAggregationBolt crashed = new MockMetricAggregationBolt(config);
+    bolt = crashed;
+    bolt.setCurrentTime(t1);
+    bolt.prepare(null, context, collector);
+    sendSubAlarmCreated(metricDef1, subAlarm1);
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1 - 90, 95)));
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1 - 30, 92)));
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1 + 30, 91)));
+    bolt.setCurrentTime(t1 + 60);
+    bolt.execute(createTickTuple());
+    assertEquals(subAlarm1.getState(), AlarmState.ALARM);
+
+    // The first bolt is not cleaned up, as if its worker had died
+    reset(collector);
+    final SubAlarm restartedSubAlarm =
+        new SubAlarm(subAlarm1.getId(), subAlarm1.getAlarmId(), subExpr1, AlarmState.ALARM);
+    bolt = new MockMetricAggregationBolt(config);
+    bolt.setCurrentTime(t1 + 90);
+    bolt.prepare(null, context, collector);
+    sendSubAlarmCreated(metricDef1, restartedSubAlarm);
+    final SubAlarmStats restored =
+        bolt.getOrCreateSubAlarmStatsRepo(new MetricDefinitionAndTenantId(metricDef1, TENANT_ID))
+            .get(subAlarm1.getId());
+    // Slid to the current time, so the oldest value is gone
+    assertEquals(restored.getNextSlideTimestamp(), t1 + 121);
+    assertEquals(restored.getStats().getValue(t1 - 30), 92.0);
+
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1 + 100, 93)));
+    bolt.setCurrentTime(t1 + 120);
+    bolt.execute(createTickTuple());
+    assertEquals(restartedSubAlarm.getState(), AlarmState.ALARM);
+    verify(collector, times(1)).emit(new Values(restartedSubAlarm.getAlarmId(), restartedSubAlarm));
+
+    bolt.cleanup();
+    crashed.cleanup();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void shouldEvaluateBacklogByEventTime() {
+    final MetricAggregationConfig config = new MetricAggregationConfig();
+    config.eventTime = true;
+    config.watermarkLatenessSeconds = 0;
+    final long now = 1400000000L;
+    bolt = new MockMetricAggregationBolt(config);
+    bolt.setCurrentTime(now);
+    bolt.prepare(null, context, collector);
+    final List<AlarmState> emitted = new ArrayList<>();
+    when(collector.emit(anyListOf(Object.class))).thenAnswer(new Answer<List<Integer>>() {
+      @Override
+      public List<Integer> answer(InvocationOnMock invocation) {
+        emitted.add(((SubAlarm) ((List<?>) invocation.getArguments()[0]).get(1)).getState());
+        return null;
+      }
+    });
+    sendSubAlarmCreated(metricDef2, subAlarm2);
+
+    // Nothing is evaluated until the event time is known
+    bolt.execute(createTickTuple());
+    assertTrue(emitted.isEmpty());
+
+    // An hour behind the clock, the window is moved back to the event time
+    final long t1 = now - 3600;
+    bolt.execute(createWatermarkTuple(t1));
+    final SubAlarmStats stats =
+        bolt.getOrCreateSubAlarmStatsRepo(new MetricDefinitionAndTenantId(metricDef2, TENANT_ID))
+            .get(subAlarm2.getId());
+    assertEquals(stats.getNextSlideTimestamp(), t1 + 61);
+
+    // The backlog arrives faster than the clock and each minute is evaluated in turn
+    bolt.execute(createMetricTuple(metricDef2, new Metric(metricDef2, t1 + 30, 95)));
+    bolt.execute(createMetricTuple(metricDef2, new Metric(metricDef2, t1 + 90, 50)));
+    bolt.execute(createMetricTuple(metricDef2, new Metric(metricDef2, t1 + 150, 97)));
+    bolt.execute(createWatermarkTuple(t1 + 181));
+    assertEquals(emitted, Arrays.asList(AlarmState.ALARM, AlarmState.OK, AlarmState.ALARM));
+    assertEquals(stats.getNextSlideTimestamp(), t1 + 241);
+
+    // The clock makes no difference to the windows
+    bolt.setCurrentTime(now + 30);
+    bolt.execute(createTickTuple());
+    assertEquals(stats.getNextSlideTimestamp(), t1 + 241);
+    assertEquals(emitted.size(), 3);
+  }
+
+  private Tuple createWatermarkTuple(long watermark) {
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setFields(MetricAggregationBolt.WATERMARK_FIELDS);
+    tupleParam.setStream(MetricAggregationBolt.WATERMARK_STREAM);
+    return Testing.testTuple(Arrays.<Object>asList(watermark), tupleParam);
+  }
+
   private void sendSubAlarmCreated(MetricDefinition metricDef, SubAlarm subAlarm) {
     final MkTupleParam tupleParam = new MkTupleParam();
     tupleParam.setFields(AlarmCreationBolt.ALARM_CREATION_FIELDS);
@@ -289,6 +432,147 @@ public class MetricAggregationBoltTest {
     verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
   }
 
+  public void shouldEvaluateIdleSubAlarmWhenValueArrives() {
+    final SubExpression subExpr =
+        new SubExpression("777", AlarmSubExpression.of("avg(hpcs.compute.disk{id=5}, 300) >= 90"));
+    final MetricDefinition metricDef = subExpr.getAlarmSubExpression().getMetricDefinition();
+    final SubAlarm subAlarm = new SubAlarm("999", "3", subExpr, AlarmState.OK);
+    long t1 = 1400000000L;
+    bolt.setCurrentTime(t1);
+    sendSubAlarmCreated(metricDef, subAlarm);
+
+    // 5 minute period and 1 period so 10 empty observations are needed for UNDETERMINED
+    final Tuple tickTuple = createTickTuple();
+    for (int tick = 1; tick < 10; tick++) {
+      bolt.setCurrentTime(t1 += 60);
+      bolt.execute(tickTuple);
+      assertEquals(subAlarm.getState(), AlarmState.OK);
+    }
+    bolt.setCurrentTime(t1 += 60);
+    bolt.execute(tickTuple);
+    assertEquals(subAlarm.getState(), AlarmState.UNDETERMINED);
+
+    // Several boundaries pass without anything to evaluate
+    for (int tick = 0; tick < 12; tick++) {
+      bolt.setCurrentTime(t1 += 60);
+      bolt.execute(tickTuple);
+    }
+    assertEquals(subAlarm.getState(), AlarmState.UNDETERMINED);
+
+    bolt.execute(createMetricTuple(metricDef, new Metric(metricDef, t1, 95)));
+    bolt.setCurrentTime(t1 += 60);
+    bolt.execute(tickTuple);
+    assertEquals(subAlarm.getState(), AlarmState.ALARM);
+    verify(collector, times(2)).emit(new Values(subAlarm.getAlarmId(), subAlarm));
+  }
+
+  public void shouldEvaluateOneShardPerTick() {
+    final MetricAggregationConfig config = new MetricAggregationConfig();
+    config.evaluationShards = 4;
+    bolt = new MockMetricAggregationBolt(config);
+    bolt.prepare(null, context, collector);
+    assertEquals(bolt.getComponentConfiguration().get(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS), 15);
+
+    long t1 = 1400000000L;
+    bolt.setCurrentTime(t1);
+    sendSubAlarmCreated(metricDef1, subAlarm1);
+    sendSubAlarmCreated(metricDef2, subAlarm2);
+    sendSubAlarmCreated(metricDef3, subAlarm3);
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1, 10)));
+    bolt.execute(createMetricTuple(metricDef2, new Metric(metricDef2, t1, 95)));
+
+    final Tuple tickTuple = createTickTuple();
+    final List<SubAlarm> evaluated = new ArrayList<>();
+    for (int shard = 0; shard < 4; shard++) {
+      // The whole round uses the time of its first tick even though the clock moves
+      bolt.setCurrentTime(t1 + 15 * shard);
+      bolt.execute(tickTuple);
+      for (SubAlarm subAlarm : subAlarms) {
+        // Sharded by metric so the SubAlarms sharing a window are in the same shard
+        final int hash =
+            new MetricDefinitionAndTenantId(subAlarm.getExpression().getMetricDefinition(),
+                TENANT_ID).hashCode() & Integer.MAX_VALUE;
+        if (hash % 4 == shard) {
+          evaluated.add(subAlarm);
+        }
+        verify(collector, times(evaluated.contains(subAlarm) ? 1 : 0)).emit(
+            new Values(subAlarm.getAlarmId(), subAlarm));
+      }
+    }
+    assertEquals(subAlarm1.getState(), AlarmState.OK);
+    assertEquals(subAlarm2.getState(), AlarmState.ALARM);
+    assertEquals(subAlarm3.getState(), AlarmState.OK);
+  }
+
+  public void shouldUseShardCountThatDividesTick() {
+    assertEquals(MetricAggregationBolt.numberOfShards(60, 1), 1);
+    assertEquals(MetricAggregationBolt.numberOfShards(60, 0), 1);
+    assertEquals(MetricAggregationBolt.numberOfShards(60, 4), 4);
+    assertEquals(MetricAggregationBolt.numberOfShards(60, 7), 6);
+    assertEquals(MetricAggregationBolt.numberOfShards(60, 100), 60);
+    assertEquals(MetricAggregationBolt.numberOfShards(7, 3), 1);
+  }
+
+  /**
+   * Simulates the executor thread of the bolt. Metrics arrive at a fixed rate for every SubAlarm
+   * and wait while a tick is evaluating, so the latency of a Metric is the time from its arrival
+   * until it has been aggregated
+   */
+  @Test(groups = "performance")
+  public void benchmarkMetricLatencyWithShards() {
+    for (int run = 0; run < 2; run++) {
+      for (int shardCount : new int[] {1, 10}) {
+        runMetricLatency(shardCount, 20000, 2000);
+      }
+    }
+  }
+
+  private void runMetricLatency(int shardCount, int subAlarmCount, long roundMillis) {
+    final MetricAggregationConfig config = new MetricAggregationConfig();
+    config.evaluationShards = shardCount;
+    final MockMetricAggregationBolt testBolt = new MockMetricAggregationBolt(config);
+    testBolt.prepare(null, mock(TopologyContext.class), mock(OutputCollector.class));
+    final List<MetricDefinitionAndTenantId> metricDefs = new ArrayList<>(subAlarmCount);
+    for (int i = 0; i < subAlarmCount; i++) {
+      final SubExpression subExpr =
+          new SubExpression("e" + i, AlarmSubExpression.of("avg(cpu{id=" + i + "}, 60) > 90"));
+      final MetricDefinitionAndTenantId metricDef = new MetricDefinitionAndTenantId(
+          subExpr.getAlarmSubExpression().getMetricDefinition(), TENANT_ID);
+      metricDefs.add(metricDef);
+      testBolt.handleAlarmCreated(metricDef,
+          new SubAlarm("s" + i, "a" + i, subExpr, AlarmState.UNDETERMINED));
+    }
+
+    // Every SubAlarm gets a Metric each round so every SubAlarm is evaluated each round
+    final long metricIntervalNanos = roundMillis * 1000000L / subAlarmCount;
+    final long tickIntervalNanos = roundMillis * 1000000L / shardCount;
+    final int metricCount = subAlarmCount * 3;
+    final long[] latencies = new long[metricCount];
+    final long start = System.nanoTime();
+    long nextTick = start + tickIntervalNanos;
+    for (int i = 0; i < metricCount;) {
+      final long now = System.nanoTime();
+      if (now >= nextTick) {
+        testBolt.evaluateAlarmsAndSlideWindows();
+        nextTick += tickIntervalNanos;
+        continue;
+      }
+      final long arrival = start + i * metricIntervalNanos;
+      if (now < arrival) {
+        continue;
+      }
+      final MetricDefinitionAndTenantId metricDef = metricDefs.get(i % subAlarmCount);
+      testBolt.aggregateValues(metricDef, new Metric(metricDef.metricDefinition,
+          System.currentTimeMillis() / 1000, 50));
+      latencies[i++] = System.nanoTime() - arrival;
+    }
+    Arrays.sort(latencies);
+    logger.info(String.format("%d shards, %,d SubAlarms: metric latency p50 %.3f ms, p99 %.3f ms, "
+        + "p99.9 %.3f ms, max %.3f ms", shardCount, subAlarmCount,
+        latencies[metricCount / 2] / 1000000.0, latencies[metricCount * 99 / 100] / 1000000.0,
+        latencies[metricCount * 999 / 1000] / 1000000.0, latencies[metricCount - 1] / 1000000.0));
+  }
+
   private Tuple createTickTuple() {
     final MkTupleParam tupleParam = new MkTupleParam();
     tupleParam.setComponent(Constants.SYSTEM_COMPONENT_ID);
@@ -423,6 +707,10 @@ public class MetricAggregationBoltTest {
       super();
     }
 
+    public MockMetricAggregationBolt(MetricAggregationConfig config) {
+      super(Collections.<String>emptySet(), config);
+    }
+
     @Override
     protected long currentTimeSeconds() {
       if (currentTime != 0) {
@@ -17,6 +17,8 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -48,6 +50,8 @@ import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.verification.VerificationMode;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -96,7 +100,16 @@ public class MetricFilteringBoltTest {
     final AlarmDefinitionDAO alarmDefDao = mock(AlarmDefinitionDAO.class);
     when(alarmDefDao.listAll()).thenReturn(initialAlarmDefinitions);
     final AlarmDAO alarmDao = mock(AlarmDAO.class);
-    when(alarmDao.listAll()).thenReturn(initialAlarms);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        final AlarmDAO.AlarmHandler handler = (AlarmDAO.AlarmHandler) invocation.getArguments()[0];
+        for (final Alarm alarm : initialAlarms) {
+          handler.handle(alarm);
+        }
+        return null;
+      }
+    }).when(alarmDao).streamAll((AlarmDAO.AlarmHandler) any());
     MockMetricFilteringBolt bolt = new MockMetricFilteringBolt(alarmDefDao, alarmDao);
 
     final Map<String, String> config = new HashMap<>();
@@ -166,6 +179,38 @@ public class MetricFilteringBoltTest {
         new Values(MetricAggregationBolt.METRICS_BEHIND));
   }
 
+  public void testLaggingEndsWithFilteredMetrics() {
+    final OutputCollector collector = mock(OutputCollector.class);
+
+    final MockMetricFilteringBolt bolt =
+        createBolt(new ArrayList<AlarmDefinition>(0), new ArrayList<Alarm>(0), collector, true);
+
+    final long prepareTime = bolt.getCurrentTime();
+    final MetricDefinition metricDefinition =
+        alarmDef1.getAlarmExpression().getSubExpressions().get(0).getMetricDefinition();
+    final long oldestTimestamp = prepareTime - MetricFilteringBolt.LAG_MESSAGE_PERIOD_DEFAULT;
+    final Tuple lateMetricTuple =
+        createMetricTuple(metricDefinition, oldestTimestamp, new Metric(metricDefinition,
+            oldestTimestamp, 42.0));
+    bolt.execute(lateMetricTuple);
+    verify(collector, times(1)).ack(lateMetricTuple);
+
+    // The MetricSpout dropped Metrics that are caught up
+    final long caughtUpTimestamp = prepareTime - MetricFilteringBolt.MIN_LAG_VALUE_DEFAULT;
+    final Tuple progressTuple = createProgressTuple(caughtUpTimestamp, caughtUpTimestamp);
+    bolt.execute(progressTuple);
+    verify(collector, times(1)).ack(progressTuple);
+
+    bolt.setCurrentTime(prepareTime + 2 * MetricFilteringBolt.LAG_MESSAGE_PERIOD_DEFAULT);
+    final Tuple lateMetricTuple2 =
+        createMetricTuple(metricDefinition, oldestTimestamp, new Metric(metricDefinition,
+            oldestTimestamp, 42.0));
+    bolt.execute(lateMetricTuple2);
+    verify(collector, times(1)).ack(lateMetricTuple2);
+    verify(collector, never()).emit(MetricAggregationBolt.METRIC_AGGREGATION_CONTROL_STREAM,
+        new Values(MetricAggregationBolt.METRICS_BEHIND));
+  }
+
   public void testLaggingTooLong() {
     final OutputCollector collector = mock(OutputCollector.class);
 
@@ -482,6 +527,13 @@ public class MetricFilteringBoltTest {
     return tuple;
   }
 
+  private Tuple createProgressTuple(final long apiTimeStamp, final long eventTime) {
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setFields(MetricSpout.PROGRESS_FIELDS);
+    tupleParam.setStream(MetricSpout.PROGRESS_STREAM);
+    return Testing.testTuple(Arrays.<Object>asList(apiTimeStamp, eventTime), tupleParam);
+  }
+
   private Tuple createMetricTuple(final MetricDefinition metricDefinition, final long timestamp,
       final Metric metric) {
     final MkTupleParam tupleParam = new MkTupleParam();
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.thresh.domain.model.DoubleWindowStats;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubAlarmStats;
+import monasca.thresh.domain.model.SubExpression;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+@Test
+public class WindowCheckpointTest {
+  private static final Logger logger = LoggerFactory.getLogger(WindowCheckpointTest.class);
+  private static final long VIEW_END = 1400000000L;
+  private static final int MAX_SLOTS = 16;
+  private File file;
+
+  @BeforeMethod(alwaysRun = true)
+  protected void beforeMethod() throws IOException {
+    file = File.createTempFile("aggregation", ".checkpoint");
+  }
+
+  @AfterMethod(alwaysRun = true)
+  protected void afterMethod() {
+    file.delete();
+  }
+
+  public void shouldRestoreCheckpointedWindows() throws IOException {
+    WindowCheckpoint checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    final SubAlarmStats avg = stats("1", "avg(cpu{id=5}, 60) > 90 times 3");
+    final SubAlarmStats count = stats("2", "count(cpu{id=5}, 60) > 2");
+    final SubAlarmStats concat = stats("3", "concat(log{id=5}, 60) LIKE \"error\"");
+    checkpoint.track("1", avg);
+    checkpoint.track("2", count);
+    checkpoint.track("3", concat);
+    avg.getStats().addValue(80, VIEW_END - 10);
+    avg.getStats().addValue(90, VIEW_END - 10);
+    avg.getStats().addValue(70, VIEW_END - 70);
+    count.getStats().addValue(1, VIEW_END - 10);
+    assertEquals(checkpoint.checkpoint(VIEW_END, 100), 2);
+    assertEquals(checkpoint.size(), 2);
+    checkpoint.close();
+
+    checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    assertEquals(checkpoint.size(), 2);
+    final SubAlarmStats newAvg = stats("1", "avg(cpu{id=5}, 60) > 90 times 3");
+    final DoubleWindowStats restored = checkpoint.restore("1", newAvg.getNumericStats());
+    assertNotNull(restored);
+    assertEquals(restored.getViewEndTimestamp(), VIEW_END);
+    assertEquals(restored.getValue(VIEW_END - 10), 85.0);
+    assertEquals(restored.getValue(VIEW_END - 70), 70.0);
+    // A SubAlarm can only restore once
+    assertNull(checkpoint.restore("1", newAvg.getNumericStats()));
+    // The window of a different function is dropped
+    assertNull(checkpoint.restore("2", stats("2", "sum(cpu{id=5}, 60) > 2").getNumericStats()));
+    assertEquals(checkpoint.size(), 1);
+    checkpoint.close();
+  }
+
+  public void shouldOnlyWriteChangedWindows() throws IOException {
+    final WindowCheckpoint checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    final SubAlarmStats[] stats = new SubAlarmStats[10];
+    for (int i = 0; i < stats.length; i++) {
+      stats[i] = stats(String.valueOf(i), "max(cpu{id=5}, 60) > 90");
+      checkpoint.track(String.valueOf(i), stats[i]);
+    }
+    // Bounded, the rest is written by the next checkpoints
+    assertEquals(checkpoint.checkpoint(VIEW_END, 4), 4);
+    assertEquals(checkpoint.checkpoint(VIEW_END, 4), 4);
+    assertEquals(checkpoint.checkpoint(VIEW_END, 4), 2);
+    assertEquals(checkpoint.checkpoint(VIEW_END, 4), 0);
+
+    stats[3].getStats().addValue(1, VIEW_END - 1);
+    stats[7].slideWindow(VIEW_END + 1);
+    assertEquals(checkpoint.checkpoint(VIEW_END, 100), 2);
+
+    checkpoint.untrack("3");
+    assertEquals(checkpoint.size(), 9);
+    stats[7].getStats().addValue(1, VIEW_END + 1);
+    assertEquals(checkpoint.checkpoint(VIEW_END, 100), 1);
+    checkpoint.close();
+  }
+
+  public void shouldFreeExpiredRecordsNobodyClaimed() throws IOException {
+    WindowCheckpoint checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    checkpoint.track("1", stats("1", "avg(cpu{id=5}, 60) > 90 times 3"));
+    checkpoint.checkpoint(VIEW_END, 100);
+    checkpoint.close();
+
+    checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    checkpoint.checkpoint(VIEW_END + 60, 100);
+    assertEquals(checkpoint.size(), 1);
+    // 3 periods and the future slots have passed
+    checkpoint.checkpoint(VIEW_END + 300, 100);
+    assertEquals(checkpoint.size(), 0);
+    checkpoint.close();
+  }
+
+  public void shouldGrowAndIgnoreOtherRecordSizes() throws IOException {
+    WindowCheckpoint checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    final long initialBytes = checkpoint.getFileBytes();
+    for (int i = 0; i < 3000; i++) {
+      checkpoint.track(String.valueOf(i), stats(String.valueOf(i), "sum(cpu{id=5}, 60) > 1"));
+    }
+    assertEquals(checkpoint.checkpoint(VIEW_END, Integer.MAX_VALUE), 3000);
+    assertTrue(checkpoint.getFileBytes() > initialBytes);
+    checkpoint.close();
+
+    checkpoint = WindowCheckpoint.open(file, MAX_SLOTS);
+    assertEquals(checkpoint.size(), 3000);
+    checkpoint.close();
+    checkpoint = WindowCheckpoint.open(file, MAX_SLOTS * 2);
+    assertEquals(checkpoint.size(), 0);
+    checkpoint.close();
+  }
+
+  /**
+   * Measures a full checkpoint, where every window changed, and an incremental one, where a tenth
+   * of them did
+   */
+  @Test(groups = "performance")
+  public void benchmarkCheckpoint() throws IOException {
+    final int count = 100000;
+    final WindowCheckpoint checkpoint = WindowCheckpoint.open(file, 32);
+    final SubAlarmStats[] stats = new SubAlarmStats[count];
+    for (int i = 0; i < count; i++) {
+      stats[i] = stats(String.valueOf(i), "avg(cpu{id=5}, 60) > 90 times 5");
+      checkpoint.track(String.valueOf(i), stats[i]);
+    }
+    for (int run = 0; run < 3; run++) {
+      for (SubAlarmStats subAlarmStats : stats) {
+        subAlarmStats.getStats().addValue(run, VIEW_END - 1);
+      }
+      long start = System.nanoTime();
+      checkpoint.checkpoint(VIEW_END, Integer.MAX_VALUE);
+      final long fullNanos = System.nanoTime() - start;
+      for (int i = 0; i < count; i += 10) {
+        stats[i].getStats().addValue(run, VIEW_END - 1);
+      }
+      start = System.nanoTime();
+      checkpoint.checkpoint(VIEW_END, Integer.MAX_VALUE);
+      final long incrementalNanos = System.nanoTime() - start;
+      logger.info(String.format("%,d windows, %,d bytes: full checkpoint %.1f ms, "
+          + "incremental checkpoint of 10%% %.1f ms", count, checkpoint.getFileBytes(),
+          fullNanos / 1000000.0, incrementalNanos / 1000000.0));
+    }
+    checkpoint.close();
+  }
+
+  private static SubAlarmStats stats(String id, String expression) {
+    return new SubAlarmStats(new SubAlarm(id, "1", new SubExpression(id,
+        AlarmSubExpression.of(expression)), AlarmState.UNDETERMINED), VIEW_END);
+  }
+}
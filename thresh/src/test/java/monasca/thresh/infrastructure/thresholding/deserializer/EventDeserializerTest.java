@@ -96,6 +96,15 @@ public class EventDeserializerTest {
     assertEquals(deserialized, expected);
   }
 
+  public void shouldDeserializeSmileEvent() throws Exception {
+    final Object event =
+        new AlarmDefinitionCreatedEvent(TENANT_ID, ALARM_ID, ALARM_NAME, ALARM_DESCRIPTION,
+            ALARM_EXPRESSION, null, Arrays.asList("hostname", "dev"));
+    final byte[] smile = PayloadFormatTest.toSmile(Serialization.toJson(event).getBytes());
+    assertEquals(new EventDeserializer(PayloadFormat.AUTO).deserialize(smile),
+        Collections.singletonList(Collections.singletonList(event)));
+  }
+
   public void shouldReturnNullOnDeserializeUnknownEvent() {
     String unknownEventJson = "{\"alarm-foo-deleted\":{\"tenantId\":\"abc\",\"alarmId\":\"123\"}}";
     assertNull(deserializer.deserialize(unknownEventJson.getBytes()));
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding.deserializer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricEnvelope;
+import monasca.common.model.metric.MetricEnvelopes;
+import monasca.thresh.domain.model.TenantIdAndMetricNameFilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+@Test
+public class MetricEnvelopeDecoderTest {
+  private static final Logger logger = LoggerFactory.getLogger(MetricEnvelopeDecoderTest.class);
+  private static final String ENVELOPE =
+      "{\"metric\":{\"name\":\"cpu.idle_perc\",\"dimensions\":{\"hostname\":\"%s\","
+          + "\"service\":\"monitoring\",\"component\":\"thresh\"},\"timestamp\":%d,"
+          + "\"value\":%s,\"value_meta\":{\"reason\":\"none\"}},"
+          + "\"meta\":{\"region\":\"useast\",\"tenantId\":\"tenant1\"},"
+          + "\"creation_time\":1405630175}";
+
+  private final MetricEnvelopeDecoder decoder = new MetricEnvelopeDecoder(PayloadFormat.AUTO);
+
+  public void shouldDecode() {
+    final Metric metric = decoder.decode(envelope("host1", 1405630174, "95.5"));
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", "host1");
+    dimensions.put("service", "monitoring");
+    dimensions.put("component", "thresh");
+    assertEquals(metric, new Metric("cpu.idle_perc", dimensions, 1405630174, 95.5));
+    assertEquals(decoder.getTenantId(), "tenant1");
+    assertEquals(decoder.getCreationTime(), 1405630175);
+  }
+
+  public void shouldDecodeSmile() throws Exception {
+    final byte[] json = envelope("host1", 1405630174, "95.5");
+    final Metric expected = decoder.decode(json);
+    assertEquals(decoder.decode(PayloadFormatTest.toSmile(json)), expected);
+    assertEquals(decoder.getTenantId(), "tenant1");
+    assertEquals(decoder.getCreationTime(), 1405630175);
+  }
+
+  public void shouldReuseStrings() {
+    final Metric first = decoder.decode(envelope("host1", 1, "1"));
+    final String firstTenantId = decoder.getTenantId();
+    final Metric second = decoder.decode(envelope("host1", 2, "2"));
+    assertSame(second.name, first.name);
+    assertSame(second.dimensions.get("hostname"), first.dimensions.get("hostname"));
+    assertSame(decoder.getTenantId(), firstTenantId);
+    final Metric third = decoder.decode(envelope("host2", 3, "3"));
+    assertEquals(third.dimensions.get("hostname"), "host2");
+  }
+
+  public void shouldDecodeLikeMetricEnvelopes() {
+    final byte[] message = envelope("host1", 1405630174, "12");
+    final MetricEnvelope expected = MetricEnvelopes.fromJson(message);
+    assertEquals(decoder.decode(message), expected.metric);
+    assertEquals(decoder.getTenantId(), expected.meta.get("tenantId"));
+    assertEquals(decoder.getCreationTime(), expected.creationTime);
+  }
+
+  public void shouldHandleMissingMeta() {
+    final Metric metric =
+        decoder.decode(bytes("{\"metric\":{\"name\":\"foo\",\"timestamp\":5,\"value\":1}}"));
+    assertEquals(metric.name, "foo");
+    assertNull(decoder.getTenantId());
+  }
+
+  public void shouldSkipFilteredMetric() {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(100, 0.01);
+    filter.add("tenant1", "mem.free_mb");
+    assertNull(decoder.decode(envelope("host1", 1405630174, "95.5"), filter));
+    assertEquals(decoder.getTenantId(), "tenant1");
+    assertEquals(decoder.getCreationTime(), 1405630175);
+    assertEquals(decoder.getTimestamp(), 1405630174);
+
+    filter.add("tenant1", "cpu.idle_perc");
+    final byte[] message = envelope("host1", 1405630174, "95.5");
+    assertEquals(decoder.decode(message, filter), decoder.decode(message));
+  }
+
+  public void shouldFilterWithMetaFirst() throws Exception {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(100, 0.01);
+    filter.add("tenant2", "mem.free_mb");
+    final String json =
+        "{\"creation_time\":1405630175,\"meta\":{\"tenantId\":\"tenant2\"},"
+            + "\"metric\":{\"timestamp\":1405630174,\"name\":\"mem.free_mb\"}}";
+    assertNotNull(decoder.decode(bytes(json), filter));
+    assertNotNull(decoder.decode(PayloadFormatTest.toSmile(bytes(json)), filter));
+    assertNull(decoder.decode(bytes(json.replace("tenant2", "tenant3")), filter));
+  }
+
+  public void shouldNotFilterMissingTenantId() {
+    final TenantIdAndMetricNameFilter filter = new TenantIdAndMetricNameFilter(100, 0.01);
+    final Metric metric =
+        decoder.decode(bytes("{\"metric\":{\"name\":\"foo\",\"timestamp\":5,\"value\":1}}"),
+            filter);
+    assertEquals(metric.name, "foo");
+    assertNull(decoder.getTenantId());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectMissingMetric() {
+    decoder.decode(bytes("{\"meta\":{\"tenantId\":\"tenant1\"}}"));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectBadJson() {
+    decoder.decode(bytes("{\"metric\":{\"name\":"));
+  }
+
+  @Test(groups = "performance")
+  public void benchmarkDecode() throws Exception {
+    final int count = 1000000;
+    final byte[][] messages = new byte[1000][];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = envelope("host" + (i % 50), 1405630174 + i, Double.toString(i * 0.5));
+    }
+    final byte[][] smileMessages = new byte[messages.length][];
+    for (int i = 0; i < messages.length; i++) {
+      smileMessages[i] = PayloadFormatTest.toSmile(messages[i]);
+    }
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        MetricEnvelopes.fromJson(messages[i % messages.length]);
+      }
+      final long fromJsonNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        decoder.decode(messages[i % messages.length]);
+      }
+      final long decoderNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        decoder.decode(smileMessages[i % smileMessages.length]);
+      }
+      final long smileNanos = System.nanoTime() - start;
+      logger.info(String.format("MetricEnvelopes.fromJson %d ns/msg, "
+          + "MetricEnvelopeDecoder %d ns/msg, MetricEnvelopeDecoder with Smile %d ns/msg",
+          fromJsonNanos / count, decoderNanos / count, smileNanos / count));
+    }
+  }
+
+  private static byte[] envelope(final String hostname, final long timestamp, final String value) {
+    return bytes(String.format(ENVELOPE, hostname, timestamp, value));
+  }
+
+  private static byte[] bytes(final String json) {
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+}
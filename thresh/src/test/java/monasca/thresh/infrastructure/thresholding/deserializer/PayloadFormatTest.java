@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014 Hewlett-Packard Development Company, L.P.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding.deserializer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+@Test
+public class PayloadFormatTest {
+  private static final byte[] JSON =
+      "{\"metric\":{\"name\":\"cpu.idle_perc\",\"value\":1.5},\"meta\":{\"tenantId\":\"t1\"}}"
+          .getBytes(StandardCharsets.UTF_8);
+
+  public void shouldDetectSmile() throws IOException {
+    final byte[] smile = toSmile(JSON);
+    assertTrue(PayloadFormat.isSmile(smile));
+    assertFalse(PayloadFormat.isSmile(JSON));
+    assertFalse(PayloadFormat.isSmile(new byte[0]));
+    assertTrue(smile.length < JSON.length);
+  }
+
+  public void shouldParseBothWithAuto() throws IOException {
+    assertEquals(firstFieldName(PayloadFormat.AUTO, JSON), "metric");
+    assertEquals(firstFieldName(PayloadFormat.AUTO, toSmile(JSON)), "metric");
+    assertEquals(firstFieldName(PayloadFormat.SMILE, toSmile(JSON)), "metric");
+  }
+
+  public void shouldConvertToJson() throws IOException {
+    assertSame(PayloadFormat.JSON.toJson(JSON), JSON);
+    assertSame(PayloadFormat.AUTO.toJson(JSON), JSON);
+    assertEquals(new String(PayloadFormat.AUTO.toJson(toSmile(JSON)), StandardCharsets.UTF_8),
+        new String(JSON, StandardCharsets.UTF_8));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void shouldNotParseJsonAsSmile() throws IOException {
+    PayloadFormat.SMILE.createParser(JSON).nextToken();
+  }
+
+  /**
+   * Converts a JSON message to Smile the way a producer would send it
+   */
+  static byte[] toSmile(final byte[] json) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final JsonParser parser = new JsonFactory().createParser(json);
+        final JsonGenerator generator = new SmileFactory().createGenerator(out)) {
+      parser.nextToken();
+      generator.copyCurrentStructure(parser);
+    }
+    return out.toByteArray();
+  }
+
+  private static String firstFieldName(final PayloadFormat format, final byte[] payload)
+      throws IOException {
+    try (final JsonParser parser = format.createParser(payload)) {
+      assertEquals(parser.nextToken(), JsonToken.START_OBJECT);
+      assertEquals(parser.nextToken(), JsonToken.FIELD_NAME);
+      return parser.getCurrentName();
+    }
+  }
+}